@@ -20,18 +20,26 @@
 
 package sanger.argml.cli;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 import javax.imageio.stream.ImageOutputStream;
 
 import org.apache.oro.io.Perl5FilenameFilter;
 
+import sanger.argml.drawing.PlotData;
+import sanger.argml.drawing.PlotDataPainter;
+import sanger.argml.drawing.PyramidPlotPainter;
 import sanger.argml.drawing.RSquarePlotPainter;
+import sanger.argml.drawing.StripImage;
+import sanger.argml.drawing.TilePyramid;
 import sanger.argml.drawing.TreeTraversalDistancePainter;
 import sanger.argml.format.ArgmlDocument;
 import sanger.argml.format.xml.GraphMLOutput;
@@ -45,11 +53,17 @@ import sanger.argml.io.TextInput;
 import sanger.argml.io.TextOutput;
 import sanger.argml.io.XmlInput;
 import sanger.argml.io.XmlOutput;
+import sanger.argml.tools.Benchmark;
 import sanger.argml.tools.GenealogyValidator;
 import sanger.margarita.ArgBuilderForUnphasedData;
+import sanger.margarita.ArgMapper;
+import sanger.margarita.ArgReader;
+import sanger.margarita.Imputer;
 import sanger.margarita.InputParser;
+import sanger.margarita.WindowedArgBuilder;
 import sanger.math.set.NaturalDomain;
 import sanger.math.set.NaturalSet;
+import sanger.math.set.NaturalSetException;
 import cern.jet.random.Normal;
 import cern.jet.random.engine.DRand;
 
@@ -112,12 +126,19 @@ public class ArgmlProcessor {
 			pairwiseTreeTraversalDistanceP(p);
 			ld(p);
 			mixedPlot(p);
+			pyramid(p);
+			pyramidPlot(p);
+			render(p);
+			batch(p);
 			graphML(p);
 			debug(p);
 			dotOutput(p);
 			margaritaArgOutput(p);
+			margaritaMapping(p);
+			margaritaImputation(p);
 			collectStatistics(p);
 			filterStatistics(p);
+			benchmark(p);
 
 		} catch (Exception e) {
 			p.env().log().printError(e);
@@ -142,6 +163,19 @@ public class ArgmlProcessor {
 		}
 	}
 	
+	private static void benchmark(ProcessManager p) throws Exception{
+		if(p.env().instruction().getName().equals("benchmark")){
+			Benchmark b = new Benchmark(p.env(), p.env().integerProperty("Iterations"));
+			if(p.env().stringProperty("Suite").equals("kernel")){
+				b.kernels();
+			} else if(p.env().stringProperty("Suite").equals("transpose")){
+				b.transpose();
+			} else {
+				p.env().log().printError("Unknown benchmark suite " + p.env().stringProperty("Suite"));
+			}
+		}
+	}
+	
 	private static void dotOutput(ProcessManager p) throws Exception{
 		if(p.env().instruction().getName().equals("dot")){
 			TextInput in = null;
@@ -285,17 +319,22 @@ public class ArgmlProcessor {
 		}
 	}	
 	
+	/**
+	 * @return The number of pixel rows painted at a time by the diagram commands, 0 for the complete diagram.
+	 */
+	private static int stripHeight(ProcessManager p){
+		Integer strip = p.env().integerProperty("Strip");
+		return (strip == null) ? 0 : strip;
+	}
+	
 	private static void pairwiseTreeTraversalDistance(ProcessManager p) throws Exception{
 		if(p.env().instruction().getName().equals("pttd")){
 			XmlInput in = null;
 			ImageOutputStream out = null;
-			int order = 0;
 
 			try {
 				in = p.xmlInput();
-				out = p.imageOutputStream();
 				Statistics one = null, two = null;
-				TreeTraversalDistancePainter pttd = null;
 				
 				StatisticsFactory f = p.createStatisticsFactory(in);
 			
@@ -310,22 +349,43 @@ public class ArgmlProcessor {
 				}
 				
 				
-				if(one!=null){
-					pttd = new TreeTraversalDistancePainter(p.env(), one);
-					pttd.paintDiagram();
-					if(p.env().flag("RecombinationDensityDistribution")) pttd.paintRecombinationDensity(order++);					
-					if(p.env().flag("SnpDensityDistribution")) pttd.paintSnpDensity(order++);
-					pttd.paintLegend();
-				}
+				final TreeTraversalDistancePainter pttd = new TreeTraversalDistancePainter(p.env(), one);
+				final TreeTraversalDistancePainter opttd = (two!=null) ? new TreeTraversalDistancePainter(p.env(), pttd, two) : null;
 				
-				if(two!=null){
-					TreeTraversalDistancePainter opttd = new TreeTraversalDistancePainter(p.env(), pttd, two);
-					opttd.paintCompareDiagram();
-					if(p.env().flag("RecombinationDensityDistribution")) opttd.paintRecombinationDensity(order++);
-					if(p.env().flag("SnpDensityDistribution")) opttd.paintSnpDensity(order++);
+				if(p.env().flag("ExportPlot")){
+					PlotData data = new PlotData(p.env(), pttd);
+					data.addLayer(pttd);
+					if(p.env().flag("RecombinationDensityDistribution")) data.addDistribution(pttd.recombinationDensity(), true, true, null);
+					if(p.env().flag("SnpDensityDistribution")) data.addDistribution(pttd.snpDensity(), true, false, null);
+					if(opttd!=null){
+						data.addLayer(opttd);
+						if(p.env().flag("RecombinationDensityDistribution")) data.addDistribution(opttd.recombinationDensity(), true, true, null);
+						if(p.env().flag("SnpDensityDistribution")) data.addDistribution(opttd.snpDensity(), true, false, null);
+					}
+					data.write(p.outputFile());
+					p.env().log().printBenchmark("write " + data);
+					
+				} else {
+					out = p.imageOutputStream();
+					StripImage diagram = new StripImage(p.env(), pttd.width(), pttd.height(), stripHeight(p)){
+						protected void paint(BufferedImage strip, int top) throws NaturalSetException {
+							int order = 0;
+							pttd.paintOn(strip, top);
+							pttd.paintDiagram();
+							if(env().flag("RecombinationDensityDistribution")) pttd.paintRecombinationDensity(order++);					
+							if(env().flag("SnpDensityDistribution")) pttd.paintSnpDensity(order++);
+							pttd.paintLegend();
+							
+							if(opttd!=null){
+								opttd.paintOn(pttd);
+								opttd.paintCompareDiagram();
+								if(env().flag("RecombinationDensityDistribution")) opttd.paintRecombinationDensity(order++);
+								if(env().flag("SnpDensityDistribution")) opttd.paintSnpDensity(order++);
+							}
+						}
+					};
+					diagram.write(out);
 				}
-				
-				pttd.write(out);
 								
 			} finally { 
 				if(in!=null) in.close();
@@ -473,28 +533,45 @@ public class ArgmlProcessor {
 					p.env().log().printInfo(sb.toString());
 				}
 
-				out = p.imageOutputStream();
-				TreeTraversalDistancePainter pttd = null;
-				int order = 0;
-				
-				if(one!=null){
-					pttd = new TreeTraversalDistancePainter(p.env(), one);
-					pttd.paintDiagram();
-					if(p.env().flag("RecombinationDensityDistribution")) pttd.paintRecombinationDensity(order++);					
-					if(p.env().flag("SnpDensityDistribution")) pttd.paintSnpDensity(order++);
-					pttd.paintLegend();
-				}
+				final TreeTraversalDistancePainter pttd = new TreeTraversalDistancePainter(p.env(), one);
+				final TreeTraversalDistancePainter opttd = (two!=null) ? new TreeTraversalDistancePainter(p.env(), pttd, two) : null;
+				final boolean[] osignificant = significant;
 				
-				if(two!=null){
-					TreeTraversalDistancePainter opttd = new TreeTraversalDistancePainter(p.env(), pttd, two);
-					opttd.paintCompareDiagram();
-					if(p.env().flag("RecombinationDensityDistribution")) opttd.paintRecombinationDensity(order++, significant);
-					if(p.env().flag("SnpDensityDistribution")) opttd.paintSnpDensity(order++);
+				if(p.env().flag("ExportPlot")){
+					PlotData data = new PlotData(p.env(), pttd);
+					data.addLayer(pttd);
+					if(p.env().flag("RecombinationDensityDistribution")) data.addDistribution(pttd.recombinationDensity(), true, true, null);
+					if(p.env().flag("SnpDensityDistribution")) data.addDistribution(pttd.snpDensity(), true, false, null);
+					if(opttd!=null){
+						data.addLayer(opttd);
+						if(p.env().flag("RecombinationDensityDistribution")) data.addDistribution(opttd.recombinationDensity(), true, true, osignificant);
+						if(p.env().flag("SnpDensityDistribution")) data.addDistribution(opttd.snpDensity(), true, false, null);
+					}
+					data.write(p.outputFile());
+					p.env().log().printBenchmark("write " + data);
+					
+				} else {
+					out = p.imageOutputStream();
+					StripImage diagram = new StripImage(p.env(), pttd.width(), pttd.height(), stripHeight(p)){
+						protected void paint(BufferedImage strip, int top) throws NaturalSetException {
+							int order = 0;
+							pttd.paintOn(strip, top);
+							pttd.paintDiagram();
+							if(env().flag("RecombinationDensityDistribution")) pttd.paintRecombinationDensity(order++);					
+							if(env().flag("SnpDensityDistribution")) pttd.paintSnpDensity(order++);
+							pttd.paintLegend();
+							
+							if(opttd!=null){
+								opttd.paintOn(pttd);
+								opttd.paintCompareDiagram();
+								if(env().flag("RecombinationDensityDistribution")) opttd.paintRecombinationDensity(order++, osignificant);
+								if(env().flag("SnpDensityDistribution")) opttd.paintSnpDensity(order++);
+							}
+						}
+					};
+					diagram.write(out);
+					p.env().log().printBenchmark("write " + out);
 				}
-				
-				
-				pttd.write(out);
-				p.env().log().printBenchmark("write " + out);
 								
 			} finally {
 				if(out!=null) out.close();
@@ -508,30 +585,54 @@ public class ArgmlProcessor {
 			TextInput in = null;
 			TextInput oin = null;
 			ImageOutputStream out = null;
-			int order = 0;
 
 			try {
 				in = p.textInput();
 				HaplotypeSet hs = p.createHaplotypeSet(in);
-				out = p.imageOutputStream();
-				RSquarePlotPainter ldp = new RSquarePlotPainter(p.env(), hs);
-				ldp.paintDiagram();
-				if(p.env().flag("MinorAlleleDensityDistribution")) ldp.paintMinorAlleleDensity(order++);
-				if(p.env().flag("SnpDensityDistribution")) ldp.paintSnpDensity(order++);
-
-				ldp.drawLegend();
+				final RSquarePlotPainter ldp = new RSquarePlotPainter(p.env(), hs);
+				RSquarePlotPainter other = null;
 				
 				if(p.env().stringPropertyExist("Other")) {
 					oin = new TextInput(p.env(), p.env().stringProperty("Other"));
 					HaplotypeSet ohs = p.createHaplotypeSet(oin);
-					RSquarePlotPainter oldp = new RSquarePlotPainter(p.env(), ldp, ohs);
-					oldp.paintCompareDiagram();
-					if(p.env().flag("MinorAlleleDensityDistribution")) oldp.paintMinorAlleleDensity(order++);
-					if(p.env().flag("SnpDensityDistribution")) oldp.paintSnpDensity(order++);
-
+					other = new RSquarePlotPainter(p.env(), ldp, ohs);
 				}
+				final RSquarePlotPainter oldp = other;
 				
-				ldp.write(out);
+				if(p.env().flag("ExportPlot")){
+					PlotData data = new PlotData(p.env(), ldp);
+					data.addLayer(ldp);
+					if(p.env().flag("MinorAlleleDensityDistribution")) data.addDistribution(ldp.minorAlleleDensity(), true, false, null);
+					if(p.env().flag("SnpDensityDistribution")) data.addDistribution(ldp.snpDensity(), true, false, null);
+					if(oldp!=null){
+						data.addLayer(oldp);
+						if(p.env().flag("MinorAlleleDensityDistribution")) data.addDistribution(oldp.minorAlleleDensity(), true, false, null);
+						if(p.env().flag("SnpDensityDistribution")) data.addDistribution(oldp.snpDensity(), true, false, null);
+					}
+					data.write(p.outputFile());
+					p.env().log().printBenchmark("write " + data);
+					
+				} else {
+					out = p.imageOutputStream();
+					StripImage diagram = new StripImage(p.env(), ldp.width(), ldp.height(), stripHeight(p)){
+						protected void paint(BufferedImage strip, int top) throws NaturalSetException {
+							int order = 0;
+							ldp.paintOn(strip, top);
+							ldp.paintDiagram();
+							if(env().flag("MinorAlleleDensityDistribution")) ldp.paintMinorAlleleDensity(order++);
+							if(env().flag("SnpDensityDistribution")) ldp.paintSnpDensity(order++);
+							ldp.drawLegend();
+							
+							if(oldp!=null){
+								oldp.paintOn(ldp);
+								oldp.paintCompareDiagram();
+								if(env().flag("MinorAlleleDensityDistribution")) oldp.paintMinorAlleleDensity(order++);
+								if(env().flag("SnpDensityDistribution")) oldp.paintSnpDensity(order++);
+							}
+						}
+					};
+					diagram.write(out);
+				}
 								
 			} finally { 
 				if(in!=null) in.close();
@@ -546,14 +647,12 @@ public class ArgmlProcessor {
 			XmlInput pttdin = null;
 			TextInput ldin = null;
 			ImageOutputStream out = null;
-			int order = 0;
 
 			try {
 				ldin = new TextInput(p.env(), p.env().stringProperty("Other"));
 				HaplotypeSet hs = p.createHaplotypeSet(ldin);
 				
 				pttdin = p.xmlInput();
-				out = p.imageOutputStream();
 				Statistics one = null;
 				
 				StatisticsFactory f = p.createStatisticsFactory(pttdin);
@@ -563,17 +662,39 @@ public class ArgmlProcessor {
 						one = s;
 				}
 				
-				TreeTraversalDistancePainter pttd = new TreeTraversalDistancePainter(p.env(), one);
-				pttd.paintDiagram();
-				if(p.env().flag("RecombinationDensityDistribution")) pttd.paintRecombinationDensity(order++);
-				if(p.env().flag("SnpDensityDistribution")) pttd.paintSnpDensity(order++);
-				pttd.paintLegend();
-				RSquarePlotPainter ldp = new RSquarePlotPainter(p.env(), pttd, hs);
-				ldp.paintCompareDiagram();
-				if(p.env().flag("MinorAlleleDensityDistribution")) ldp.paintMinorAlleleDensity(order++);
-				if(p.env().flag("SnpDensityDistribution")) ldp.paintSnpDensity(order++);
-
-				pttd.write(out);
+				final TreeTraversalDistancePainter pttd = new TreeTraversalDistancePainter(p.env(), one);
+				final RSquarePlotPainter ldp = new RSquarePlotPainter(p.env(), pttd, hs);
+				
+				if(p.env().flag("ExportPlot")){
+					PlotData data = new PlotData(p.env(), pttd);
+					data.addLayer(pttd);
+					data.addLayer(ldp);
+					if(p.env().flag("RecombinationDensityDistribution")) data.addDistribution(pttd.recombinationDensity(), true, true, null);
+					if(p.env().flag("SnpDensityDistribution")) data.addDistribution(pttd.snpDensity(), true, false, null);
+					if(p.env().flag("MinorAlleleDensityDistribution")) data.addDistribution(ldp.minorAlleleDensity(), true, false, null);
+					if(p.env().flag("SnpDensityDistribution")) data.addDistribution(ldp.snpDensity(), true, false, null);
+					data.write(p.outputFile());
+					p.env().log().printBenchmark("write " + data);
+					
+				} else {
+					out = p.imageOutputStream();
+					StripImage diagram = new StripImage(p.env(), pttd.width(), pttd.height(), stripHeight(p)){
+						protected void paint(BufferedImage strip, int top) throws NaturalSetException {
+							int order = 0;
+							pttd.paintOn(strip, top);
+							pttd.paintDiagram();
+							if(env().flag("RecombinationDensityDistribution")) pttd.paintRecombinationDensity(order++);
+							if(env().flag("SnpDensityDistribution")) pttd.paintSnpDensity(order++);
+							pttd.paintLegend();
+							
+							ldp.paintOn(pttd);
+							ldp.paintCompareDiagram();
+							if(env().flag("MinorAlleleDensityDistribution")) ldp.paintMinorAlleleDensity(order++);
+							if(env().flag("SnpDensityDistribution")) ldp.paintSnpDensity(order++);
+						}
+					};
+					diagram.write(out);
+				}
 								
 			} finally { 
 				if(ldin!=null) ldin.close();
@@ -583,6 +704,118 @@ public class ArgmlProcessor {
 		}
 	}	
 	
+	private static void pyramid(ProcessManager p) throws Exception{
+		if(p.env().instruction().getName().equals("pyramid")){
+			if(p.env().stringProperty("Statistic").equals("ld")){
+				TextInput in = null;
+				try {
+					in = p.textInput();
+					HaplotypeSet hs = p.createHaplotypeSet(in);
+					TilePyramid pyramid = TilePyramid.build(p.env(), new RSquarePlotPainter(p.env(), hs), p.outputFile());
+					p.env().log().printBenchmark("write " + pyramid);
+					
+				} finally { 
+					if(in!=null) in.close();
+				}
+				
+			} else if(p.env().stringProperty("Statistic").equals("pttd") && !p.env().stringPropertyExist("Name")){
+				p.env().log().printError("A pttd pyramid needs the name of the statistics to plot, use --n");
+				
+			} else if(p.env().stringProperty("Statistic").equals("pttd")){
+				XmlInput in = null;
+				try {
+					in = p.xmlInput();
+					Statistics one = null;
+					
+					StatisticsFactory f = p.createStatisticsFactory(in);
+					for(Statistics s : f){
+						if(s.name().equals(p.env().stringProperty("Name"))) 
+							one = s;
+					}
+					TilePyramid pyramid = TilePyramid.build(p.env(), new TreeTraversalDistancePainter(p.env(), one), p.outputFile());
+					p.env().log().printBenchmark("write " + pyramid);
+					
+				} finally { 
+					if(in!=null) in.close();
+				}
+				
+			} else {
+				p.env().log().printError("Unknown pyramid statistic " + p.env().stringProperty("Statistic"));
+			}
+		}
+	}
+	
+	private static void pyramidPlot(ProcessManager p) throws Exception{
+		if(p.env().instruction().getName().equals("pyramid-plot")){
+			ImageOutputStream out = null;
+			
+			try {
+				TilePyramid pyramid = TilePyramid.open(p.env(), p.inputFile());
+				out = p.imageOutputStream();
+				final PyramidPlotPainter pp = new PyramidPlotPainter(p.env(), pyramid, p.env().integerProperty("Level"));
+				
+				StripImage diagram = new StripImage(p.env(), pp.width(), pp.height(), stripHeight(p)){
+					protected void paint(BufferedImage strip, int top) throws NaturalSetException {
+						pp.paintOn(strip, top);
+						pp.paintDiagram();
+					}
+				};
+				diagram.write(out);
+								
+			} finally { 
+				if(out!=null) out.close();
+			}
+		}
+	}
+	
+	private static void render(ProcessManager p) throws Exception{
+		if(p.env().instruction().getName().equals("render")){
+			ImageOutputStream out = null;
+			
+			try {
+				PlotData data = PlotData.open(p.env(), p.inputFile());
+				out = p.imageOutputStream();
+				final PlotDataPainter top = new PlotDataPainter(p.env(), data, 0);
+				final PlotDataPainter bottom = (data.layers() > 1) ? new PlotDataPainter(p.env(), top, data, 1) : null;
+				
+				StripImage diagram = new StripImage(p.env(), top.width(), top.height(), stripHeight(p)){
+					protected void paint(BufferedImage strip, int y) throws NaturalSetException {
+						top.paintOn(strip, y);
+						top.paintDiagram();
+						top.paintDistributions();
+						top.paintLegend();
+						
+						if(bottom!=null){
+							bottom.paintOn(top);
+							bottom.paintCompareDiagram();
+						}
+					}
+				};
+				diagram.write(out);
+								
+			} finally { 
+				if(out!=null) out.close();
+			}
+		}
+	}
+	
+	private static void batch(ProcessManager p) throws Exception{
+		if(p.env().instruction().getName().equals("batch")){
+			TextInput in = null;
+			
+			try {
+				in = new TextInput(p.env(), p.env().stringProperty("Manifest"));
+				PlotBatch batch = new PlotBatch(p.env());
+				batch.read(in);
+				int failed = batch.run();
+				if(failed > 0) p.env().log().printError(failed + " plots failed");
+								
+			} finally { 
+				if(in!=null) in.close();
+			}
+		}
+	}
+	
 	private static void summarizeStatistics(ProcessManager p) throws Exception{
 		if(p.env().instruction().getName().equals("ssummarize")){
 			XmlInput in = null;
@@ -794,12 +1027,105 @@ public class ArgmlProcessor {
 				final InputParser ip = new InputParser();
 				ip.parseFile(p.env(), in);
 				
-				final ArgBuilderForUnphasedData ab = new ArgBuilderForUnphasedData(p.env(), out);
-				ab.buildArgs((int)Math.floor(p.env().numericProperty("SampleSize")),ip);
-				ab.printArgs();
+				final int samplesize = (int)Math.floor(p.env().numericProperty("SampleSize"));
+				final int window = p.env().integerProperty("Window");
+				if(window > 0 && window < ip.getNumberOfMarkers()){
+					final WindowedArgBuilder wb = new WindowedArgBuilder(p.env(), out);
+					wb.buildArgs(samplesize, ip, window, p.env().integerProperty("Overlap"), p.env().threads());
+					p.env().log().printBenchmark("inferring " + wb.getWindows().length + " windows of " + window + " markers");
+					wb.printArgs();
+					
+				} else {
+					final ArgBuilderForUnphasedData ab = new ArgBuilderForUnphasedData(p.env(), out);
+					ab.buildArgs(samplesize, ip);
+					ab.printArgs();
+				}
+				
+			} catch (ExecutionException e) {
+				throw new NaturalSetException("Inference failed", e.getCause());
+			} finally {
+				if(in!=null) in.close();
+				if(out!=null) out.close();
+			}			
+		}
+	}
+
+	private static void margaritaMapping(ProcessManager p) throws Exception{
+		if(p.env().instruction().getName().equals("map")){
+			TextInput in = null;
+			TextInput hf = null;
+			TextOutput out = null;
+			
+			try {
+				hf = new TextInput(p.env(), p.env().stringProperty("Haplotypes"));
+				final InputParser ip = new InputParser();
+				ip.parseFile(p.env(), hf);
+				p.env().log().printBenchmark("parsing " + hf);
+				
+				in = p.textInput();
+				final ArgMapper mapper = new ArgMapper(new ArgReader(in), ip);
+				p.env().log().printBenchmark("reading " + in);
+				
+				Integer seed = p.env().integerProperty("Seed");
+				if(seed == null) seed = new Random().nextInt();
+				p.env().log().printInfo("permutation seed " + seed);
+				
+				out = p.textOutput();
+				mapper.mapWithSmartPermutations(
+						p.env().integerProperty("Permutations"), 
+						p.env().integerProperty("PermutationCutoff"), 
+						p.env().numericProperty("Alpha"), 
+						seed, 
+						out.writer(), 
+						p.env().threads());
+				p.env().log().printBenchmark("mapping " + out);
+				
+			} catch (ExecutionException e) {
+				throw new NaturalSetException("Mapping failed", e.getCause());
+			} finally {
+				if(in!=null) in.close();
+				if(hf!=null) hf.close();
+				if(out!=null) out.close();
+			}			
+		}
+	}
+
+	private static void margaritaImputation(ProcessManager p) throws Exception{
+		if(p.env().instruction().getName().equals("impute")){
+			TextInput in = null;
+			TextInput hf = null;
+			TextOutput out = null;
+			TextOutput consensus = null;
+			
+			try {
+				hf = new TextInput(p.env(), p.env().stringProperty("Haplotypes"));
+				final InputParser ip = new InputParser();
+				ip.parseFile(p.env(), hf);
+				p.env().log().printBenchmark("parsing " + hf);
+				
+				in = p.textInput();
+				out = p.textOutput();
+				if(p.env().stringPropertyExist("Consensus")) {
+					consensus = new TextOutput(p.env(), p.env().stringProperty("Consensus"));
+				} else if(p.env().stringPropertyExist("Output")) {
+					consensus = new TextOutput(p.env(), p.env().stringProperty("Output") + ".consensusimputation");
+				} else {
+					consensus = out;
+				}
+				
+				final Imputer imputer = new Imputer(ip);
+				int imputed = imputer.imputeArgs(new ArgReader(in), out.writer(), consensus.writer(), p.env().threads());
+				if(imputer.getNumberOfConflicts() > 0) {
+					p.env().log().printError("ARG is not correct, " + imputer.getNumberOfConflicts() + " coalesced markers join different alleles");
+				}
+				p.env().log().printBenchmark("imputing " + imputed + " ARGs to " + out);
 				
+			} catch (ExecutionException e) {
+				throw new NaturalSetException("Imputation failed", e.getCause());
 			} finally {
 				if(in!=null) in.close();
+				if(hf!=null) hf.close();
+				if(consensus!=null && consensus!=out) consensus.close();
 				if(out!=null) out.close();
 			}			
 		}
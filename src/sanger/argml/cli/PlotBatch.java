@@ -0,0 +1,306 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.cli;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.stream.ImageOutputStream;
+import javax.xml.stream.XMLStreamException;
+
+import sanger.argml.drawing.PlotPainter;
+import sanger.argml.drawing.RSquarePlotPainter;
+import sanger.argml.drawing.TreeTraversalDistancePainter;
+import sanger.argml.environment.Environment;
+import sanger.argml.environment.Environmental;
+import sanger.argml.environment.UnknownCommandException;
+import sanger.argml.graph.model.HaplotypeReader;
+import sanger.argml.graph.model.HaplotypeSet;
+import sanger.argml.graph.model.Statistics;
+import sanger.argml.graph.model.StatisticsFactory;
+import sanger.argml.io.ImageOutput;
+import sanger.argml.io.TextInput;
+import sanger.argml.io.XmlInput;
+import sanger.math.set.NaturalSet;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * Renders a manifest of <code>pttd</code> and <code>ld</code> plots.
+ * <p>Every manifest line is a plot command without the <code>foliage</code> prefix, for instance 
+ * <code>pttd --n s --tl 300 --sl 100 --sh 900 --rdd --o s.100.png</code>. Blank lines and lines starting with 
+ * <code>#</code> are ignored. Options missing from a line are read from the batch command, so options shared 
+ * by all plots, like the input file or the colors, can be given once.</p>
+ * <p>Every input file is parsed once, and every snp window of a data set is clipped and prepared once 
+ * and shared by all the plots drawn from it, along with the color scale and the tile layouts. 
+ * Plots are painted concurrently, one plot per worker thread, and encoded to png on a separate thread, 
+ * with at most two plots per worker waiting to be encoded.
+ * Since data sets are shared, the linkage band of <code>ld</code> plots is set by the <code>MaxDistance</code> 
+ * option of the batch command.</p>
+ * @author Lior Galanti
+ */
+public class PlotBatch extends Environmental {
+	private ArrayList<Job> jobs;
+	private HashMap<String, HashMap<String, Statistics>> statistics;
+	private HashMap<String, HaplotypeSet> haplotypes;
+	private HashMap<String, Object> windows;
+	
+	public PlotBatch(Environment env){
+		super(env);
+		jobs = new ArrayList<Job>();
+		statistics = new HashMap<String, HashMap<String, Statistics>>();
+		haplotypes = new HashMap<String, HaplotypeSet>();
+		windows = new HashMap<String, Object>();
+	}
+	
+	/**
+	 * Reads the plots of a manifest and prepares the data they are drawn from.
+	 * @param manifest
+	 * @throws IOException
+	 * @throws NaturalSetException
+	 * @throws XMLStreamException
+	 * @throws UnknownCommandException if a line is not a <code>pttd</code> or <code>ld</code> command.
+	 */
+	public void read(TextInput manifest) throws IOException, NaturalSetException, XMLStreamException, UnknownCommandException{
+		for(String line = manifest.reader().readLine(); line != null; line = manifest.reader().readLine()){
+			line = line.trim();
+			if(line.length() > 0 && !line.startsWith("#")){
+				// a plot is painted by a single thread unless the line asks for more
+				ProcessManager p = new ProcessManager(new Environment(env(), line + " --th 1"));
+				String instruction = p.env().instruction().getName();
+				if(!instruction.equals("pttd") && !instruction.equals("ld")){
+					throw new UnknownCommandException("error: batch only renders pttd and ld plots, not " + line);
+				}
+				
+				Job job = new Job(p, line);
+				if(instruction.equals("pttd")){
+					job.one = statistics(p, p.env().stringProperty("Name"));
+					if(p.env().stringPropertyExist("Other")) job.two = statistics(p, p.env().stringProperty("Other"));
+				} else {
+					job.one = haplotypes(p, p.env().stringProperty("Input"));
+					if(p.env().stringPropertyExist("Other")) job.two = haplotypes(p, p.env().stringProperty("Other"));
+				}
+				jobs.add(job);
+			}
+		}
+		env().log().printBenchmark("read " + jobs.size() + " plots");
+	}
+	
+	/**
+	 * @return The statistics named <code>name</code> in the input file of a plot, clipped to the snp window of the plot.
+	 */
+	private Statistics statistics(ProcessManager p, String name) throws NaturalSetException, XMLStreamException, IOException{
+		String input = p.env().stringProperty("Input");
+		HashMap<String, Statistics> named = statistics.get(input);
+		if(named == null){
+			named = new HashMap<String, Statistics>();
+			XmlInput in = new XmlInput(env(), input);
+			try {
+				for(Statistics s : new StatisticsFactory(in, null)){
+					named.put(s.name(), s);
+				}
+			} finally {
+				in.close();
+			}
+			statistics.put(input, named);
+			env().log().printBenchmark("parsed " + named.size() + " statistics from " + input);
+		}
+		
+		Statistics s = named.get(name);
+		if(s == null) throw new NaturalSetException("No statistics named " + name + " in " + input);
+		NaturalSet window = p.filterSNP(s.snpDomain());
+		String key = input + "\t" + name + "\t" + window.min() + "\t" + window.max();
+		Statistics clip = (Statistics)windows.get(key);
+		if(clip == null){
+			clip = (window.min() == s.snpDomain().min() && window.max() == s.snpDomain().max()) ? s : Statistics.clip(s, window);
+			clip.snpDomain().members();
+			windows.put(key, clip);
+		}
+		return clip;
+	}
+	
+	/**
+	 * @return The haplotypes of a file, clipped to the snp window of the plot, with their linkage computed.
+	 */
+	private HaplotypeSet haplotypes(ProcessManager p, String input) throws NaturalSetException, IOException{
+		HaplotypeSet hs = haplotypes.get(input);
+		if(hs == null){
+			HaplotypeReader reader = new HaplotypeReader(env(), new TextInput(env(), input));
+			try {
+				hs = reader.readHaplotypeSet();
+			} finally {
+				reader.close();
+			}
+			haplotypes.put(input, hs);
+			env().log().printBenchmark("parsed " + hs.snpDomain().cardinality() + " snps from " + input);
+		}
+		
+		NaturalSet window = p.filterSNP(hs.snpDomain());
+		String key = input + "\t" + window.min() + "\t" + window.max();
+		HaplotypeSet clip = (HaplotypeSet)windows.get(key);
+		if(clip == null){
+			clip = (window.min() == hs.snpDomain().min() && window.max() == hs.snpDomain().max()) ? hs : HaplotypeSet.clipSnpDomain(hs, window);
+			// lazily computed statistics are made ready before the plots are painted concurrently
+			clip.snpDomain().members();
+			clip.marginalAlleleFrequencies();
+			clip.linkageMatrix();
+			windows.put(key, clip);
+		}
+		return clip;
+	}
+	
+	/**
+	 * Paints and writes all plots. A failed plot is reported and does not stop the others.
+	 * @return The number of plots that failed.
+	 * @throws InterruptedException
+	 */
+	public int run() throws InterruptedException{
+		int threads = Math.max(1, Math.min(env().threads(), jobs.size()));
+		ExecutorService painters = Executors.newFixedThreadPool(threads);
+		final ExecutorService encoder = Executors.newSingleThreadExecutor();
+		final Semaphore pending = new Semaphore(2 * threads);
+		
+		ArrayList<Future<Future<Object>>> results = new ArrayList<Future<Future<Object>>>(jobs.size());
+		try {
+			for(final Job job : jobs){
+				results.add(painters.submit(new Callable<Future<Object>>(){
+					public Future<Object> call() throws Exception {
+						pending.acquire();
+						final BufferedImage image;
+						try {
+							image = job.paint();
+						} catch (Exception e) {
+							pending.release();
+							throw e;
+						}
+						return encoder.submit(new Callable<Object>(){
+							public Object call() throws Exception {
+								try {
+									job.write(image);
+								} finally {
+									pending.release();
+								}
+								return null;
+							}
+						});
+					}
+				}));
+			}
+			
+			int failed = 0;
+			for(int i=0; i<results.size(); i++){
+				try {
+					results.get(i).get().get();
+					env().log().printBenchmark("wrote " + jobs.get(i));
+				} catch (ExecutionException e) {
+					failed++;
+					env().log().printError("failed " + jobs.get(i) + ": " + e.getCause());
+				}
+			}
+			return failed;
+			
+		} finally {
+			painters.shutdown();
+			encoder.shutdown();
+		}
+	}
+	
+	private static class Job {
+		private ProcessManager p;
+		private String line;
+		private Object one;
+		private Object two;
+		
+		private Job(ProcessManager p, String line){
+			this.p = p;
+			this.line = line;
+		}
+		
+		/**
+		 * Paints the plot the same way the <code>pttd</code> and <code>ld</code> commands do.
+		 */
+		private BufferedImage paint() throws NaturalSetException{
+			Environment env = p.env();
+			PlotPainter top = null;
+			BufferedImage image = null;
+			int order = 0;
+			
+			if(one instanceof Statistics){
+				TreeTraversalDistancePainter pttd = new TreeTraversalDistancePainter(env, (Statistics)one);
+				TreeTraversalDistancePainter opttd = (two!=null) ? new TreeTraversalDistancePainter(env, pttd, (Statistics)two) : null;
+				image = new BufferedImage(pttd.width(), pttd.height(), BufferedImage.TYPE_INT_ARGB);
+				pttd.paintOn(image, 0);
+				pttd.paintDiagram();
+				if(env.flag("RecombinationDensityDistribution")) pttd.paintRecombinationDensity(order++);
+				if(env.flag("SnpDensityDistribution")) pttd.paintSnpDensity(order++);
+				pttd.paintLegend();
+				
+				if(opttd!=null){
+					opttd.paintOn(pttd);
+					opttd.paintCompareDiagram();
+					if(env.flag("RecombinationDensityDistribution")) opttd.paintRecombinationDensity(order++);
+					if(env.flag("SnpDensityDistribution")) opttd.paintSnpDensity(order++);
+				}
+				top = pttd;
+				
+			} else {
+				RSquarePlotPainter ldp = new RSquarePlotPainter(env, (HaplotypeSet)one);
+				RSquarePlotPainter oldp = (two!=null) ? new RSquarePlotPainter(env, ldp, (HaplotypeSet)two) : null;
+				image = new BufferedImage(ldp.width(), ldp.height(), BufferedImage.TYPE_INT_ARGB);
+				ldp.paintOn(image, 0);
+				ldp.paintDiagram();
+				if(env.flag("MinorAlleleDensityDistribution")) ldp.paintMinorAlleleDensity(order++);
+				if(env.flag("SnpDensityDistribution")) ldp.paintSnpDensity(order++);
+				ldp.drawLegend();
+				
+				if(oldp!=null){
+					oldp.paintOn(ldp);
+					oldp.paintCompareDiagram();
+					if(env.flag("MinorAlleleDensityDistribution")) oldp.paintMinorAlleleDensity(order++);
+					if(env.flag("SnpDensityDistribution")) oldp.paintSnpDensity(order++);
+				}
+				top = ldp;
+			}
+			env.log().printBenchmark("painted " + top.width() + "x" + top.height() + " " + this);
+			return image;
+		}
+		
+		private void write(BufferedImage image) throws IOException{
+			ImageOutputStream out = p.imageOutputStream();
+			try {
+				new ImageOutput(p.env()).paint(image, out);
+			} finally {
+				out.close();
+			}
+		}
+		
+		public String toString(){
+			return line;
+		}
+	}
+}
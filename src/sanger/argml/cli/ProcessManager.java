@@ -52,6 +52,10 @@ public class ProcessManager extends Environmental{
 		super(new Environment(cmd));
 	}
 	
+	public ProcessManager(Environment env){
+		super(env);
+	}
+	
 	public TextOutput textOutput() throws IOException{
 		return env().stringPropertyExist("Output") ? new TextOutput(env(), env().stringProperty("Output")) : new TextOutput(env(), System.out);
 	}
@@ -71,6 +75,16 @@ public class ProcessManager extends Environmental{
 	}
 	
 	
+	public File outputFile(){
+		File file = new File(env().outbase(), env().stringProperty("Output"));
+		if(!file.getParentFile().exists()) file.getParentFile().mkdirs();
+		return file;
+	}
+	
+	public File inputFile(){
+		return new File(env().inbase(), env().stringProperty("Input"));
+	}
+	
 	public ImageOutputStream imageOutputStream() throws IOException{
 		ImageOutputStream out = null;
 		if(env().stringPropertyExist("Output")){
@@ -120,7 +134,8 @@ public class ProcessManager extends Environmental{
 	public Statistics createEmptyStatistics(TextInput input) 
 		throws NaturalSetException, IOException {
 		
-		Statistics result = new Statistics(env(), env().stringProperty("Name"), new HaplotypeReader(env(), input));
+		Integer distance = env().integerProperty("MaxDistance");
+		Statistics result = new Statistics(env(), env().stringProperty("Name"), new HaplotypeReader(env(), input), distance == null ? 0 : distance);
 		result = Statistics.clip(result, filterSNP(result.snpDomain()));
 		return result;
 	}
@@ -30,19 +30,37 @@ import java.util.ArrayList;
 import sanger.argml.environment.Environment;
 
 
+/**
+ * Maps values in <code>[0, 1]</code> to the colors of the jet scale read from the <code>jcols</code> resource. 
+ * The resource is read once and the scale is shared by all instances.
+ * @author Lior Galanti
+ */
 public class JetColorMap {
+	private static ArrayList<Color> sharedScale;
+	private static int[] sharedArgb;
+	
 	private ArrayList<Color> scale;
+	private int[] argb;
 	private int size;
 	private static final Color offTheChartColor = new Color(0x00FFFFFF, true);
 	private static final String offTheChartString = Integer.toHexString(0x00FFFFFF);
 	
 	public JetColorMap(Environment env){
+		synchronized(JetColorMap.class){
+			if(sharedScale == null) read(env);
+			scale = (sharedScale != null) ? sharedScale : new ArrayList<Color>();
+			argb = (sharedArgb != null) ? sharedArgb : new int[0];
+		}
+		size = scale.size() - 1; 
+	}
+	
+	private static void read(Environment env){
 		InputStream stream = null;
 		BufferedReader reader = null;
 
-		scale = new ArrayList<Color>();
+		ArrayList<Color> scale = new ArrayList<Color>();
 		try {
-			stream = this.getClass().getResourceAsStream("jcols");
+			stream = JetColorMap.class.getResourceAsStream("jcols");
 			reader = new BufferedReader(new InputStreamReader(stream));
 			
 			String line = reader.readLine();
@@ -51,7 +69,13 @@ public class JetColorMap {
 				line = reader.readLine();
 			}
 			scale.trimToSize();
-			size = scale.size() - 1; 
+			
+			int[] argb = new int[scale.size()];
+			for(int i=0; i<argb.length; i++){
+				argb[i] = scale.get(i).getRGB();
+			}
+			sharedScale = scale;
+			sharedArgb = argb;
 		
 		} catch (IOException e) {
 			env.log().printError(e);
@@ -87,6 +111,25 @@ public class JetColorMap {
 		return value;
 	}
 
+	/**
+	 * Maps a value to a packed ARGB pixel, matching {@link #mapToColor(double)} without allocating.
+	 * @param x
+	 * @return The <code>getRGB()</code> value of the mapped color.
+	 */
+	public int mapToARGB(double x){
+		return (x<=1.0) ? argb[(int)Math.round(x * size)] : offTheChartColor.getRGB();
+	}
+	
+	/**
+	 * @return True if every color on the scale is fully opaque.
+	 */
+	public boolean opaque(){
+		boolean result = true;
+		for(int i=0; i<argb.length && result; i++){
+			result = (argb[i] >>> 24) == 0xFF;
+		}
+		return result;
+	}
 	
 	public ArrayList<Color> scale() {
 		return scale;
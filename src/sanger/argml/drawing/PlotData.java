@@ -0,0 +1,405 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.drawing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sanger.argml.environment.Environment;
+import sanger.argml.environment.Environmental;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * The computed content of a heat plot diagram, stored in a file so it can be painted again without recomputing it.
+ * <p>The file holds the snp positions and tile size the tiles are rebuilt from, the legend, every distribution 
+ * plotted under the diagram with its significance, and the tile correlation matrix of every painter in the diagram. 
+ * The first matrix is painted as the top triangle and the second, if any, as the bottom triangle. 
+ * Matrices are the lower triangle of the tile correlations row by row, limited to the tile band in a banded plot, 
+ * and are written last so they can be streamed while they are computed and memory mapped when read. 
+ * All values are big endian.</p>
+ * <p>A file is written with {@link #write(File)} after adding the layers and distributions, and painted by a {@link PlotDataPainter}.</p>
+ * @author Lior Galanti
+ */
+public class PlotData extends Environmental {
+	private static final int MAGIC = 0x46504C54;
+	private static final int VERSION = 1;
+	private static final long SEGMENT = 1L << 30;
+	private static final int BATCH = 64;
+	
+	private static final int MEAN = 1;
+	private static final int HOTSPOT = 2;
+	private static final int SIGNIFICANCE = 4;
+	
+	private double tile;
+	private int snpMin;
+	private int[] markerPositions;
+	private int bpMin;
+	private int bpMax;
+	private int size;
+	private int band;
+	private int layers;
+	private ArrayList<String> legend;
+	private ArrayList<double[]> distributions;
+	private ArrayList<Integer> flags;
+	private ArrayList<boolean[]> significance;
+	
+	private ArrayList<PlotPainter> painters;
+	private long valueOffset;
+	private MappedByteBuffer[] segments;
+	
+	private PlotData(Environment env){
+		super(env);
+		legend = new ArrayList<String>();
+		distributions = new ArrayList<double[]>();
+		flags = new ArrayList<Integer>();
+		significance = new ArrayList<boolean[]>();
+		painters = new ArrayList<PlotPainter>();
+	}
+	
+	/**
+	 * Constructs an empty plot with the tiles and legend of a painter.
+	 * @param env The runtime enviroment.
+	 * @param painter The painter of the top triangle.
+	 * @throws NaturalSetException
+	 */
+	public PlotData(Environment env, PlotPainter painter) throws NaturalSetException{
+		this(env);
+		tile = painter.tile;
+		snpMin = painter.snpDomain().min();
+		markerPositions = new int[painter.snpDomain().closureCardinality()];
+		for(int i : painter.snpDomain().members()){
+			markerPositions[i - snpMin] = painter.coordinate(i);
+		}
+		bpMin = painter.basePairDomain().min();
+		bpMax = painter.basePairDomain().max();
+		size = painter.tiles.size();
+		band = painter.tileBand();
+		legend.addAll(painter.legend());
+	}
+	
+	private static long triangle(long n){
+		return n * (n + 1) / 2;
+	}
+	
+	/**
+	 * @return The number of stored values preceding row <code>p</code> of a matrix.
+	 */
+	private long row(int p){
+		return (band < 0 || p <= band) ? triangle(p) : triangle(band + 1) + (long)(p - band - 1) * (band + 1);
+	}
+	
+	/**
+	 * Adds the tile correlations of a painter as the next matrix. 
+	 * The correlations are computed when the file is written.
+	 * @param painter A painter with the same tiles as the painter the plot was constructed with.
+	 * @throws NaturalSetException if the painter has a different number of tiles.
+	 */
+	public void addLayer(PlotPainter painter) throws NaturalSetException{
+		if(painter.tiles.size() != size) throw new NaturalSetException("Plot layers must have the same tiles");
+		painters.add(painter);
+		layers++;
+	}
+	
+	/**
+	 * Adds a distribution plotted under the diagram, in painting order.
+	 * @param values A value for every tile.
+	 * @param mean Plot the mean line of the distribution.
+	 * @param hotspot Plot the hotspot line of the distribution.
+	 * @param significant Tiles whose bar is painted as significant, or <code>null</code>.
+	 */
+	public void addDistribution(double[] values, boolean mean, boolean hotspot, boolean[] significant){
+		distributions.add(values);
+		flags.add((mean ? MEAN : 0) | (hotspot ? HOTSPOT : 0) | (significant != null ? SIGNIFICANCE : 0));
+		significance.add(significant);
+	}
+	
+	/**
+	 * Computes the tile correlations of every layer and writes the plot to a file.
+	 * Rows are computed in batches distributed between worker threads and written in order, 
+	 * so only a batch of rows is held in memory.
+	 * @param file The file to write.
+	 * @throws IOException
+	 * @throws NaturalSetException
+	 */
+	public void write(File file) throws IOException, NaturalSetException{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, env().threads()));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(tile);
+			out.writeInt(snpMin);
+			out.writeInt(bpMin);
+			out.writeInt(bpMax);
+			out.writeInt(markerPositions.length);
+			for(int m : markerPositions){ out.writeInt(m); }
+			out.writeInt(size);
+			out.writeInt(band);
+			out.writeInt(legend.size());
+			for(String line : legend){ out.writeUTF(line); }
+			out.writeInt(distributions.size());
+			for(int d=0; d<distributions.size(); d++){
+				out.writeInt(flags.get(d));
+				for(int p=0; p<size; p++){ out.writeDouble(distributions.get(d)[p]); }
+				if(significance.get(d) != null){
+					for(int p=0; p<size; p++){ out.writeBoolean(significance.get(d)[p]); }
+				}
+			}
+			out.writeInt(layers);
+			
+			for(final PlotPainter painter : painters){
+				// Lazily computed statistics are made ready before the workers start.
+				painter.correlationBand();
+				painter.correlation(painter.tiles.get(0), new double[1], 0, 0);
+				
+				for(int batch=0; batch<size; batch+=BATCH){
+					ArrayList<Future<double[]>> rows = new ArrayList<Future<double[]>>(BATCH);
+					for(int r=batch; r<Math.min(size, batch + BATCH); r++){
+						final int p = r;
+						rows.add(pool.submit(new Callable<double[]>(){
+							public double[] call() throws NaturalSetException {
+								int lo = (band < 0) ? 0 : Math.max(0, p - band);
+								double[] row = new double[size];
+								painter.correlation(painter.tiles.get(p), row, lo, p);
+								double[] values = new double[p - lo + 1];
+								System.arraycopy(row, lo, values, 0, values.length);
+								return values;
+							}
+						}));
+					}
+					for(Future<double[]> row : rows){
+						for(double v : row.get()){ out.writeDouble(v); }
+					}
+				}
+				env().log().printBenchmark("computed plot layer with " + size + " tiles");
+			}
+			
+		} catch (InterruptedException e) {
+			throw new NaturalSetException("Plot computation interrupted", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof NaturalSetException) throw (NaturalSetException)e.getCause();
+			throw new NaturalSetException("Plot computation failed", e.getCause());
+		} finally {
+			pool.shutdown();
+			out.close();
+		}
+	}
+	
+	/**
+	 * Opens a plot file for painting.
+	 * @param env The runtime enviroment.
+	 * @param file A file written by {@link #write(File)}.
+	 * @return The plot, with its matrices mapped from <code>file</code>.
+	 * @throws IOException
+	 */
+	public static PlotData open(Environment env, File file) throws IOException{
+		PlotData data = new PlotData(env);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException(file + " is not a plot file");
+			data.tile = in.readDouble();
+			data.snpMin = in.readInt();
+			data.bpMin = in.readInt();
+			data.bpMax = in.readInt();
+			data.markerPositions = new int[in.readInt()];
+			for(int i=0; i<data.markerPositions.length; i++){ data.markerPositions[i] = in.readInt(); }
+			data.size = in.readInt();
+			data.band = in.readInt();
+			for(int l=in.readInt(); l>0; l--){ data.legend.add(in.readUTF()); }
+			for(int d=in.readInt(); d>0; d--){
+				int flag = in.readInt();
+				double[] values = new double[data.size];
+				for(int p=0; p<data.size; p++){ values[p] = in.readDouble(); }
+				boolean[] significant = null;
+				if((flag & SIGNIFICANCE) != 0){
+					significant = new boolean[data.size];
+					for(int p=0; p<data.size; p++){ significant[p] = in.readBoolean(); }
+				}
+				data.distributions.add(values);
+				data.flags.add(flag);
+				data.significance.add(significant);
+			}
+			data.layers = in.readInt();
+		} finally {
+			in.close();
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			data.valueOffset = length - 8L * data.layers * data.row(data.size);
+			data.segments = new MappedByteBuffer[(int)((length - data.valueOffset + SEGMENT - 1) / SEGMENT)];
+			for(int i=0; i<data.segments.length; i++){
+				// segments overlap by one value so every value is read from a single segment
+				long start = data.valueOffset + i * SEGMENT;
+				data.segments[i] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT + 8, length - start));
+			}
+		} finally {
+			raf.close();
+		}
+		return data;
+	}
+	
+	/**
+	 * @param layer
+	 * @param p The first tile.
+	 * @param q The second tile.
+	 * @return The correlation of the two tiles in <code>layer</code>, <code>0</code> outside the tile band.
+	 */
+	public double value(int layer, int p, int q){
+		int a = Math.max(p, q);
+		int b = Math.min(p, q);
+		double result = 0.0;
+		if(band < 0 || a - b <= band){
+			long offset = 8L * ((long)layer * row(size) + row(a) + b - ((band < 0) ? 0 : Math.max(0, a - band)));
+			result = segments[(int)(offset / SEGMENT)].getDouble((int)(offset % SEGMENT));
+		}
+		return result;
+	}
+	
+	/**
+	 * @return The tile size in base pairs.
+	 */
+	public double tile(){
+		return tile;
+	}
+	
+	/**
+	 * @return The smallest snp coordinate.
+	 */
+	public int snpMin(){
+		return snpMin;
+	}
+	
+	/**
+	 * @return The chromosome position of every snp.
+	 */
+	public int[] markerPositions(){
+		return markerPositions;
+	}
+	
+	public int bpMin(){
+		return bpMin;
+	}
+	
+	public int bpMax(){
+		return bpMax;
+	}
+	
+	/**
+	 * @return The number of tiles.
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * @return The largest tile distance of a stored pair of tiles, or a negative number if all pairs are stored.
+	 */
+	public int band(){
+		return band;
+	}
+	
+	/**
+	 * @return The number of stored matrices.
+	 */
+	public int layers(){
+		return layers;
+	}
+	
+	/**
+	 * @return The lines of the legend.
+	 */
+	public ArrayList<String> legend(){
+		return legend;
+	}
+	
+	/**
+	 * @return The number of distributions.
+	 */
+	public int distributions(){
+		return distributions.size();
+	}
+	
+	/**
+	 * @param d
+	 * @return The values of distribution <code>d</code>.
+	 */
+	public double[] distribution(int d){
+		return distributions.get(d);
+	}
+	
+	/**
+	 * @param d
+	 * @return True if the mean line of distribution <code>d</code> is plotted.
+	 */
+	public boolean mean(int d){
+		return (flags.get(d) & MEAN) != 0;
+	}
+	
+	/**
+	 * @param d
+	 * @return True if the hotspot line of distribution <code>d</code> is plotted.
+	 */
+	public boolean hotspot(int d){
+		return (flags.get(d) & HOTSPOT) != 0;
+	}
+	
+	/**
+	 * @param d
+	 * @return The significant tiles of distribution <code>d</code>, or <code>null</code>.
+	 */
+	public boolean[] significant(int d){
+		return significance.get(d);
+	}
+	
+	public String toString(){
+		StringBuilder display = new StringBuilder();
+		display.append("PlotData {");
+		display.append("\n\ttile: ");
+		display.append(tile);
+		display.append("\n\tsnps: ");
+		display.append(markerPositions.length);
+		display.append("\n\ttiles: ");
+		display.append(size);
+		display.append("\n\tlayers: ");
+		display.append(layers);
+		display.append("\n\tdistributions: ");
+		display.append(distributions.size());
+		display.append("\n}");
+		return display.toString();
+	}
+}
@@ -0,0 +1,122 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.drawing;
+
+import java.awt.Color;
+import java.util.ArrayList;
+
+import sanger.argml.environment.Environment;
+import sanger.math.set.NaturalDomain;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * Paints a heat plot from an exported {@link PlotData} file.
+ * <p>The tiles are rebuilt from the stored snp positions and tile size, and every tile correlation, 
+ * distribution and legend line is read from the file, so painting never touches the statistics the plot was computed from. 
+ * The painter of the top triangle also paints the distributions and the legend, 
+ * and a second painter on the same canvas paints the bottom triangle from the second matrix.</p>
+ * @author Lior Galanti
+ */
+public class PlotDataPainter extends PlotPainter{
+	private PlotData data;
+	private int layer;
+	private NaturalDomain snpDomain;
+	private NaturalDomain basePairDomain;
+	private int hotspotFactor;
+	private Color hotspotColor;
+	
+	public PlotDataPainter(Environment env, PlotData data, int layer) throws NaturalSetException {
+		super(env);
+		construct(data, layer);
+	}
+
+	public PlotDataPainter(Environment env, PlotPainter base, PlotData data, int layer) throws NaturalSetException {
+		super(env, base);
+		construct(data, layer);
+	}
+	
+	private void construct(PlotData data, int layer) throws NaturalSetException {
+		if(layer < 0 || layer >= data.layers()) throw new NaturalSetException("Plot layer " + layer + " is not in [0, " + (data.layers() - 1) + "]");
+		this.data = data;
+		this.layer = layer;
+		this.snpDomain = new NaturalDomain(data.snpMin(), data.snpMin() + data.markerPositions().length - 1).intern();
+		this.basePairDomain = new NaturalDomain(data.bpMin(), data.bpMax());
+		initialize();
+	}
+
+	protected NaturalDomain snpDomain(){ 
+		return snpDomain; 
+	}
+
+	protected NaturalDomain basePairDomain(){
+		return basePairDomain;
+	}
+	
+	protected int coordinate(int i) throws NaturalSetException {
+		return data.markerPositions()[i - data.snpMin()];
+	}
+	
+	protected double pairwiseSnpCorrelation(int i, int j) throws NaturalSetException{
+		throw new NaturalSetException("Snp correlations are not stored in a plot file");
+	}
+	
+	protected void readProperties(){
+		super.readProperties();
+		this.tile = data.tile();
+		this.hotspotFactor = env().integerProperty("HotspotFactor");
+		this.hotspotColor = new Color(Long.decode(env().stringProperty("HotspotColor")).intValue(), true);
+	}
+	
+	protected void buildTiles() throws NaturalSetException {
+		super.buildTiles();
+		if(tiles.size() != data.size()) throw new NaturalSetException("Plot has " + data.size() + " tiles but its snps make " + tiles.size());
+	}
+	
+	protected int tileBand(){
+		return data.band();
+	}
+	
+	protected int distributions() {
+		return data.distributions();
+	}
+	
+	protected ArrayList<String> legend(){
+		return data.legend();
+	}
+	
+	/**
+	 * Paints all stored distributions under the diagram, in the order they were added.
+	 * @throws NaturalSetException
+	 */
+	public void paintDistributions() throws NaturalSetException{
+		for(int d=0; d<data.distributions(); d++){
+			int y = yPx + tiles.size() + (d * (distributionRange + padding)) + padding;
+			paintDistribution(xPx, y, data.distribution(d), data.mean(d), data.significant(d));
+			if(data.hotspot(d)) paintHotspot(xPx, y, data.distribution(d), hotspotFactor, hotspotColor);
+		}
+	}
+	
+	protected void correlation(Tile p, double[] row, int lo, int hi) throws NaturalSetException{
+		for(int q=lo; q<=hi; q++){
+			row[q] = data.value(layer, p.position, q);
+		}
+	}
+}
@@ -26,15 +26,24 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.stream.ImageOutputStream;
 
 import sanger.argml.environment.Environment;
 import sanger.argml.environment.Environmental;
+import sanger.argml.graph.model.TileLayout;
 import sanger.argml.io.ImageOutput;
 import sanger.math.set.NaturalDomain;
 import sanger.math.set.NaturalSetException;
@@ -77,6 +86,7 @@ public abstract class PlotPainter extends Environmental{
 	protected int axisRange;
 	protected int padding;
 	protected int scaleRange;
+	protected int maxDistance;
 	
 	protected ArrayList<Integer> customgrid;
 
@@ -101,6 +111,12 @@ public abstract class PlotPainter extends Environmental{
 	
 	protected ArrayList<Frame> frames;
 	protected ArrayList<Tile> tiles;
+	protected double[] frameWidths;
+	private int[] embedding;
+	
+	private PlotPainter base;
+	private PlotPainter compare;
+	private boolean fused;
 
 	
 	/**
@@ -132,6 +148,23 @@ public abstract class PlotPainter extends Environmental{
 	 */
 	protected abstract double pairwiseSnpCorrelation(int i, int j) throws NaturalSetException;
 	
+	/**
+	 * Overridden in a derived class when the pairwise correlation statistic is only defined for snps that are close to each other.
+	 * @return the largest snp distance with a non zero correlation, or a negative number if all pairs may correlate.
+	 * @throws NaturalSetException
+	 */
+	protected int correlationBand() throws NaturalSetException {
+		return -1;
+	}
+	
+	/**
+	 * In a banded plot only pairs of tiles less than <code>MaxDistance</code> base pairs apart are computed and painted.
+	 * @return The largest tile distance of a painted pair of tiles, or a negative number if all pairs are painted.
+	 */
+	protected int tileBand(){
+		return (maxDistance > 0) ? (int)Math.ceil(maxDistance / tiles.get(0).width()) : -1;
+	}
+	
 	public PlotPainter(Environment env) throws NaturalSetException {
 		super(env);
 	}
@@ -146,6 +179,7 @@ public abstract class PlotPainter extends Environmental{
 		super(env);
 		this.image = base.image;
 		this.stage = base.stage;
+		this.base = base;
 	}
 	
 	protected int distributions() {
@@ -177,6 +211,7 @@ public abstract class PlotPainter extends Environmental{
 		this.axisRange = env().integerProperty("AxisRange");
 		this.padding = env().integerProperty("Padding");
 		this.scaleRange = env().integerProperty("ScaleRange");
+		this.maxDistance = env().integerProperty("MaxDistance") == null ? 0 : env().integerProperty("MaxDistance");
 		
 		xPx = padding;
 		yPx = padding;
@@ -207,7 +242,31 @@ public abstract class PlotPainter extends Environmental{
 		}
 	}
 	
+	/**
+	 * A painter drawing on the canvas of a base painter with the same tile size, snps and snp positions 
+	 * reuses the frames and tiles of the base painter, and the base painter then paints both triangles 
+	 * of a compare diagram in a single pass.
+	 * @param other
+	 * @return True if this painter and <code>other</code> build identical frames and tiles.
+	 * @throws NaturalSetException
+	 */
+	protected boolean sharesLayout(PlotPainter other) throws NaturalSetException {
+		return tile == other.tile 
+			&& snpDomain().compatible(other.snpDomain()) 
+			&& basePairDomain().min() == other.basePairDomain().min() 
+			&& basePairDomain().max() == other.basePairDomain().max() 
+			&& Arrays.equals(embedding(), other.embedding());
+	}
+	
 	protected void buildTiles() throws NaturalSetException {
+		if(base != null && base.tiles != null && sharesLayout(base)){
+			frames = base.frames;
+			tiles = base.tiles;
+			frameWidths = base.frameWidths;
+			base.compare = this;
+			return;
+		}
+		
 		int min = snpDomain().min();
 		int max = snpDomain().max();
 		
@@ -215,13 +274,14 @@ public abstract class PlotPainter extends Environmental{
 		tiles = new ArrayList<Tile>((int)Math.ceil(basePairDomain().closureCardinality() / tile));
 		
 		//	build frames
-		frames.add(new Frame(min, coordinate(min), coordinate(min+1)));
-		
-		for(int i=min+1; i<max;i++){
-			frames.add(new Frame(i, coordinate(i-1), coordinate(i), coordinate(i+1))); 
+		for(int i=min; i<=max; i++){
+			frames.add(frame(i)); 
 		}
 		
-		frames.add(new Frame(max, coordinate(max), coordinate(max-1)));
+		frameWidths = new double[frames.size()];
+		for(int i=0; i<frameWidths.length; i++){
+			frameWidths[i] = frames.get(i).width();
+		}
 		
 		//	build tiles
 		int count = 0;
@@ -245,22 +305,62 @@ public abstract class PlotPainter extends Environmental{
 		}
 	}	
 	
-	protected void buildStage(){
+	protected void buildDimensions(){
 		width = xPx + tiles.size() + 4 * padding + 2 * axisRange + scaleRange + 30 * fontsize;
 		height = yPx + tiles.size() + distributions() * (distributionRange + padding ) + 2 * padding;
-		
-		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+	}
+	
+	protected void buildStage(){
+		buildDimensions();
+		paintOn(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), 0);
+	}
+	
+	/**
+	 * Redirects all following painting to a horizontal strip of the diagram.
+	 * The strip spans the full width of the diagram and starts at diagram row <code>top</code>. 
+	 * Painting the complete diagram on consecutive strips produces the same pixels as painting it on a single image.
+	 * @param strip A <code>TYPE_INT_ARGB</code> image as wide as the diagram.
+	 * @param top The diagram row painted on the first row of <code>strip</code>.
+	 */
+	public void paintOn(BufferedImage strip, int top){
+		image = strip;
 		stage = image.createGraphics();
 		stage.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 		stage.setFont(new Font(font, Font.PLAIN, fontsize));
+		stage.translate(0, -top);
 		Graphics2D background =  (Graphics2D)stage.create();
 		background.setColor(backgroundColor);
-		background.fillRect(0, 0, image.getWidth(), image.getHeight());
+		background.fillRect(0, top, image.getWidth(), image.getHeight());
+	}
+	
+	/**
+	 * Redirects all following painting to the canvas of another painter, as done by {@link #PlotPainter(Environment, PlotPainter)}.
+	 * @param base The painter whose canvas to paint on.
+	 */
+	public void paintOn(PlotPainter base){
+		this.image = base.image;
+		this.stage = base.stage;
+	}
+	
+	/**
+	 * @return The width of the complete diagram in pixels.
+	 */
+	public int width(){
+		if(width == 0) buildDimensions();
+		return width;
+	}
+	
+	/**
+	 * @return The height of the complete diagram in pixels.
+	 */
+	public int height(){
+		if(height == 0) buildDimensions();
+		return height;
 	}
 			
 	public void paintDiagram() throws NaturalSetException {
 		if(stage == null) buildStage();
-		paintPlot(xPx, yPx);
+		paintPlot(xPx, yPx, compare);
 		if(gridSpacing != null) { 
 			paintGrid(xPx, yPx);
 			paintMarkerAxis(tiles.size() + padding + xPx, yPx);
@@ -272,16 +372,21 @@ public abstract class PlotPainter extends Environmental{
 	
 	public void paintCompareDiagram() throws NaturalSetException{
 		if(stage == null) buildStage();
-		AffineTransform t = AffineTransform.getScaleInstance(-1,1);
-		t.concatenate(AffineTransform.getTranslateInstance(-tiles.size(), 0));
-		t.concatenate(AffineTransform.getQuadrantRotateInstance(1, tiles.size() / 2.0, tiles.size() / 2.0));
-		stage.setTransform(t);
+		AffineTransform origin = stage.getTransform();
+		stage.setTransform(compareTransform(origin));
 
-		paintPlot(yPx, xPx);
+		// the base painter may have already painted this triangle along with its own, 
+		// and then painted its grid over the shared diagonal
+		if(fused) {
+			fused = false;
+			paintDiagonal(yPx, xPx);
+		} else {
+			paintPlot(yPx, xPx);
+		}
 		if(gridSpacing != null) { 
 			paintGrid(yPx, xPx);
 		}
-		stage.setTransform(AffineTransform.getScaleInstance(1, 1));
+		stage.setTransform(origin);
 	}
 	
 	public void paintDistribution(int order, double[] distribution, boolean mean) throws NaturalSetException{
@@ -356,19 +461,321 @@ public abstract class PlotPainter extends Environmental{
 		}
 	}	
 	
+	/**
+	 * Draws a horizontal line at <code>factor</code> times the mean of a distribution painted at <code>(x, y)</code>.
+	 * @param x
+	 * @param y
+	 * @param distribution
+	 * @param factor
+	 * @param color
+	 */
+	protected void paintHotspot(int x, int y, double[] distribution, int factor, Color color){
+		double vmax = 0.0;
+		double vmean = 0.0;
+		
+		for(double v : distribution){
+			vmax = Math.max(vmax, v);
+			vmean += v;			
+		}	vmean /= distribution.length;
+		
+		Graphics2D lines = (Graphics2D)stage.create();
+		lines.translate(x, y);
+		lines.setColor(color);
+
+		Graphics2D values = (Graphics2D)stage.create();
+		values.translate(x + tiles.size() + 4 * padding, y + stage.getFont().getSize() / 2);
+		values.setColor(color);
+		
+		int hotLine = (int)Math.round(vmean/vmax*distributionRange) * factor;
+		lines.drawLine(0, hotLine, tiles.size() + 3 * padding, hotLine);
+		
+		values.drawString(doubleToString.format(factor * vmean) + " hot", 0, hotLine);		
+	}	
+	
+	/**
+	 * @return The number of snps in every tile, counting snps on the tile edge by the fraction of their frame it covers.
+	 * @throws NaturalSetException
+	 */
+	public double[] snpDensity() throws NaturalSetException{
+		return tiledSnpDensity(tile);
+	}
+	
+	public void paintSnpDensity(int x, int y) throws NaturalSetException{
+		paintDistribution(x, y, snpDensity(), true);
+	}
+	
+	public void paintSnpDensity(int order) throws NaturalSetException{
+		paintSnpDensity(xPx, yPx + tiles.size() + (order * (distributionRange + padding)) + padding);
+	}
+	
+	/**
+	 * Overridden in a derived class to describe the diagram.
+	 * @return The lines of the legend.
+	 */
+	protected ArrayList<String> legend(){
+		return new ArrayList<String>();
+	}
+	
+	public void paintLegend(){
+		paintLegend(xPx + scaleRange + 9 * padding + stage.getFont().getSize() * 4 + tiles.size() + axisRange * 2, yPx);
+	}
+	
+	public void paintLegend(int x, int y){
+		AffineTransform origin = stage.getTransform();
+		origin.translate(x, y);
+		
+		Graphics2D paint = (Graphics2D)stage.create();
+		paint.setTransform(origin);
+		paint.setColor(lineColor);
+		int lineSpace = (int)Math.ceil(stage.getFont().getSize() * 1.1);
+		paint.translate(padding, padding);
+		for(String line : legend()){
+			paint.translate(0, lineSpace);
+			paint.drawString(line, 0, 0);
+		}
+	}
+	
+	/**
+	 * @param origin The transform of the stage.
+	 * @return The transform a compare diagram is painted with, mirroring the plot along its diagonal.
+	 */
+	private AffineTransform compareTransform(AffineTransform origin){
+		AffineTransform t = new AffineTransform(origin);
+		t.concatenate(AffineTransform.getScaleInstance(-1,1));
+		t.concatenate(AffineTransform.getTranslateInstance(-tiles.size(), 0));
+		t.concatenate(AffineTransform.getQuadrantRotateInstance(1, tiles.size() / 2.0, tiles.size() / 2.0));
+		return t;
+	}
+	
 	public void paintPlot(int x, int y) throws NaturalSetException{
+		paintPlot(x, y, null);
+	}
+	
+	/**
+	 * Paints the plot, and the compare diagram of a painter sharing this painter's layout when both can be painted 
+	 * straight into the image raster. The compare painter then skips its plot in {@link #paintCompareDiagram()}.
+	 * @param x
+	 * @param y
+	 * @param compare A painter sharing this painter's tiles, or <code>null</code>.
+	 * @throws NaturalSetException
+	 */
+	private void paintPlot(int x, int y, PlotPainter compare) throws NaturalSetException{
 		if(stage == null) buildStage();
 		Graphics2D canvas = (Graphics2D)stage.create();
 		canvas.translate(x, y);
 		
+		AffineTransform t = canvas.getTransform();
+		if(image.getType() == BufferedImage.TYPE_INT_ARGB && colorMap.opaque() && pixelAligned(t)){
+			AffineTransform ct = null;
+			if(compare != null && compare.colorMap.opaque()){
+				ct = compare.compareTransform(stage.getTransform());
+				ct.translate(compare.yPx, compare.xPx);
+				if(!pixelAligned(ct)) ct = null;
+			}
+			paintRaster(t, (ct != null) ? compare : null, ct);
+			if(ct != null) compare.fused = true;
+			
+		} else {
+			double[] row = new double[tiles.size()];
+			int band = tileBand();
+			for(Tile p : tiles){
+				int lo = (band < 0) ? 0 : Math.max(0, p.position - band);
+				correlation(p, row, lo, p.position);
+				for(int j=lo; j<=p.position; j++){
+					canvas.setColor(colorMap.mapToColor(row[j]));
+					canvas.fillRect(p.position, j, 1, 1);
+				}
+			}
+		}
+	}
+	
+	private void paintDiagonal(int x, int y) throws NaturalSetException{
+		Graphics2D canvas = (Graphics2D)stage.create();
+		canvas.translate(x, y);
+		double[] row = new double[tiles.size()];
 		for(Tile p : tiles){
-			for(int j=0; j<=p.position; j++){
-				Tile op = tiles.get(j);
-				canvas.setColor(colorMap.mapToColor(p.correlation(op)));
-				canvas.fillRect(p.position, op.position, 1, 1);
+			correlation(p, row, p.position, p.position);
+			canvas.setColor(colorMap.mapToColor(row[p.position]));
+			canvas.fillRect(p.position, p.position, 1, 1);
+		}
+	}
+	
+	/**
+	 * @return True if <code>t</code> maps every unit square on integer coordinates to exactly one device pixel.
+	 */
+	private static boolean pixelAligned(AffineTransform t){
+		double[] m = new double[6];
+		t.getMatrix(m);
+		boolean unit = true;
+		for(int i=0; i<4; i++){ unit = unit && (m[i] == 0.0 || Math.abs(m[i]) == 1.0); }
+		return unit && Math.abs(m[0] * m[3] - m[1] * m[2]) == 1.0 && m[4] == Math.rint(m[4]) && m[5] == Math.rint(m[5]);
+	}
+	
+	/**
+	 * Paints the heat map straight into the image raster.
+	 * Tiles are distributed between worker threads. Every tile <code>p</code> is painted on a single device row or column, 
+	 * and its correlations with the tiles <code>j &lt;= p</code> are computed as {@link #correlation(Tile, double[], int, int)} of <code>p</code>, 
+	 * exactly as {@link #paintPlot(int, int)} computes them through the canvas, 
+	 * and written once with the packed color {@link Graphics2D#fillRect(int, int, int, int)} would have painted with the plot transform <code>t</code>.
+	 * Only tile pairs covered by the current image are computed, so painting a {@link #paintOn(BufferedImage, int) strip} 
+	 * costs in proportion to the strip.
+	 * Off the chart values are fully transparent and leave the background untouched. 
+	 * In a banded plot only the tiles within {@link #tileBand()} of <code>p</code> are computed.
+	 * <p>With a <code>compare</code> painter both triangles are painted in the same pass, 
+	 * every tile painted by this painter first and then by <code>compare</code>. 
+	 * The triangles only share the diagonal, so this is the order the two diagrams are painted in when painted separately.</p>
+	 * @param t The transform of the plot canvas, must be {@link #pixelAligned(AffineTransform) pixel aligned}.
+	 * @param compare A painter sharing this painter's tiles, or <code>null</code>.
+	 * @param ct The transform of the <code>compare</code> plot canvas, must be pixel aligned.
+	 * @throws NaturalSetException
+	 */
+	private void paintRaster(final AffineTransform t, final PlotPainter compare, AffineTransform ct) throws NaturalSetException{
+		final int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final double[] m = new double[6];
+		t.getMatrix(m);
+		final double[] cm = new double[6];
+		
+		// Lazily computed statistics are made ready before the workers start.
+		correlationBand();
+		correlation(tiles.get(0), new double[1], 0, 0);
+		if(compare != null){
+			ct.getMatrix(cm);
+			compare.correlationBand();
+			compare.correlation(tiles.get(0), new double[1], 0, 0);
+		}
+		
+		final AtomicInteger next = new AtomicInteger(0);
+		int threads = Math.max(1, Math.min(env().threads(), tiles.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Object>> workers = new ArrayList<Future<Object>>(threads);
+			for(int w=0; w<threads; w++){
+				workers.add(pool.submit(new Callable<Object>(){
+					public Object call() throws NaturalSetException {
+						double[] row = new double[tiles.size()];
+						for(int p=next.getAndIncrement(); p<tiles.size(); p=next.getAndIncrement()){
+							paintRasterTile(p, row, pixels, width, height, m);
+							if(compare != null) compare.paintRasterTile(p, row, pixels, width, height, cm);
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Object> worker : workers){ worker.get(); }
+			
+		} catch (InterruptedException e) {
+			throw new NaturalSetException("Plot painting interrupted", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof NaturalSetException) throw (NaturalSetException)e.getCause();
+			throw new NaturalSetException("Plot painting failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private void paintRasterTile(int p, double[] row, int[] pixels, int width, int height, double[] m) throws NaturalSetException{
+		// tile pair (p, j), j <= p, is painted at device (m0 p + m2 j + m4, m1 p + m3 j + m5)
+		int band = tileBand();
+		if(m[1] != 0.0){
+			// p is painted on a device row
+			int y = (int)Math.floor(m[1] * (p + 0.5) + m[5]);
+			if(y >= 0 && y < height){
+				int lo = (band < 0) ? 0 : Math.max(0, p - band);
+				correlation(tiles.get(p), row, lo, p);
+				for(int k=lo; k<=p; k++){
+					int argb = colorMap.mapToARGB(row[k]);
+					if(argb >>> 24 != 0){
+						int x = (int)Math.floor(m[2] * (k + 0.5) + m[4]);
+						if(x >= 0 && x < width) pixels[y * width + x] = argb;
+					}
+				}
+			}
+		} else {
+			// p is painted on a device column, crossing the rows of the tiles between the first and last device row of the image
+			int x = (int)Math.floor(m[0] * (p + 0.5) + m[4]);
+			if(x >= 0 && x < width){
+				int top = (int)Math.round((0.5 - m[5]) * m[3] - 0.5);
+				int bottom = (int)Math.round((height - 0.5 - m[5]) * m[3] - 0.5);
+				int lo = Math.max(0, Math.min(top, bottom));
+				int hi = Math.min(p, Math.max(top, bottom));
+				if(band >= 0) lo = Math.max(lo, p - band);
+				if(lo <= hi){
+					correlation(tiles.get(p), row, lo, hi);
+					for(int k=lo; k<=hi; k++){
+						int argb = colorMap.mapToARGB(row[k]);
+						if(argb >>> 24 != 0){
+							int y = (int)Math.floor(m[3] * (k + 0.5) + m[5]);
+							if(y >= 0 && y < height) pixels[y * width + x] = argb;
+						}
+					}
+				}
 			}
 		}
 	}
+	
+	/**
+	 * Computes the correlation of a tile with every tile up to and including itself.
+	 * @param p The tile.
+	 * @param row Receives the correlation of <code>p</code> with tile <code>j</code> in <code>row[j]</code>, for every <code>j &lt;= p.position</code>.
+	 * @throws NaturalSetException
+	 */
+	protected void correlation(Tile p, double[] row) throws NaturalSetException{
+		correlation(p, row, 0, p.position);
+	}
+	
+	/**
+	 * Computes the correlation of a tile with a range of tiles.
+	 * <p>The correlation of tiles <code>p</code> and <code>q</code> is the coverage weighted sum of the pairwise snp correlations, 
+	 * <code>W<sub>p</sub> C W<sub>q</sub><sup>T</sup></code>, where <code>W<sub>p</sub></code> holds the coverage of every frame by tile <code>p</code>. 
+	 * Every snp row of <code>p</code> is read once and turned into a prefix sum of frame width weighted correlations. 
+	 * Frames inside a tile are covered completely, so only the two edge frames of every other tile are weighted explicitly.
+	 * Tiles farther than {@link #correlationBand()} snps are not visited.</p>
+	 * @param p The tile.
+	 * @param row Receives the correlation of <code>p</code> with tile <code>j</code> in <code>row[j]</code>, for every <code>lo &lt;= j &lt;= hi</code>.
+	 * @param lo The first tile position.
+	 * @param hi The last tile position.
+	 * @throws NaturalSetException
+	 */
+	protected void correlation(Tile p, double[] row, int lo, int hi) throws NaturalSetException{
+		int min = snpDomain().min();
+		int band = correlationBand();
+		int first = tiles.get(lo).from;
+		int last = tiles.get(hi).to;
+		if(band >= 0){
+			first = Math.max(first, p.from - band);
+			last = Math.min(last, p.to + band);
+		}
+		for(int q=lo; q<=hi; q++){ row[q] = 0.0; }
+		
+		if(first <= last){
+			double[] c = new double[last - first + 1];
+			double[] prefix = new double[last - first + 2];
+			
+			int qlo = lo;
+			while(qlo <= hi && tiles.get(qlo).to < first) qlo++;
+			int qhi = hi;
+			while(qhi >= qlo && tiles.get(qhi).from > last) qhi--;
+			
+			for(int i=p.from; i<=p.to; i++){
+				double w = p.weights[i - p.from];
+				if(w != 0.0){
+					for(int j=first; j<=last; j++){
+						c[j - first] = pairwiseSnpCorrelation(i + min, j + min);
+						prefix[j - first + 1] = prefix[j - first] + frameWidths[j] * c[j - first];
+					}
+					for(int q=qlo; q<=qhi; q++){
+						row[q] += w * tiles.get(q).weighted(c, prefix, first, last);
+					}
+				}
+			}
+		}
+		
+		for(int q=lo; q<=hi; q++){
+			row[q] /= (p.width() * tiles.get(q).width());
+		}
+	}
 			
 	public void paintGrid(int x, int y) throws NaturalSetException{
 		if(stage == null) buildStage();
@@ -477,7 +884,8 @@ public abstract class PlotPainter extends Environmental{
 		if(stage == null) buildStage();
 		int slices = 256;
 		int sliceSize = (int)Math.round( slices / colorMap.size());
-		AffineTransform origin = AffineTransform.getTranslateInstance(x, y);
+		AffineTransform origin = stage.getTransform();
+		origin.translate(x, y);
 		
 		// frame
 		Graphics2D paint = (Graphics2D)stage.create();
@@ -536,92 +944,65 @@ public abstract class PlotPainter extends Environmental{
 		return overlappingCoverage(i, min, max) / coverage(i);
 	}
 	
-	public double[] tiledAverage(double tile, double[] parameter) throws NaturalSetException {		
-		double[] average = new double[(int)Math.ceil(basePairDomain().closureCardinality() / (double)tile)];
-		int left = snpDomain().min();
-		int count = 0;
-		double mark = basePairDomain().min();
-
-		for(Integer i : snpDomain()){
-			while(coordinate(i) > mark + tile){
-				for(int k=left; k<i; k++){
-					average[count] +=  parameter[snpDomain().toRelativeCoordinate(k)] / (i-left);
-				}
-				count++;
-				mark += tile;
-				left = i-1;
-			}
-		}
-		
-		// Complete the last, incomplete, tile
-		if(mark < basePairDomain().max()){
-			for(int k=left; k<snpDomain().max(); k++){
-				average[count] +=  parameter[snpDomain().toRelativeCoordinate(k)] / (snpDomain().max()-left);
+	/**
+	 * @param tile The tile size, in chromosome coordinates.
+	 * @return The {@link TileLayout} of <code>tile</code> sized tiles over the snps of this painter.
+	 * @throws NaturalSetException
+	 */
+	protected TileLayout tileLayout(double tile) throws NaturalSetException {
+		return TileLayout.layout(snpDomain(), basePairDomain(), embedding(), tile);
+	}
+	
+	/**
+	 * @return The chromosome coordinate of every snp, in relative snp coordinates.
+	 * @throws NaturalSetException
+	 */
+	private int[] embedding() throws NaturalSetException {
+		if(embedding == null){
+			int min = snpDomain().min();
+			int[] positions = new int[snpDomain().closureCardinality()];
+			for(int i : snpDomain().members()){
+				positions[i - min] = coordinate(i);
 			}
+			embedding = positions;
 		}
-
-		return  average;
+		return embedding;
+	}
+	
+	public double[] tiledAverage(double tile, double[] parameter) throws NaturalSetException {		
+		return tileLayout(tile).average(parameter);
 	}
 		
 	public double[] tiledDensity(double tile, double[] parameter) throws NaturalSetException {		
-		double[] density = new double[(int)Math.ceil(basePairDomain().closureCardinality() / (double)tile)];
-		int left = snpDomain().min();
-		int count = 0;
-		double mark = basePairDomain().min();
-
-		for(Integer i : snpDomain()){
-			while(coordinate(i) > mark + tile){
-				for(int k=left; k<i; k++){
-					
-					density[count] += overlappingCoverageFraction(k, mark, mark + tile) * parameter[snpDomain().toRelativeCoordinate(k)];
-				}
-				count++;
-				mark += tile;
-				left = i-1;
-			}
-		}
-		
-		// Complete the last, incomplete, tile
-		if(mark < basePairDomain().max()){
-			for(int k=left; k<snpDomain().max(); k++){
-				density[count] += overlappingCoverageFraction(k, mark, basePairDomain().max()) * parameter[snpDomain().toRelativeCoordinate(k)];
-			}
-		}
-
-		return  density;
+		return tileLayout(tile).density(parameter);
 	}
 
 	public double[] tiledSnpDensity(double tile) throws NaturalSetException {		
-		double[] density = new double[(int)Math.ceil(basePairDomain().closureCardinality() / (double)tile)];
-		int left = snpDomain().min();
-		int count = 0;
-		double mark = basePairDomain().min();
-
-		for(Integer i : snpDomain()){
-			while(coordinate(i) > mark + tile){
-				for(int k=left; k<i; k++){
-					density[count] += overlappingCoverageFraction(k, mark, mark + tile);
-				}
-				count++;
-				mark += tile;
-				left = i-1;
-			}
-		}
-		
-		// Complete the last, incomplete, tile
-		if(mark < basePairDomain().max()){
-			for(int k=left; k<snpDomain().max(); k++){
-				density[count] += overlappingCoverageFraction(k, mark, basePairDomain().max());
-			}
-		}
-
-		return  density;
+		return tileLayout(tile).sourceDensity();
 	}
 	
-	
 	protected Frame frameAt(int i) throws NaturalSetException{
 		return frames.get(snpDomain().toRelativeCoordinate(i));
 	}
+	
+	/**
+	 * @param i A snp.
+	 * @return A new frame of snp <code>i</code>, reaching half way to its neighbours.
+	 * @throws NaturalSetException
+	 */
+	protected Frame frame(int i) throws NaturalSetException{
+		int min = snpDomain().min();
+		int max = snpDomain().max();
+		Frame frame = null;
+		if(i == min){
+			frame = new Frame(min, coordinate(min), coordinate(min+1));
+		} else if(i == max){
+			frame = new Frame(max, coordinate(max), coordinate(max-1));
+		} else {
+			frame = new Frame(i, coordinate(i-1), coordinate(i), coordinate(i+1));
+		}
+		return frame;
+	}
 		
 	protected class Tile {
 		protected int position;
@@ -631,6 +1012,12 @@ public abstract class PlotPainter extends Environmental{
 		
 		protected double bpleft;
 		protected double bpright;
+		
+		// Frame coverage, in relative snp coordinates, not kept by painters that build no frames
+		protected int from;
+		protected int to;
+		protected double[] weights;
+		protected boolean uniform;
 				
 		protected Tile(int position, Frame fleft, Frame fright, double bpleft, double bpright){
 			this.position = position;
@@ -638,23 +1025,47 @@ public abstract class PlotPainter extends Environmental{
 			this.fright = fright;
 			this.bpleft = bpleft;
 			this.bpright = bpright;
+			
+			this.from = fleft.index - snpDomain().min();
+			this.to = fright.index - snpDomain().min();
+			this.uniform = true;
+			if(frames != null){
+				this.weights = new double[to - from + 1];
+				for(int k=from; k<=to; k++){
+					weights[k - from] = frames.get(k).covered(bpleft, bpright);
+					if(k > from && k < to && weights[k - from] != frames.get(k).width()) uniform = false;
+				}
+			}
 		}
 		
-		protected double width(){
-			return bpright - bpleft;
-		}
-
-		protected double correlation(Tile other) throws NaturalSetException{
-			double c = 0.0;
-			for(int i=this.fleft.index; i<=this.fright.index; i++){
-				for(int j=other.fleft.index; j<=other.fright.index; j++){
-					c += frameAt(i).covered(this.bpleft, this.bpright) * frameAt(j).covered(other.bpleft, other.bpright) * pairwiseSnpCorrelation(i, j); 
+		/**
+		 * Weights a row of snp correlations by the frame coverage of this tile.
+		 * @param c Correlations of one snp with snps <code>first</code> to <code>last</code>.
+		 * @param prefix Prefix sums of <code>c</code> weighted by frame width, <code>prefix[k]</code> sums the first <code>k</code> entries.
+		 * @param first The relative coordinate of the snp in <code>c[0]</code>.
+		 * @param last The relative coordinate of the last snp in <code>c</code>.
+		 * @return The weighted sum of the correlations over the frames of this tile.
+		 */
+		protected double weighted(double[] c, double[] prefix, int first, int last){
+			double result = 0.0;
+			if(uniform && from >= first && to <= last){
+				result = weights[0] * c[from - first];
+				if(to > from){
+					result += prefix[to - first] - prefix[from + 1 - first];
+					result += weights[to - from] * c[to - first];
+				}
+			} else {
+				for(int j=Math.max(from, first); j<=Math.min(to, last); j++){
+					result += weights[j - from] * c[j - first];
 				}
 			}
-			c /= (this.width() * other.width());
-			return c;
+			return result;
 		}
 		
+		protected double width(){
+			return bpright - bpleft;
+		}
+
 		public String toString(){
 			return position + " { BP:[" + bpleft + ", " + bpright + "][" + width() +"] SNP[" + fleft.index + ", "+ fright.index + "] }"; 
 		}		
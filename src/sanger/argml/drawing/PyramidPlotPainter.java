@@ -0,0 +1,108 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.drawing;
+
+import java.util.ArrayList;
+
+import sanger.argml.environment.Environment;
+import sanger.math.set.NaturalDomain;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * Paints a heat plot from a precomputed {@link TilePyramid}.
+ * <p>Every pixel covers one tile of the chosen pyramid level, so painting a window reads one stored value 
+ * per pixel and never touches the snp statistics. The window is given in snp coordinates by the 
+ * <code>LowerSnp</code> and <code>UpperSnp</code> properties and includes every tile overlapping it.</p>
+ * @author Lior Galanti
+ */
+public class PyramidPlotPainter extends PlotPainter{
+	private TilePyramid pyramid;
+	private int level;
+	private int offset;
+	private NaturalDomain snpDomain;
+	private NaturalDomain basePairDomain;
+	
+	public PyramidPlotPainter(Environment env, TilePyramid pyramid, int level) throws NaturalSetException {
+		super(env);
+		if(level < 0 || level >= pyramid.levels()) throw new NaturalSetException("Pyramid level " + level + " is not in [0, " + (pyramid.levels() - 1) + "]");
+		this.pyramid = pyramid;
+		this.level = level;
+		this.snpDomain = new NaturalDomain(pyramid.snpMin(), pyramid.snpMin() + pyramid.markerPositions().length - 1).intern();
+		this.basePairDomain = new NaturalDomain(pyramid.bpMin(), pyramid.bpMax()).intern();
+		initialize();
+	}
+
+	protected NaturalDomain snpDomain(){ 
+		return snpDomain; 
+	}
+
+	protected NaturalDomain basePairDomain(){
+		return basePairDomain;
+	}
+	
+	protected int coordinate(int i) throws NaturalSetException {
+		return pyramid.markerPositions()[i - pyramid.snpMin()];
+	}
+	
+	protected double pairwiseSnpCorrelation(int i, int j) throws NaturalSetException{
+		throw new NaturalSetException("Snp correlations are not stored in a tile pyramid");
+	}
+	
+	protected void readProperties(){
+		super.readProperties();
+		this.tile = pyramid.tile();
+	}
+	
+	/**
+	 * Builds the tiles of the requested level that overlap the snp window from the bounds stored in the pyramid, 
+	 * so the cost is in proportion to the painted tiles and not to the chromosome.
+	 */
+	protected void buildTiles() throws NaturalSetException {
+		int size = pyramid.size(level);
+		int lower = env().numericPropertyExist("LowerSnp") ? env().integerProperty("LowerSnp") : snpDomain.min();
+		int upper = env().numericPropertyExist("UpperSnp") ? env().integerProperty("UpperSnp") : snpDomain.max();
+		
+		// The first tile reaching the window, and the last tile starting in it
+		int first = size - 1;
+		for(int a=0, b=size - 1; a <= b;){
+			int mid = (a + b) >>> 1;
+			if(pyramid.maxSnp(level, mid) >= lower){ first = mid; b = mid - 1; } else { a = mid + 1; }
+		}
+		int last = first;
+		for(int a=first + 1, b=size - 1; a <= b;){
+			int mid = (a + b) >>> 1;
+			if(pyramid.minSnp(level, mid) <= upper){ last = mid; a = mid + 1; } else { b = mid - 1; }
+		}
+		
+		offset = first;
+		tiles = new ArrayList<Tile>(last - first + 1);
+		for(int p=first; p<=last; p++){
+			tiles.add(new Tile(p - first, frame(pyramid.minSnp(level, p)), frame(pyramid.maxSnp(level, p)), pyramid.bpLeft(level, p), pyramid.bpRight(level, p)));
+		}
+		env().log().printBenchmark("painting pyramid level " + level + " tiles [" + first + ", " + last + "]");
+	}
+	
+	protected void correlation(Tile p, double[] row, int lo, int hi) throws NaturalSetException{
+		for(int q=lo; q<=hi; q++){
+			row[q] = pyramid.value(level, p.position + offset, q + offset);
+		}
+	}
+}
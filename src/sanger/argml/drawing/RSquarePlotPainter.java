@@ -20,8 +20,7 @@
 
 package sanger.argml.drawing;
 
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
 import java.util.Date;
 
 import sanger.argml.environment.Environment;
@@ -57,66 +56,55 @@ public class RSquarePlotPainter extends PlotPainter{
 	}
 	
 	protected double pairwiseSnpCorrelation(int i, int j) throws NaturalSetException{
-		return hs.rsquare(i, j);
+		return hs.linkageMatrix().rsquare(i, j);
+	}
+	
+	protected int correlationBand() throws NaturalSetException {
+		return hs.linkageMatrix().band();
 	}
 		
-	public void drawLegend(){drawLegend(xPx + scaleRange + 9 * padding + stage.getFont().getSize() * 4 + tiles.size() + axisRange * 2, yPx);};
+	public void drawLegend(){
+		paintLegend();
+	}
 	
 	public void drawLegend(int x, int y){
-		AffineTransform origin = AffineTransform.getTranslateInstance(x, y);
-		
-		// frame
-		Graphics2D paint = (Graphics2D)stage.create();
-		
-		paint.setTransform(origin);
-
-		paint.setTransform(origin);
-		paint.setColor(lineColor);
-		int lineSpace = (int)Math.ceil(stage.getFont().getSize() * 1.1);
-		paint.translate(padding, padding + lineSpace);
-		paint.drawString("Top:  " + env().stringProperty("Name"), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Bottom:  " + env().stringProperty("Other"), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Tile (pixel):  " + env().integerProperty("Tile") +" bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Min bp:  " + hs.basePairDomain().min() +" bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Max bp:  " + hs.basePairDomain().max() +" bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Min SNP:  " + hs.snpDomain().min(), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Max SNP:  " + hs.snpDomain().max(), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("SNP density:  " + hs.basePairDomain().closureCardinality() / hs.snpDomain().closureCardinality() +" bp/snp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Grid spacing :  " + env().integerProperty("GridSpacing") + " bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Time :  " + new Date(System.currentTimeMillis()), 0, 0);
+		paintLegend(x, y);
 	}
 	
-	public void paintMinorAlleleDensity(int x, int y) throws NaturalSetException{
+	protected ArrayList<String> legend(){
+		ArrayList<String> legend = new ArrayList<String>();
+		legend.add("Top:  " + env().stringProperty("Name"));
+		legend.add("Bottom:  " + env().stringProperty("Other"));
+		legend.add("Tile (pixel):  " + env().integerProperty("Tile") +" bp");
+		legend.add("Min bp:  " + hs.basePairDomain().min() +" bp");
+		legend.add("Max bp:  " + hs.basePairDomain().max() +" bp");
+		legend.add("Min SNP:  " + hs.snpDomain().min());
+		legend.add("Max SNP:  " + hs.snpDomain().max());
+		legend.add("SNP density:  " + hs.basePairDomain().closureCardinality() / hs.snpDomain().closureCardinality() +" bp/snp");
+		legend.add("Grid spacing :  " + env().integerProperty("GridSpacing") + " bp");
+		legend.add("Time :  " + new Date(System.currentTimeMillis()));
+		return legend;
+	}
+	
+	/**
+	 * @return The mean minor allele frequency of the snps in every tile.
+	 * @throws NaturalSetException
+	 */
+	public double[] minorAlleleDensity() throws NaturalSetException{
 		double[] r = tiledDensity(tile, hs.minorAlleleFrequencies());
-		double[] s = tiledSnpDensity(tile);
+		double[] s = snpDensity();
 		for(int i=0; i<r.length; i++){
 			r[i] /= s[i];
 		}
-
-		paintDistribution(x, y, r, true);
+		return r;
 	}
 	
-	public void paintMinorAlleleDensity(int order) throws NaturalSetException{
-		paintMinorAlleleDensity(xPx, yPx + tiles.size() + (order * (distributionRange + padding)) + padding);
-	}
-
-	public void paintSnpDensity(int x, int y) throws NaturalSetException{
-		double[] r = tiledSnpDensity(tile);
-
-		paintDistribution(x, y, r, true);
+	public void paintMinorAlleleDensity(int x, int y) throws NaturalSetException{
+		paintDistribution(x, y, minorAlleleDensity(), true);
 	}
 	
-	public void paintSnpDensity(int order) throws NaturalSetException{
-		paintSnpDensity(xPx, yPx + tiles.size() + (order * (distributionRange + padding)) + padding);
+	public void paintMinorAlleleDensity(int order) throws NaturalSetException{
+		paintMinorAlleleDensity(xPx, yPx + tiles.size() + (order * (distributionRange + padding)) + padding);
 	}
 
 }
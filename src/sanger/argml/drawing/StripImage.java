@@ -0,0 +1,173 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.drawing;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Vector;
+
+import javax.imageio.stream.ImageOutputStream;
+
+import sanger.argml.environment.Environment;
+import sanger.argml.environment.Environmental;
+import sanger.argml.io.ImageOutput;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * A diagram painted on demand in horizontal strips.
+ * <p>Only one strip of <code>TYPE_INT_ARGB</code> pixels is held in memory. Image writers that read the image
+ * top to bottom, like the png writer, pull the rows through {@link #getData(Rectangle)}, 
+ * so a diagram much larger than the heap can be streamed to a file.
+ * A strip is painted by {@link #paint(BufferedImage, int)}, typically by redirecting the painters with 
+ * {@link PlotPainter#paintOn(BufferedImage, int)} and painting the complete diagram on it.</p>
+ * @author Lior Galanti
+ */
+public abstract class StripImage extends Environmental implements RenderedImage {
+	private int width;
+	private int height;
+	private int stripHeight;
+	private ColorModel colorModel;
+	private SampleModel sampleModel;
+	
+	private BufferedImage strip;
+	private int top = -1;
+	
+	/**
+	 * @param env The runtime enviroment.
+	 * @param width Width of the diagram.
+	 * @param height Height of the diagram.
+	 * @param stripHeight Number of rows in every strip, the complete diagram is painted in one strip if not positive. 
+	 */
+	public StripImage(Environment env, int width, int height, int stripHeight){
+		super(env);
+		this.width = width;
+		this.height = height;
+		this.stripHeight = (stripHeight > 0) ? Math.min(stripHeight, height) : height;
+		this.colorModel = ColorModel.getRGBdefault();
+		this.sampleModel = colorModel.createCompatibleSampleModel(width, this.stripHeight);
+	}
+	
+	/**
+	 * Paints the diagram on a strip.
+	 * @param strip The image to paint on, as wide as the diagram.
+	 * @param top The diagram row painted on the first row of <code>strip</code>.
+	 * @throws NaturalSetException
+	 */
+	protected abstract void paint(BufferedImage strip, int top) throws NaturalSetException;
+	
+	private BufferedImage stripAt(int y){
+		int position = (y / stripHeight) * stripHeight;
+		if(position != top){
+			if(strip == null) strip = new BufferedImage(width, stripHeight, BufferedImage.TYPE_INT_ARGB);
+			else Arrays.fill(((DataBufferInt)strip.getRaster().getDataBuffer()).getData(), 0);
+			top = position;
+			try {
+				paint(strip, top);
+				if(stripHeight < height) env().log().printBenchmark("painted strip " + (top / stripHeight + 1) + " of " + getNumYTiles());
+				
+			} catch (NaturalSetException e) {
+				top = -1;
+				throw new StripException(e);
+			}
+		}
+		return strip;
+	}
+	
+	/**
+	 * Writes the diagram to an image stream.
+	 * A diagram painted in a single strip is written from a regular <code>BufferedImage</code>.
+	 * @param out The stream to write to.
+	 * @throws IOException
+	 * @throws NaturalSetException
+	 */
+	public void write(ImageOutputStream out) throws IOException, NaturalSetException{
+		ImageOutput imageOutput = new ImageOutput(env());
+		try {
+			if(stripHeight == height) imageOutput.paint(stripAt(0), out);
+			else imageOutput.paint(this, out);
+			
+		} catch (StripException e) {
+			throw (NaturalSetException)e.getCause();
+		}
+	}
+	
+	public Raster getData(Rectangle rect) {
+		WritableRaster result = colorModel.createCompatibleWritableRaster(rect.width, rect.height).createWritableTranslatedChild(rect.x, rect.y);
+		int[] row = new int[rect.width];
+		for(int y=rect.y; y<rect.y + rect.height; y++){
+			stripAt(y).getRaster().getDataElements(rect.x, y - top, rect.width, 1, row);
+			result.setDataElements(rect.x, y, rect.width, 1, row);
+		}
+		return result;
+	}
+	
+	public Raster getData() {
+		return getData(new Rectangle(0, 0, width, height));
+	}
+	
+	public WritableRaster copyData(WritableRaster raster) {
+		if(raster == null) raster = colorModel.createCompatibleWritableRaster(width, height);
+		raster.setRect(getData(raster.getBounds()));
+		return raster;
+	}
+	
+	public Raster getTile(int tileX, int tileY) {
+		return getData(new Rectangle(0, tileY * stripHeight, width, Math.min(stripHeight, height - tileY * stripHeight)));
+	}
+	
+	public ColorModel getColorModel() { return colorModel; }
+	public SampleModel getSampleModel() { return sampleModel; }
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+	public int getMinX() { return 0; }
+	public int getMinY() { return 0; }
+	public int getNumXTiles() { return 1; }
+	public int getNumYTiles() { return (height + stripHeight - 1) / stripHeight; }
+	public int getMinTileX() { return 0; }
+	public int getMinTileY() { return 0; }
+	public int getTileWidth() { return width; }
+	public int getTileHeight() { return stripHeight; }
+	public int getTileGridXOffset() { return 0; }
+	public int getTileGridYOffset() { return 0; }
+	public Vector<RenderedImage> getSources() { return null; }
+	public Object getProperty(String name) { return Image.UndefinedProperty; }
+	public String[] getPropertyNames() { return null; }
+	
+	/**
+	 * Carries a painting failure out of the image writer.
+	 */
+	private static class StripException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public StripException(NaturalSetException cause){
+			super(cause);
+		}
+	}
+}
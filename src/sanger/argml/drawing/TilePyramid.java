@@ -0,0 +1,412 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.drawing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sanger.argml.environment.Environment;
+import sanger.argml.environment.Environmental;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * A dyadic pyramid of tile correlation matrices stored in a memory mapped file.
+ * <p>Level <code>0</code> holds the correlation of every pair of tiles of a {@link PlotPainter}. 
+ * Every tile of level <code>k</code> covers two consecutive tiles of level <code>k - 1</code>, 
+ * and its correlations are the width weighted average of the four finer correlations it covers, 
+ * which equals the correlation computed from the snp pairs directly. 
+ * Levels are added until a single tile covers the whole chromosome.</p>
+ * <p>The file starts with a header holding the tile size, the snp positions and the size of every level, 
+ * followed by the tile widths of every level, the bounds of every tile of every level 
+ * and then the lower triangle of every level, row by row. 
+ * The bounds of a tile are its base pair interval and its first and last snp, 
+ * so a painter builds the tiles of a window on any level without building the tiles of the whole chromosome. 
+ * All values are big endian.</p>
+ * @author Lior Galanti
+ */
+public class TilePyramid extends Environmental {
+	private static final int MAGIC = 0x46545059;
+	private static final int VERSION = 2;
+	private static final int BOUNDS = 8 + 8 + 4 + 4;
+	private static final long SEGMENT = 1L << 30;
+	
+	private double tile;
+	private int snpMin;
+	private int[] markerPositions;
+	private int bpMin;
+	private int bpMax;
+	private int[] sizes;
+	private long[] widthOffsets;
+	private long[] boundOffsets;
+	private long[] valueOffsets;
+	
+	private MappedByteBuffer[] segments;
+	
+	private TilePyramid(Environment env){
+		super(env);
+	}
+	
+	private static long triangle(long n){
+		return n * (n + 1) / 2;
+	}
+	
+	private void layout(){
+		long offset = 4 * 4 + 8 + 4 * 4 + 4L * markerPositions.length + 4L * sizes.length;
+		widthOffsets = new long[sizes.length];
+		boundOffsets = new long[sizes.length];
+		valueOffsets = new long[sizes.length];
+		for(int k=0; k<sizes.length; k++){
+			widthOffsets[k] = offset;
+			offset += 8L * sizes[k];
+		}
+		for(int k=0; k<sizes.length; k++){
+			boundOffsets[k] = offset;
+			offset += (long)BOUNDS * sizes[k];
+		}
+		for(int k=0; k<sizes.length; k++){
+			valueOffsets[k] = offset;
+			offset += 8L * triangle(sizes[k]);
+		}
+	}
+	
+	private long length(){
+		return valueOffsets[sizes.length - 1] + 8L * triangle(sizes[sizes.length - 1]);
+	}
+	
+	private void map(RandomAccessFile file, FileChannel.MapMode mode) throws IOException{
+		long length = file.length();
+		segments = new MappedByteBuffer[(int)((length + SEGMENT - 1) / SEGMENT)];
+		for(int i=0; i<segments.length; i++){
+			// segments overlap by one value so every value is read from a single segment
+			segments[i] = file.getChannel().map(mode, i * SEGMENT, Math.min(SEGMENT + 8, length - i * SEGMENT));
+		}
+	}
+	
+	private double getDouble(long offset){
+		return segments[(int)(offset / SEGMENT)].getDouble((int)(offset % SEGMENT));
+	}
+	
+	private void putDouble(long offset, double value){
+		segments[(int)(offset / SEGMENT)].putDouble((int)(offset % SEGMENT), value);
+	}
+	
+	private int getInt(long offset){
+		return segments[(int)(offset / SEGMENT)].getInt((int)(offset % SEGMENT));
+	}
+	
+	private void putInt(long offset, int value){
+		segments[(int)(offset / SEGMENT)].putInt((int)(offset % SEGMENT), value);
+	}
+	
+	/**
+	 * Computes the pyramid of the tiles of a painter and writes it to a file.
+	 * Level <code>0</code> rows are distributed between worker threads, coarser levels are derived from the level below.
+	 * @param env The runtime enviroment.
+	 * @param painter The painter whose tile correlations form level <code>0</code>.
+	 * @param file The file to write.
+	 * @return The pyramid, mapped from <code>file</code>.
+	 * @throws IOException
+	 * @throws NaturalSetException
+	 */
+	public static TilePyramid build(Environment env, final PlotPainter painter, File file) throws IOException, NaturalSetException{
+		final TilePyramid pyramid = new TilePyramid(env);
+		pyramid.tile = painter.tile;
+		pyramid.snpMin = painter.snpDomain().min();
+		pyramid.markerPositions = new int[painter.snpDomain().closureCardinality()];
+		for(int i=0; i<pyramid.markerPositions.length; i++){
+			pyramid.markerPositions[i] = painter.coordinate(pyramid.snpMin + i);
+		}
+		pyramid.bpMin = painter.basePairDomain().min();
+		pyramid.bpMax = painter.basePairDomain().max();
+		
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		for(int n=painter.tiles.size(); ; n=(n + 1) / 2){
+			sizes.add(n);
+			if(n == 1) break;
+		}
+		pyramid.sizes = new int[sizes.size()];
+		for(int k=0; k<pyramid.sizes.length; k++){ pyramid.sizes[k] = sizes.get(k); }
+		pyramid.layout();
+		
+		if(file.getParentFile() != null && !file.getParentFile().exists()) file.getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(pyramid.length());
+			pyramid.map(raf, FileChannel.MapMode.READ_WRITE);
+			pyramid.writeHeader();
+			
+			for(int p=0; p<pyramid.sizes[0]; p++){
+				PlotPainter.Tile tile = painter.tiles.get(p);
+				pyramid.putDouble(pyramid.widthOffsets[0] + 8L * p, tile.width());
+				pyramid.putBounds(0, p, tile.bpleft, tile.bpright, tile.minSnp(), tile.maxSnp());
+			}
+			pyramid.buildBase(painter);
+			env.log().printBenchmark("computed pyramid level 0 with " + pyramid.sizes[0] + " tiles");
+			
+			for(int k=1; k<pyramid.sizes.length; k++){
+				pyramid.coarsen(k);
+			}
+			for(MappedByteBuffer segment : pyramid.segments){ segment.force(); }
+			
+		} finally {
+			raf.close();
+		}
+		return pyramid;
+	}
+	
+	private void writeHeader(){
+		long offset = 0;
+		putInt(offset, MAGIC); offset += 4;
+		putInt(offset, VERSION); offset += 4;
+		putInt(offset, sizes.length); offset += 4;
+		putInt(offset, markerPositions.length); offset += 4;
+		putDouble(offset, tile); offset += 8;
+		putInt(offset, snpMin); offset += 4;
+		putInt(offset, bpMin); offset += 4;
+		putInt(offset, bpMax); offset += 4;
+		putInt(offset, 0); offset += 4;
+		for(int i=0; i<markerPositions.length; i++){ putInt(offset, markerPositions[i]); offset += 4; }
+		for(int k=0; k<sizes.length; k++){ putInt(offset, sizes[k]); offset += 4; }
+	}
+	
+	private void buildBase(final PlotPainter painter) throws NaturalSetException{
+		// Lazily computed statistics are made ready before the workers start.
+		painter.correlationBand();
+		painter.correlation(painter.tiles.get(0), new double[1], 0, 0);
+		
+		final AtomicInteger next = new AtomicInteger(0);
+		int threads = Math.max(1, Math.min(env().threads(), sizes[0]));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Object>> workers = new ArrayList<Future<Object>>(threads);
+			for(int w=0; w<threads; w++){
+				workers.add(pool.submit(new Callable<Object>(){
+					public Object call() throws NaturalSetException {
+						double[] row = new double[sizes[0]];
+						for(int p=next.getAndIncrement(); p<sizes[0]; p=next.getAndIncrement()){
+							painter.correlation(painter.tiles.get(p), row, 0, p);
+							long offset = valueOffsets[0] + 8L * triangle(p);
+							for(int q=0; q<=p; q++){ putDouble(offset + 8L * q, row[q]); }
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Object> worker : workers){ worker.get(); }
+			
+		} catch (InterruptedException e) {
+			throw new NaturalSetException("Pyramid computation interrupted", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof NaturalSetException) throw (NaturalSetException)e.getCause();
+			throw new NaturalSetException("Pyramid computation failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private void coarsen(int k){
+		int fine = sizes[k - 1];
+		for(int p=0; p<sizes[k]; p++){
+			double width = 0.0;
+			for(int a=2 * p; a<Math.min(2 * p + 2, fine); a++){ width += width(k - 1, a); }
+			putDouble(widthOffsets[k] + 8L * p, width);
+			int last = Math.min(2 * p + 2, fine) - 1;
+			putBounds(k, p, bpLeft(k - 1, 2 * p), bpRight(k - 1, last), minSnp(k - 1, 2 * p), maxSnp(k - 1, last));
+		}
+		
+		for(int p=0; p<sizes[k]; p++){
+			for(int q=0; q<=p; q++){
+				double value = 0.0;
+				for(int a=2 * p; a<Math.min(2 * p + 2, fine); a++){
+					for(int b=2 * q; b<Math.min(2 * q + 2, fine); b++){
+						value += width(k - 1, a) * width(k - 1, b) * value(k - 1, a, b);
+					}
+				}
+				putDouble(valueOffsets[k] + 8L * (triangle(p) + q), value / (width(k, p) * width(k, q)));
+			}
+		}
+	}
+	
+	private void putBounds(int level, int p, double bpleft, double bpright, int minSnp, int maxSnp){
+		long offset = boundOffsets[level] + (long)BOUNDS * p;
+		putDouble(offset, bpleft);
+		putDouble(offset + 8, bpright);
+		putInt(offset + 16, minSnp);
+		putInt(offset + 20, maxSnp);
+	}
+	
+	/**
+	 * Opens a pyramid file for reading.
+	 * @param env The runtime enviroment.
+	 * @param file A file written by {@link #build(Environment, PlotPainter, File)}.
+	 * @return The pyramid, mapped from <code>file</code>.
+	 * @throws IOException
+	 */
+	public static TilePyramid open(Environment env, File file) throws IOException{
+		TilePyramid pyramid = new TilePyramid(env);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			pyramid.map(raf, FileChannel.MapMode.READ_ONLY);
+			long offset = 0;
+			if(pyramid.getInt(offset) != MAGIC || pyramid.getInt(offset + 4) != VERSION) throw new IOException(file + " is not a tile pyramid file");
+			offset += 8;
+			pyramid.sizes = new int[pyramid.getInt(offset)]; offset += 4;
+			pyramid.markerPositions = new int[pyramid.getInt(offset)]; offset += 4;
+			pyramid.tile = pyramid.getDouble(offset); offset += 8;
+			pyramid.snpMin = pyramid.getInt(offset); offset += 4;
+			pyramid.bpMin = pyramid.getInt(offset); offset += 4;
+			pyramid.bpMax = pyramid.getInt(offset); offset += 4;
+			offset += 4;
+			for(int i=0; i<pyramid.markerPositions.length; i++){ pyramid.markerPositions[i] = pyramid.getInt(offset); offset += 4; }
+			for(int k=0; k<pyramid.sizes.length; k++){ pyramid.sizes[k] = pyramid.getInt(offset); offset += 4; }
+			pyramid.layout();
+			
+		} finally {
+			raf.close();
+		}
+		return pyramid;
+	}
+	
+	/**
+	 * @param level
+	 * @param p The first tile.
+	 * @param q The second tile.
+	 * @return The correlation of the two tiles on <code>level</code>.
+	 */
+	public double value(int level, int p, int q){
+		return (p >= q) ? getDouble(valueOffsets[level] + 8L * (triangle(p) + q)) : getDouble(valueOffsets[level] + 8L * (triangle(q) + p));
+	}
+	
+	/**
+	 * @param level
+	 * @param p
+	 * @return The width in base pairs of tile <code>p</code> on <code>level</code>.
+	 */
+	public double width(int level, int p){
+		return getDouble(widthOffsets[level] + 8L * p);
+	}
+	
+	/**
+	 * @param level
+	 * @param p
+	 * @return The left base pair bound of tile <code>p</code> on <code>level</code>.
+	 */
+	public double bpLeft(int level, int p){
+		return getDouble(boundOffsets[level] + (long)BOUNDS * p);
+	}
+	
+	/**
+	 * @param level
+	 * @param p
+	 * @return The right base pair bound of tile <code>p</code> on <code>level</code>.
+	 */
+	public double bpRight(int level, int p){
+		return getDouble(boundOffsets[level] + (long)BOUNDS * p + 8);
+	}
+	
+	/**
+	 * @param level
+	 * @param p
+	 * @return The first snp overlapping tile <code>p</code> on <code>level</code>.
+	 */
+	public int minSnp(int level, int p){
+		return getInt(boundOffsets[level] + (long)BOUNDS * p + 16);
+	}
+	
+	/**
+	 * @param level
+	 * @param p
+	 * @return The last snp overlapping tile <code>p</code> on <code>level</code>.
+	 */
+	public int maxSnp(int level, int p){
+		return getInt(boundOffsets[level] + (long)BOUNDS * p + 20);
+	}
+	
+	/**
+	 * @return The number of levels in the pyramid.
+	 */
+	public int levels(){
+		return sizes.length;
+	}
+	
+	/**
+	 * @param level
+	 * @return The number of tiles on <code>level</code>.
+	 */
+	public int size(int level){
+		return sizes[level];
+	}
+	
+	/**
+	 * @return The tile size of level <code>0</code> in base pairs.
+	 */
+	public double tile(){
+		return tile;
+	}
+	
+	/**
+	 * @return The smallest snp coordinate.
+	 */
+	public int snpMin(){
+		return snpMin;
+	}
+	
+	/**
+	 * @return The chromosome position of every snp.
+	 */
+	public int[] markerPositions(){
+		return markerPositions;
+	}
+	
+	public int bpMin(){
+		return bpMin;
+	}
+	
+	public int bpMax(){
+		return bpMax;
+	}
+	
+	public String toString(){
+		StringBuilder display = new StringBuilder();
+		display.append("TilePyramid {");
+		display.append("\n\ttile: ");
+		display.append(tile);
+		display.append("\n\tsnps: ");
+		display.append(markerPositions.length);
+		display.append("\n\tlevels: ");
+		display.append(sizes.length);
+		display.append("\n\ttiles: ");
+		display.append(sizes[0]);
+		display.append("\n}");
+		return display.toString();
+	}
+}
@@ -21,8 +21,7 @@
 package sanger.argml.drawing;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
 import java.util.Date;
 
 import sanger.argml.environment.Environment;
@@ -65,35 +64,24 @@ public class TreeTraversalDistancePainter extends PlotPainter{
 		return s.localTreeCorrelation(i, j);
 	}
 	
+	protected int correlationBand() throws NaturalSetException {
+		return s.band();
+	}
+	
+	/**
+	 * @return The recombination rate density of every tile.
+	 * @throws NaturalSetException
+	 */
+	public double[] recombinationDensity() throws NaturalSetException{
+		return tiledDensity(tile, s.recombinationRates());
+	}
+	
 	public void paintRecombinationDensity(int x, int y, boolean[] significant) throws NaturalSetException{
-		double[] r = tiledDensity(tile, s.recombinationRates());
+		double[] r = recombinationDensity();
 		paintDistribution(x, y, r, true, significant);
-		paintRecombinationHotspot(x, y, r);		
+		paintHotspot(x, y, r, hotspotFactor, hotspotColor);		
 	}
 	
-	private void paintRecombinationHotspot(int x, int y, double[] distribution) throws NaturalSetException{
-		double vmax = 0.0;
-		double vmean = 0.0;
-		
-		for(double v : distribution){
-			vmax = Math.max(vmax, v);
-			vmean += v;			
-		}	vmean /= distribution.length;
-		
-		Graphics2D lines = (Graphics2D)stage.create();
-		lines.translate(x, y);
-		lines.setColor(hotspotColor);
-
-		Graphics2D values = (Graphics2D)stage.create();
-		values.translate(x + tiles.size() + 4 * padding, y + stage.getFont().getSize() / 2);
-		values.setColor(hotspotColor);
-		
-		int hotLine = (int)Math.round(vmean/vmax*distributionRange) * hotspotFactor;
-		lines.drawLine(0, hotLine, tiles.size() + 3 * padding, hotLine);
-		
-		values.drawString(doubleToString.format(hotspotFactor * vmean) + " hot", 0, hotLine);		
-	}	
-
 	public void paintRecombinationDensity(int order, boolean[] significant) throws NaturalSetException{
 		paintRecombinationDensity(xPx, yPx + tiles.size() + (order * (distributionRange + padding)) + padding, significant);
 	}
@@ -103,51 +91,19 @@ public class TreeTraversalDistancePainter extends PlotPainter{
 	}
 
 		
-	public void paintSnpDensity(int x, int y) throws NaturalSetException{
-		double[] r = tiledSnpDensity(tile);
-
-		paintDistribution(x, y, r, true);
-	}
-	
-	public void paintSnpDensity(int order) throws NaturalSetException{
-		paintSnpDensity(xPx, yPx + tiles.size() + (order * (distributionRange + padding)) + padding);
-	}
-
-	public void paintLegend(){
-		paintLegend(xPx + scaleRange + 9 * padding + stage.getFont().getSize() * 4 + tiles.size() + axisRange * 2, yPx);
-	}
-	
-	public void paintLegend(int x, int y){
-		AffineTransform origin = AffineTransform.getTranslateInstance(x, y);
-		
-		// frame
-		Graphics2D paint = (Graphics2D)stage.create();
-		
-		paint.setTransform(origin);
-
-		paint.setTransform(origin);
-		paint.setColor(lineColor);
-		int lineSpace = (int)Math.ceil(stage.getFont().getSize() * 1.1);
-		paint.translate(padding, padding + lineSpace);
-		paint.drawString("Top:  " + env().stringProperty("Name"), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Bottom:  " + env().stringProperty("Other"), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Tile (pixel):  " + env().integerProperty("Tile") +" bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Min bp:  " + s.basePairDomain().min() +" bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Max bp:  " + s.basePairDomain().max() +" bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Min SNP:  " + s.snpDomain().min(), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Max SNP:  " + s.snpDomain().max(), 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("SNP density:  " + s.basePairDomain().closureCardinality() / s.snpDomain().closureCardinality() +" bp/snp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Grid spacing :  " + env().integerProperty("GridSpacing") + " bp", 0, 0);
-		paint.translate(0, lineSpace);
-		paint.drawString("Time :  " + new Date(System.currentTimeMillis()), 0, 0);
+	protected ArrayList<String> legend(){
+		ArrayList<String> legend = new ArrayList<String>();
+		legend.add("Top:  " + env().stringProperty("Name"));
+		legend.add("Bottom:  " + env().stringProperty("Other"));
+		legend.add("Tile (pixel):  " + env().integerProperty("Tile") +" bp");
+		legend.add("Min bp:  " + s.basePairDomain().min() +" bp");
+		legend.add("Max bp:  " + s.basePairDomain().max() +" bp");
+		legend.add("Min SNP:  " + s.snpDomain().min());
+		legend.add("Max SNP:  " + s.snpDomain().max());
+		legend.add("SNP density:  " + s.basePairDomain().closureCardinality() / s.snpDomain().closureCardinality() +" bp/snp");
+		legend.add("Grid spacing :  " + env().integerProperty("GridSpacing") + " bp");
+		legend.add("Time :  " + new Date(System.currentTimeMillis()));
+		return legend;
 	}
 	
 	protected void readProperties(){
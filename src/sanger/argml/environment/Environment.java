@@ -49,6 +49,7 @@ public class Environment implements Iterable<AbstractProperty> {
 	private HashMap<String, AbstractProperty> properties = new HashMap<String, AbstractProperty>();
 	private HashMap<String, Instruction> commands = new HashMap<String, Instruction>();
 	private Instruction instruction;
+	private String command;
 	private File outbase;
 	private File inbase;
 	private LogOutput log;
@@ -61,15 +62,7 @@ public class Environment implements Iterable<AbstractProperty> {
 			if(instruction == null) instruction = commands.get("help");
 		} else instruction = commands.get("help");
 		
-		for(Dependency d : instruction){
-			d.getProperty().match(command);
-			if(!d.isOptional() && !d.getProperty().hasValue()){
-				throw new UnknownCommandException("error: missing mandatory parameters!", instruction);
-			}
-		}
-		
-		outbase = new File(stringProperty("OutputBase"));
-		inbase = new File(stringProperty("InputBase"));
+		match(command);
 		log = stringPropertyExist("Log") ? new LogOutput(this, stringProperty("Log")) : new LogOutput(this, System.err);
 		
 		if(!instruction.getName().equals("help")){
@@ -81,6 +74,38 @@ public class Environment implements Iterable<AbstractProperty> {
 		
 	}
 	
+	/**
+	 * Constructs the environment of a job executed by another instruction.
+	 * Options missing from <code>command</code> are read from the command of <code>parent</code>, 
+	 * and the job writes to the log of <code>parent</code>.
+	 * @param parent The environment of the executing instruction.
+	 * @param command The job command line, starting with the job instruction.
+	 * @throws XMLStreamException
+	 * @throws UnknownCommandException if the job instruction is unknown or mandatory job parameters are missing.
+	 */
+	public Environment(Environment parent, String command) throws XMLStreamException, UnknownCommandException{
+		readConfig();
+		Matcher m = commandExp.matcher(" " + command + " ");
+		instruction = m.find() ? commands.get(m.group(1)) : null;
+		if(instruction == null) throw new UnknownCommandException("error: unknown job " + command.trim());
+		
+		match(" " + command + " " + parent.command);
+		log = parent.log;
+	}
+	
+	private void match(String command) throws UnknownCommandException{
+		this.command = command;
+		for(Dependency d : instruction){
+			d.getProperty().match(command);
+			if(!d.isOptional() && !d.getProperty().hasValue()){
+				throw new UnknownCommandException("error: missing mandatory parameters!", instruction);
+			}
+		}
+		
+		outbase = new File(stringProperty("OutputBase"));
+		inbase = new File(stringProperty("InputBase"));
+	}
+	
 	private void readConfig() throws XMLStreamException{
 		XmlInput i = new XmlInput(this, this.getClass().getResourceAsStream("/sanger/argml/cli/config.xml"));
 		int order = 0;
@@ -241,6 +266,15 @@ public class Environment implements Iterable<AbstractProperty> {
 		return log;
 	}
 	
+	/**
+	 * @return The number of worker threads requested by the <code>Threads</code> property, 
+	 * or the number of available processors if it is not positive.
+	 */
+	public int threads() {
+		Integer threads = integerProperty("Threads");
+		return (threads == null || threads < 1) ? Runtime.getRuntime().availableProcessors() : threads;
+	}
+	
 	public File outbase() {
 		return outbase;
 	}
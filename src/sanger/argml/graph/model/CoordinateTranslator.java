@@ -30,86 +30,25 @@ public class CoordinateTranslator extends Environmental{
 		return overlappingCoverage(i, min, max) / coverage(i);
 	}
 	
+	/**
+	 * @param tile The tile size, in target coordinates.
+	 * @return The {@link TileLayout} of <code>tile</code> sized tiles over the target domain.
+	 * @throws NaturalSetException
+	 */
+	public TileLayout tileLayout(double tile) throws NaturalSetException {
+		return TileLayout.layout(source, target, embedding, tile);
+	}
+	
 	public double[] tiledAverage(double tile, double[] parameter) throws NaturalSetException {
-		double[] average = new double[(int)Math.ceil(target.closureCardinality() / (double)tile)];
-		int left = source.min();
-		int count = 0;
-		double mark = target.min();
-
-		for(int i : source){
-			while(coordinate(i) > mark + tile){
-				for(int k=left; k<i; k++){
-					average[count] +=  parameter[source.toRelativeCoordinate(k)] / (i-left);
-				}
-				count++;
-				mark += tile;
-				left = i-1;
-			}
-		}
-		
-		// Complete the last, incomplete, tile
-		if(mark < target.max()){
-			for(int k=left; k<source.max(); k++){
-				average[count] +=  parameter[source.toRelativeCoordinate(k)] / (source.max()-left);
-			}
-		}
-
-		return  average;
+		return tileLayout(tile).average(parameter);
 	}
 		
 	public double[] tiledDensity(double tile, double[] parameter) throws NaturalSetException {
-		double[] density = new double[(int)Math.ceil(target.closureCardinality() / (double)tile)];
-		int left = source.min();
-		int count = 0;
-		double mark = target.min();
-
-		for(int i : source){
-			while(coordinate(i) > mark + tile){
-				for(int k=left; k<i; k++){
-					
-					density[count] += overlappingCoverageFraction(k, mark, mark + tile) * parameter[source.toRelativeCoordinate(k)];
-				}
-				count++;
-				mark += tile;
-				left = i-1;
-			}
-		}
-		
-		// Complete the last, incomplete, tile
-		if(mark < target.max()){
-			for(int k=left; k<source.max(); k++){
-				density[count] += overlappingCoverageFraction(k, mark, target.max()) * parameter[source.toRelativeCoordinate(k)];
-			}
-		}
-
-		return  density;
+		return tileLayout(tile).density(parameter);
 	}
 
 	public double[] sourceInTargetDensity(double tile) throws NaturalSetException {		
-		double[] density = new double[(int)Math.ceil(target.closureCardinality() / (double)tile)];
-		int left = source.min();
-		int count = 0;
-		double mark = target.min();
-
-		for(int i : source){
-			while(coordinate(i) > mark + tile){
-				for(int k=left; k<i; k++){
-					density[count] += overlappingCoverageFraction(k, mark, mark + tile);
-				}
-				count++;
-				mark += tile;
-				left = i-1;
-			}
-		}
-		
-		// Complete the last, incomplete, tile
-		if(mark < target.max()){
-			for(int k=left; k<source.max(); k++){
-				density[count] += overlappingCoverageFraction(k, mark, target.max());
-			}
-		}
-
-		return  density;
+		return tileLayout(tile).sourceDensity();
 	}
 
 	protected int coordinate(int i) throws NaturalSetException {
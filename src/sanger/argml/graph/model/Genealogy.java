@@ -21,6 +21,7 @@
 package sanger.argml.graph.model;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
@@ -36,11 +37,13 @@ import sanger.math.set.NaturalDomain;
 import sanger.math.set.NaturalSet;
 import sanger.math.set.NaturalSetCollection;
 import sanger.math.set.NaturalSetException;
+import sanger.math.set.NaturalSetMatrix;
 
 public class Genealogy extends Environmental implements Cloneable{	
 	protected NaturalDomain snpDomain;
 	protected NaturalDomain haplotypeDomain;
 	protected NaturalSet ancestralSequence;	
+	protected int[] stitches = new int[0]; // Positions where independently inferred windows were joined.
 
 	protected LinkedList<Vertex> vertices;
 	protected LinkedList<Edge> edges;
@@ -93,10 +96,23 @@ public class Genealogy extends Environmental implements Cloneable{
 	 * Calculate all possible bipartitions for the tree.
 	 * This procedure applies only when {@link #isTree()} return true.
 	 * @return A collection of all possible bipartitions.
+	 * @see #biPartitionMatrix()
 	 */
 	public NaturalSetCollection biPartitions() {
-		HashMap<Edge, NaturalSet> edgeToBiPartitionMap = null;
-		NaturalSetCollection result = null;
+		NaturalSetMatrix matrix = biPartitionMatrix();
+		return matrix == null ? null : matrix.toCollection();
+	}
+	
+	/**
+	 * Calculate all possible bipartitions for the tree as a sorted binary matrix.
+	 * Every row is a bipartition, in the haplotype domain relative coordinate system, 
+	 * represented by the side that does not contain the smallest haplotype.
+	 * This procedure applies only when {@link #isTree()} return true.
+	 * @return A sorted matrix of all possible bipartitions.
+	 */
+	public NaturalSetMatrix biPartitionMatrix() {
+		HashMap<Edge, Integer> edgeToBiPartitionMap = null;
+		NaturalSetMatrix result = null;
 		//	If L denotes the number of haplotypes and the root is multifurcated 
 		//	then there are no identical bipartitions but there will be strictly less then L-2.
 		//	If the root is bifurcated the L-2 edge in DFS order has to be the second edge coming into the root
@@ -105,7 +121,9 @@ public class Genealogy extends Environmental implements Cloneable{
 		int pmax = 2 * haplotypeDomain.cardinality() - 3;
 		
 		if(isTree()){			
-			edgeToBiPartitionMap = new HashMap<Edge, NaturalSet>();
+			edgeToBiPartitionMap = new HashMap<Edge, Integer>();
+			NaturalSetMatrix partitions = new NaturalSetMatrix(haplotypeDomain, pmax + 1);
+			int hmin = haplotypeDomain.min();
 			Vertex current = gmrca;
 			
 			while(current != null){
@@ -126,12 +144,10 @@ public class Genealogy extends Environmental implements Cloneable{
 						current = next.target();
 					} else {
 						if(back != null && edgeToBiPartitionMap.size() < pmax){
-							NaturalSet biPartition = haplotypeDomain.createEmptyNaturalSet();					
+							int biPartition = partitions.addRow();
 							for(Edge edge : current){
 								if(current.isSource(edge)){
-									try { biPartition.union(edgeToBiPartitionMap.get(edge)); } 
-									catch (NaturalSetException e) { env().log().printError(e); }
-									
+									partitions.union(biPartition, edgeToBiPartitionMap.get(edge));
 								}
 							}
 							edgeToBiPartitionMap.put(back, biPartition);
@@ -141,18 +157,22 @@ public class Genealogy extends Environmental implements Cloneable{
 						}
 					}
 				} else {
-					edgeToBiPartitionMap.put(back, new NaturalSet(haplotypeDomain, current.getId(), current.getId()));
+					int leaf = partitions.addRow();
+					if(haplotypeDomain.contains(current.getId())){ partitions.set(leaf, current.getId() - hmin); }
+					edgeToBiPartitionMap.put(back, leaf);
 					current = back.source();				
 				}
 			}			
 			
-			result = new NaturalSetCollection(haplotypeDomain);
+			result = new NaturalSetMatrix(haplotypeDomain, edgeToBiPartitionMap.size());
 			int inf = 1, sup = haplotypeDomain.cardinality() - 1;
-			for(NaturalSet p : edgeToBiPartitionMap.values()){
-				int card = p.cardinality();
+			for(int p=0; p<partitions.size(); p++){
+				int card = partitions.cardinality(p);
 				if( card > inf && card < sup){
-					if(p.contains(p.domain().min())) p.inverse();
-					try { result.add(p);} 
+					try { 
+						int row = result.addRow(partitions, p);
+						if(result.get(row, 0)) result.inverse(row);
+					} 
 					catch (NaturalSetException e) { env().log().printError(e); }
 				}
 			}			
@@ -167,15 +187,30 @@ public class Genealogy extends Environmental implements Cloneable{
 	 * Calculate all possible bipartitions for all local trees in the graph.
 	 * The map stores a collection of bipartions for the local tree for every {@link #recombinationFreeRegions() recombination free regions} in the snp domain. 
 	 * @return A map of collections of bipartitions.  
+	 * @see #localTreesBiPartitionMatrices()
 	 */
 	public HashMap<NaturalSet, NaturalSetCollection> localTreesBiPartitions() {
+		HashMap<NaturalSet, NaturalSetMatrix> matrices = localTreesBiPartitionMatrices();
+		HashMap<NaturalSet, NaturalSetCollection> localTreesBiPartitions = new HashMap<NaturalSet, NaturalSetCollection>(matrices.size());
+		for(NaturalSet frame : matrices.keySet()){
+			localTreesBiPartitions.put(frame, matrices.get(frame).toCollection());
+		}
+		return localTreesBiPartitions;
+	}
+	
+	/**
+	 * Calculate all possible bipartitions for all local trees in the graph.
+	 * The map stores a sorted {@link NaturalSetMatrix} of bipartions for the local tree for every {@link #recombinationFreeRegions() recombination free regions} in the snp domain. 
+	 * @return A map of matrices of bipartitions.  
+	 */
+	public HashMap<NaturalSet, NaturalSetMatrix> localTreesBiPartitionMatrices() {
 		NaturalSetCollection frames = recombinationFreeRegions();
-		HashMap<NaturalSet, NaturalSetCollection> localTreesBiPartitions = new HashMap<NaturalSet, NaturalSetCollection>(frames.size());
+		HashMap<NaturalSet, NaturalSetMatrix> localTreesBiPartitions = new HashMap<NaturalSet, NaturalSetMatrix>(frames.size());
 
 		for(NaturalSet frame : frames){
 			if(frame.cardinality() > 0){
 				try {			
-					NaturalSetCollection biPartitions =  clipSnpDomain(this, frame).biPartitions();
+					NaturalSetMatrix biPartitions =  clipSnpDomain(this, frame).biPartitionMatrix();
 					localTreesBiPartitions.put(frame, biPartitions);
 					
 				} catch (NaturalSetException e) { env().log().printError(e); }	
@@ -208,7 +243,7 @@ public class Genealogy extends Environmental implements Cloneable{
 				for(Edge edge : fragments){
 					try {
 						int position = snpDomain.toRelativeCoordinate(edge.activeRegion().max());
-						distribution[position]++;
+						if(!isStitch(edge.activeRegion().max())) distribution[position]++;
 					} catch (NaturalSetException e) { env().log().printError(e); }	
 				}					
 			}
@@ -216,6 +251,32 @@ public class Genealogy extends Environmental implements Cloneable{
 		return  distribution;		
 	}
 	
+	/**
+	 * Records that the recombinations at <code>position</code> join independently inferred windows of the snp domain.
+	 * They still separate the local trees but are not counted by {@link #recombinationRates()}.
+	 * @param position The last snp of the left window, in absolute snp coordinates.
+	 */
+	protected void addStitch(int position){
+		for(int stitch : stitches){ if(stitch == position) return; }
+		stitches = Arrays.copyOf(stitches, stitches.length + 1);
+		stitches[stitches.length - 1] = position;
+	}
+	
+	/**
+	 * A fragment ending at <code>position</code> is a stitch if a stitch lies between it and the next snp of the domain,
+	 * so stitches are still recognized once the snp domain has been clipped.
+	 */
+	private boolean isStitch(int position){
+		boolean result = false;
+		if(stitches.length > 0){
+			int[] members = snpDomain.members();
+			int next = Arrays.binarySearch(members, position) + 1;
+			int bound = (next > 0 && next < members.length) ? members[next] : Integer.MAX_VALUE;
+			for(int stitch : stitches){ result |= (position <= stitch && stitch < bound); }
+		}
+		return result;
+	}
+	
 	/**
 	 * Map locations where recombination events occur.
 	 * Use {@link #recombinationRates()} for actual recombination counts.
@@ -284,11 +345,12 @@ public class Genealogy extends Environmental implements Cloneable{
 	 */
 	public static Genealogy clipSnpDomain(final Genealogy genealogy, final NaturalSet region, final Vertex vertex) throws NaturalSetException {
 		Genealogy clip = null;
-		if(genealogy.snpDomain.equals(region.domain())){
+		if(genealogy.snpDomain.compatible(region.domain())){
 			NaturalDomain subDomain = genealogy.snpDomain.createSubDomain(region);
 			HashMap<Vertex,Vertex> vertexMap = new HashMap<Vertex, Vertex>(subDomain.closureCardinality());
 			Deque<Edge> toVisit = new ArrayDeque<Edge>(subDomain.closureCardinality());		
 			clip = new Genealogy(genealogy.env(), subDomain, genealogy.haplotypeDomain, subDomain.project(genealogy.ancestralSequence));
+			clip.stitches = genealogy.stitches;
 			Vertex vertexToCopy = vertex;
 			
 			while(vertexToCopy.outDegree(region) == 1){
@@ -138,6 +138,15 @@ public class GenealogyFactory extends Environmental{
 		stubs.put(rightKey, right);
 	}
 	
+	/**
+	 * A recombination that only joins two independently inferred windows of the snp domain.
+	 * @see Genealogy#addStitch(int)
+	 */
+	public void stitch(int leftKey, int rightKey, int childKey, int position) throws NaturalSetException {
+		recombine(leftKey, rightKey, childKey, position);
+		genealogy.addStitch(position);
+	}
+	
 	public void coalesce(int parentKey, int oneKey, int twoKey) throws NaturalSetException {
 		Vertex one = stubs.get(oneKey);
 		Vertex two = stubs.get(twoKey);
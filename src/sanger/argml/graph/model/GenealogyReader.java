@@ -38,7 +38,7 @@ public class GenealogyReader extends GenealogyFactory implements Iterable<Geneal
 	protected MargaritaGenealogyReadState state = MargaritaGenealogyReadState.START;	
 	protected static final Pattern coalescencePattern = Pattern.compile("^[0-9]+\\sco\\s([0-9]+)\\s([0-9]+)\\s([0-9]+)$");
 	protected static final Pattern mutationPattern = Pattern.compile("^[0-9]+\\s(?:mu|er)\\s([0-9]+)\\s([0-9]+)\\s([0-9]+)$");
-	protected static final Pattern recombinationPattern = Pattern.compile("^[0-9]+\\sre\\s([0-9]+)\\s([0-9]+)\\s([0-9]+)\\s([0-9]+)$");
+	protected static final Pattern recombinationPattern = Pattern.compile("^[0-9]+\\s(re|st)\\s([0-9]+)\\s([0-9]+)\\s([0-9]+)\\s([0-9]+)$");
 	protected static final Pattern headerPattern = Pattern.compile("^([0-9]+)\\s([0-9]+)\\s(?:(?:[0-9\\.E-]+|NA)\\s){6}(?:[0-9\\.E-]+|NA)$");
 	protected static final Pattern nextArgPattern = Pattern.compile("^ARG ([0-9]+)$");
 	protected static final Pattern argInferencePattern = Pattern.compile("^%ARGINFERENCE$");
@@ -76,8 +76,8 @@ public class GenealogyReader extends GenealogyFactory implements Iterable<Geneal
 				matcher = headerPattern.matcher(instruction);
 				if(matcher.matches()){
 					if(count == 0){
-						snpDomain = new NaturalDomain(Integer.parseInt(matcher.group(2))); 
-						haplotypeDomain = new NaturalDomain(Integer.parseInt(matcher.group(1)));
+						snpDomain = new NaturalDomain(Integer.parseInt(matcher.group(2))).intern(); 
+						haplotypeDomain = new NaturalDomain(Integer.parseInt(matcher.group(1))).intern();
 						snpFilter = snpDomain.createCompleteNaturalSet();
 					} count++;
 				} else {
@@ -121,11 +121,12 @@ public class GenealogyReader extends GenealogyFactory implements Iterable<Geneal
 							}
 							
 						} else {
-							Integer childKey = Integer.decode(matcher.group(1));
-							Integer leftKey = Integer.decode(matcher.group(2));
-							Integer rightKey = Integer.decode(matcher.group(3));
-							Integer position = Integer.decode(matcher.group(4));
-							recombine(leftKey, rightKey, childKey, position);
+							Integer childKey = Integer.decode(matcher.group(2));
+							Integer leftKey = Integer.decode(matcher.group(3));
+							Integer rightKey = Integer.decode(matcher.group(4));
+							Integer position = Integer.decode(matcher.group(5));
+							if(matcher.group(1).equals("st")) stitch(leftKey, rightKey, childKey, position);
+							else recombine(leftKey, rightKey, childKey, position);
 						}
 					} else {
 						Integer targetKey = Integer.decode(matcher.group(1));
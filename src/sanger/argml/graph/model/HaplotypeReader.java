@@ -79,10 +79,10 @@ public class HaplotypeReader implements Iterable<Haplotype> {
 	
 	private void processHeader(Matcher matcher) throws NaturalSetException{
 		int markers = Integer.decode(matcher.group(3));		
-		snpDomain = new NaturalDomain(markers);
+		snpDomain = new NaturalDomain(markers).intern();
 		
 		int haplotypes = Integer.decode(matcher.group(1)) + Integer.decode(matcher.group(2));		
-		haplotypeDomain = new NaturalDomain(haplotypes);
+		haplotypeDomain = new NaturalDomain(haplotypes).intern();
 		
 		haplotypePattern = Pattern.compile("^[01M]{" + markers + "}$");		
 		state = HaplotypeFileLineType.MARKER;		
@@ -48,6 +48,7 @@ public class HaplotypeSet extends Environmental implements Iterable<Haplotype>{
 	// Lazy
 	private double[] marginalAlleleFrequency = null;
 	private NaturalSetCollection markersTransposed = null;
+	private LinkageMatrix linkageMatrix = null;
 
 	/**
 	 * Constructs a new empty haplotype set.
@@ -86,6 +87,7 @@ public class HaplotypeSet extends Environmental implements Iterable<Haplotype>{
 	private void clearLazy(){
 		marginalAlleleFrequency = null;
 		markersTransposed = null;
+		linkageMatrix = null;
 	}
 
 	public void add(Haplotype haplotype) throws NaturalSetException{
@@ -96,7 +98,7 @@ public class HaplotypeSet extends Environmental implements Iterable<Haplotype>{
 	
 	public static HaplotypeSet clipSnpDomain(HaplotypeSet source, NaturalSet region) throws NaturalSetException{
 		HaplotypeSet clip = null;
-		if(source.markers.domain().equals(region.domain())){
+		if(source.markers.domain().compatible(region.domain())){
 			NaturalDomain clipSnpDomain = source.markers.domain().createSubDomain(region);
 			int[] mp = new int[clipSnpDomain.closureCardinality()];
 			
@@ -469,13 +471,29 @@ public class HaplotypeSet extends Environmental implements Iterable<Haplotype>{
 		return (value <= 0.5) ? value : 1 - value;
 	}
 	
-	private NaturalSetCollection markersTransposed() throws NaturalSetException{
+	NaturalSetCollection markersTransposed() throws NaturalSetException{
 		if(markersTransposed == null) {
 			markersTransposed = NaturalSetCollection.transpose(markers);
 		}
 		return markersTransposed;
 	}
 	
+	/**
+	 * The pairwise r square matrix of all snps, computed once on the number of threads given by the <code>Threads</code> property.
+	 * When the <code>MaxDistance</code> property is set the matrix is banded to the snp pairs at most that many base pairs apart.
+	 * Construct a {@link LinkageMatrix} directly for D'.
+	 * @return The r square values for all snp pairs.
+	 * @throws NaturalSetException
+	 */
+	public LinkageMatrix linkageMatrix() throws NaturalSetException{
+		if(linkageMatrix == null) {
+			Integer distance = env().integerProperty("MaxDistance");
+			int band = (distance != null && distance > 0) ? Statistics.band(markerPositions, distance) : -1;
+			linkageMatrix = new LinkageMatrix(env(), this, band, false);
+		}
+		return linkageMatrix;
+	}
+	
 	public double rsquare(int i, int j) throws NaturalSetException{
 		double result = 0;
 		double pi = marginalAlleleFrequency(i);
@@ -485,7 +503,7 @@ public class HaplotypeSet extends Environmental implements Iterable<Haplotype>{
 			NaturalSet allelei = markersTransposed().get(snpDomain().toRelativeCoordinate(i));
 			NaturalSet allelej = markersTransposed().get(snpDomain().toRelativeCoordinate(j));
 			
-			result = (double)NaturalSet.intersect(allelei, allelej).cardinality();		
+			result = (double)allelei.intersectionCount(allelej);
 			result /= (double)markers.size();
 			result -= (pi * pj);
 			result *= result;
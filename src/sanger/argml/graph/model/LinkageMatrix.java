@@ -0,0 +1,209 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.graph.model;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.util.OpenBitSet;
+
+import sanger.argml.environment.Environment;
+import sanger.argml.environment.Environmental;
+import sanger.math.set.BitKernel;
+import sanger.math.set.NaturalDomain;
+import sanger.math.set.NaturalSetCollection;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * Pairwise linkage disequilibrium for all snp pairs of a {@link HaplotypeSet}, computed in one pass.
+ * <p>The haplotype count of every allele pair is the population count of the intersection of the two 
+ * snp major allele vectors. Rows are computed in blocks of {@link #BLOCK} snps against column blocks of the same size 
+ * so the allele vectors of both blocks stay in cache, and row blocks are distributed between worker threads.</p>
+ * <p>The matrix is symmetric and only the lower triangle is stored. When a <code>band</code> is given, only pairs 
+ * at most <code>band</code> snps apart are computed and stored, all other pairs read as <code>0</code>.</p>
+ * @author Lior Galanti
+ */
+public class LinkageMatrix extends Environmental{
+	/**
+	 * Number of snps in a row or column block.
+	 */
+	public static final int BLOCK = 64;
+	
+	private NaturalDomain snpDomain;
+	private int min;
+	private int band;
+	private int haplotypes;
+	private double[] frequency;
+	private long[][] alleles;
+	private int words;
+	
+	private double[][] rsquare;
+	private double[][] dprime;
+	
+	/**
+	 * Computes the linkage matrix.
+	 * @param env The runtime enviroment.
+	 * @param hs The haplotypes.
+	 * @param band The largest snp distance to compute, or a negative number for the complete matrix.
+	 * @param withDPrime If <code>true</code> D' is computed along with r square.
+	 * @throws NaturalSetException
+	 */
+	public LinkageMatrix(Environment env, HaplotypeSet hs, int band, boolean withDPrime) throws NaturalSetException {
+		super(env);
+		this.snpDomain = hs.snpDomain();
+		this.min = snpDomain.min();
+		this.band = band;
+		this.haplotypes = hs.haplotypes().size();
+		this.frequency = hs.marginalAlleleFrequencies();
+		
+		NaturalSetCollection transposed = hs.markersTransposed();
+		int snps = transposed.size();
+		this.alleles = new long[snps][];
+		this.words = Integer.MAX_VALUE;
+		for(int i=0; i<snps; i++){
+			OpenBitSet map = transposed.get(i).map();
+			alleles[i] = map.getBits();
+			words = Math.min(words, map.getNumWords());
+		}
+		
+		rsquare = new double[snps][];
+		if(withDPrime) dprime = new double[snps][];
+		for(int i=0; i<snps; i++){
+			rsquare[i] = new double[i - first(i) + 1];
+			if(withDPrime) dprime[i] = new double[i - first(i) + 1];
+		}
+		compute();
+	}
+	
+	private int first(int i){
+		return band < 0 ? 0 : Math.max(0, i - band);
+	}
+	
+	private void compute() throws NaturalSetException{
+		final int blocks = (rsquare.length + BLOCK - 1) / BLOCK;
+		final AtomicInteger next = new AtomicInteger(0);
+		int threads = Math.max(1, Math.min(env().threads(), blocks));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Object>> workers = new ArrayList<Future<Object>>(threads);
+			for(int t=0; t<threads; t++){
+				workers.add(pool.submit(new Callable<Object>(){
+					public Object call() {
+						for(int rb=next.getAndIncrement(); rb<blocks; rb=next.getAndIncrement()){
+							computeRowBlock(rb);
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Object> worker : workers){ worker.get(); }
+			
+		} catch (InterruptedException e) {
+			throw new NaturalSetException("Linkage computation interrupted", e);
+		} catch (ExecutionException e) {
+			throw new NaturalSetException("Linkage computation failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		env().log().printBenchmark("computed linkage matrix for " + rsquare.length + " snps on " + threads + " threads");
+	}
+	
+	private void computeRowBlock(int rb){
+		BitKernel kernel = BitKernel.instance();
+		int rowFrom = rb * BLOCK;
+		int rowTo = Math.min(rsquare.length, rowFrom + BLOCK);
+		int columnFrom = first(rowFrom);
+		for(int cb=columnFrom - columnFrom % BLOCK; cb<rowTo; cb+=BLOCK){
+			for(int i=rowFrom; i<rowTo; i++){
+				double pi = frequency[i];
+				int lo = Math.max(cb, first(i));
+				int hi = Math.min(i, cb + BLOCK - 1);
+				for(int j=lo; j<=hi; j++){
+					double pj = frequency[j];
+					if( pi > 0 &&  pj> 0) {
+						double pij = (double)kernel.intersectionCount(alleles[i], alleles[j], words);
+						pij /= (double)haplotypes;
+						double d = pij - (pi * pj);
+						double result = d * d;
+						result /= ( pi * (1-pi) * pj * (1-pj) );
+						if(result > 1.0) {
+							if(result < 1.05) result = 1.0;
+							else env().log().printInfo("warrning LD float error of more then 5% over 1.0 [" + (i + min) + "," + (j + min) + "]:" + result); 
+						}
+						rsquare[i][j - first(i)] = result;
+						
+						if(dprime != null){
+							double dmax = d > 0 ? Math.min(pi * (1-pj), (1-pi) * pj) : Math.min(pi * pj, (1-pi) * (1-pj));
+							dprime[i][j - first(i)] = dmax > 0 ? Math.abs(d) / dmax : 0.0;
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private static double value(double[][] matrix, int i, int j, int first){
+		return j < first ? 0.0 : matrix[i][j - first];
+	}
+	
+	/**
+	 * @param i snp coordinate for the first snp
+	 * @param j snp coordinate for the second snp
+	 * @return r square for the two snps, or <code>0</code> if the pair is outside the band.
+	 */
+	public double rsquare(int i, int j){
+		int ri = i - min, rj = j - min;
+		if(ri < rj) { int swap = ri; ri = rj; rj = swap; }
+		return value(rsquare, ri, rj, first(ri));
+	}
+	
+	/**
+	 * @param i snp coordinate for the first snp
+	 * @param j snp coordinate for the second snp
+	 * @return D' for the two snps, or <code>0</code> if the pair is outside the band.
+	 * @throws NaturalSetException if the matrix was constructed without D'.
+	 */
+	public double dprime(int i, int j) throws NaturalSetException{
+		if(dprime == null) throw new NaturalSetException("Linkage matrix was computed without D'");
+		int ri = i - min, rj = j - min;
+		if(ri < rj) { int swap = ri; ri = rj; rj = swap; }
+		return value(dprime, ri, rj, first(ri));
+	}
+	
+	/**
+	 * @return The largest snp distance computed, or a negative number if the matrix is complete.
+	 */
+	public int band(){
+		return band;
+	}
+	
+	/**
+	 * @return The snp domain of the matrix.
+	 */
+	public NaturalDomain snpDomain(){
+		return snpDomain;
+	}
+}
@@ -35,8 +35,8 @@ import sanger.argml.io.XmlOutput;
 import sanger.argml.statistic.Calculator;
 import sanger.math.set.NaturalDomain;
 import sanger.math.set.NaturalSet;
-import sanger.math.set.NaturalSetCollection;
 import sanger.math.set.NaturalSetException;
+import sanger.math.set.NaturalSetMatrix;
 
 public class Statistics extends Environmental{
 	protected String name;
@@ -47,6 +47,7 @@ public class Statistics extends Environmental{
 	protected int[] markerPositions;	
 	protected double[] recombinationCount;
 	protected double[][] treeCorrelationCount;
+	protected int band;
 	
 	protected int args;
 	//private double treeCorrelationFactor;
@@ -72,9 +73,23 @@ public class Statistics extends Environmental{
 		args = 0;
 		recombinationMax = 0;
 		treeCorrelationCount = null;
+		band = -1;
 	}
 		
 	public Statistics(Environment env, String name, HaplotypeReader haplotypeInput) throws IOException{
+		this(env, name, haplotypeInput, 0);
+	}
+	
+	/**
+	 * Constructs an empty <code>Statistics</code> that only keeps the local tree correlation of snps at most <code>distance</code> base pairs apart.
+	 * The correlation of all other pairs reads as <code>0</code>, and memory grows with the number of snps times the snp band instead of quadratically.
+	 * @param env
+	 * @param name
+	 * @param haplotypeInput
+	 * @param distance The maximum base pair distance of a snp pair, or <code>0</code> to keep all pairs.
+	 * @throws IOException
+	 */
+	public Statistics(Environment env, String name, HaplotypeReader haplotypeInput, int distance) throws IOException{
 		super(env);
 		this.name = name;
 		snpDomain = haplotypeInput.getSnpDomain();
@@ -86,13 +101,38 @@ public class Statistics extends Environmental{
 		recombinationCount = new double[snpDomain.closureCardinality()];
 		args = 0;
 		recombinationMax = 0;
-		treeCorrelationCount = new double[snpDomain.closureCardinality()][];		
-		for(int i=0; i<snpDomain.closureCardinality(); i++) { treeCorrelationCount[i] = new double[i+1]; }
+		band = (distance > 0) ? band(markerPositions, distance) : -1;
+		treeCorrelationCount = triangle(snpDomain.closureCardinality(), band);
+	}
+	
+	/**
+	 * @param markerPositions Ascending chromosome coordinates of the snps.
+	 * @param distance A base pair distance.
+	 * @return The smallest snp band containing every pair of snps at most <code>distance</code> base pairs apart.
+	 */
+	protected static int band(int[] markerPositions, int distance){
+		int band = 0;
+		for(int i=0, j=0; i<markerPositions.length; i++){
+			while(markerPositions[i] - markerPositions[j] > distance) j++;
+			band = Math.max(band, i - j);
+		}
+		return band;
+	}
+	
+	/**
+	 * @param size Number of rows.
+	 * @param band The snp band, or a negative number for the full triangle.
+	 * @return A lower triangular matrix where row <code>i</code> holds columns <code>i - band</code> to <code>i</code>.
+	 */
+	protected static double[][] triangle(int size, int band){
+		double[][] rows = new double[size][];
+		for(int i=0; i<size; i++) { rows[i] = new double[(band < 0 ? i : Math.min(i, band)) + 1]; }
+		return rows;
 	}
 		
 
 	public void addStatistics(Statistics other) throws NaturalSetException{
-		if(snpDomain.equals(other.snpDomain) && haplotypeDomain.equals(other.haplotypeDomain)){
+		if(snpDomain.compatible(other.snpDomain) && haplotypeDomain.compatible(other.haplotypeDomain) && band == other.band){
 			for(int i=0; i<recombinationCount.length; i++){
 				recombinationCount[i] += other.recombinationCount[i];
 			}
@@ -112,7 +152,7 @@ public class Statistics extends Environmental{
 	}
 	
 	public void addGenealogy(Genealogy genealogy) throws NaturalSetException {
-		if ( snpDomain.equals(genealogy.snpDomain()) && haplotypeDomain.equals(genealogy.haplotypeDomain())){
+		if ( snpDomain.compatible(genealogy.snpDomain()) && haplotypeDomain.compatible(genealogy.haplotypeDomain())){
 			updateRecombinationCount(genealogy);
 			updateLocalTreesCorrelation(genealogy);
 			args++;
@@ -125,7 +165,7 @@ public class Statistics extends Environmental{
 		
 	public static Statistics clip(Statistics instance, NaturalSet region) throws NaturalSetException{
 		Statistics fragment = new Statistics(instance.env(), instance.name);
-		if(instance.snpDomain.equals(region.domain())){
+		if(instance.snpDomain.compatible(region.domain())){
 			fragment.args = instance.args;
 			fragment.snpDomain = instance.snpDomain.createSubDomain(instance.snpDomain.project(region));
 			NaturalSet bpRegion = new NaturalSet(instance.basePairDomain, instance.markerPositions[instance.snpDomain.toRelativeCoordinate(region.min())], instance.markerPositions[instance.snpDomain.toRelativeCoordinate(region.max())]);
@@ -134,43 +174,28 @@ public class Statistics extends Environmental{
 	
 			fragment.markerPositions = new int[fragment.snpDomain.closureCardinality()];		
 			fragment.recombinationCount = new double[fragment.snpDomain.closureCardinality()];
-			fragment.treeCorrelationCount = new double[fragment.snpDomain.closureCardinality()][];
+			fragment.band = instance.band;
+			fragment.treeCorrelationCount = triangle(fragment.snpDomain.closureCardinality(), fragment.band);
 	
-			if(fragment.snpDomain.isContinuous()){
-				for(int i=fragment.snpDomain.min(); i<=fragment.snpDomain.max(); i++){
-					fragment.markerPositions[fragment.snpDomain.toRelativeCoordinate(i)] = instance.coordinate(i);
-					fragment.recombinationCount[fragment.snpDomain.toRelativeCoordinate(i)] = instance.recombinationCount(i);
-				}
-				
-			} else {
-				for(int i=fragment.snpDomain.min(); i<=fragment.snpDomain.max(); i++){
-					if(fragment.snpDomain.contains(i)) {
-						fragment.markerPositions[fragment.snpDomain.toRelativeCoordinate(i)] = instance.coordinate(i);
-						fragment.recombinationCount[fragment.snpDomain.toRelativeCoordinate(i)] = instance.recombinationCount(i);
-	
-					} else {
-						fragment.markerPositions[fragment.snpDomain.toRelativeCoordinate(i)] = 0;
-						fragment.recombinationCount[fragment.snpDomain.toRelativeCoordinate(i)] = 0;
-					}
-				}
+			int[] members = fragment.snpDomain.members();
+			for(int i : members){
+				fragment.markerPositions[fragment.snpDomain.relative(i)] = instance.markerPositions[instance.snpDomain.relative(i)];
+				fragment.recombinationCount[fragment.snpDomain.relative(i)] = instance.recombinationCount[instance.snpDomain.relative(i)];
 			}
-			
 	
 			for(int k=0; k<fragment.snpDomain.closureCardinality(); k++){
-				fragment.treeCorrelationCount[k] = new double[k+1];			
-				int end = fragment.snpDomain.toAbsoluteCoordinate(k);
+				int end = fragment.snpDomain.absolute(k);
+				double[] row = instance.treeCorrelationCount[instance.snpDomain.relative(end)];
+				double[] clipped = fragment.treeCorrelationCount[k];
+				int from = end - row.length + 1;
+				int to = end - clipped.length + 1;
 				if(fragment.snpDomain.isContinuous()){
-					for(int i=fragment.snpDomain.min(); i<=end; i++){
-						fragment.treeCorrelationCount[k][fragment.snpDomain.toRelativeCoordinate(i)] = instance.localTreeCorrelationCount(end,i);
-					}
+					System.arraycopy(row, to - from, clipped, 0, clipped.length);
 					
-				} else {
-					for(int i=fragment.snpDomain.min(); i<=end; i++){
-						if(fragment.snpDomain.contains(i)) {
-							fragment.treeCorrelationCount[k][fragment.snpDomain.toRelativeCoordinate(i)] = instance.localTreeCorrelationCount(end,i);
-						} else {
-							fragment.treeCorrelationCount[k][fragment.snpDomain.toRelativeCoordinate(i)] = 0;
-						}
+				} else if(fragment.snpDomain.contains(end)) {
+					for(int i : members){
+						if(i > end) break;
+						if(i >= to) clipped[i - to] = row[i - from];
 					}
 				}			
 			}
@@ -213,13 +238,20 @@ public class Statistics extends Environmental{
 	private double localTreeCorrelationCount(int i, int j) throws NaturalSetException{
 		int si = Math.max(i, j);
 		int sj = Math.min(i, j);
-		return (double)treeCorrelationCount[snpDomain.toRelativeCoordinate(si)][snpDomain.toRelativeCoordinate(sj)];
+		double[] row = treeCorrelationCount[snpDomain.toRelativeCoordinate(si)];
+		int k = row.length - 1 - (si - snpDomain.toRelativeCoordinate(sj) - snpDomain.min());
+		return (k < 0) ? 0.0 : row[k];
 	}
 
 	public double localTreeCorrelation(int i, int j) throws NaturalSetException{
-		int si = Math.max(i, j);
-		int sj = Math.min(i, j);
-		return normalizeDistance((double)treeCorrelationCount[snpDomain.toRelativeCoordinate(si)][snpDomain.toRelativeCoordinate(sj)]);
+		return normalizeDistance(localTreeCorrelationCount(i, j));
+	}
+	
+	/**
+	 * @return The largest snp distance of a pair with a stored local tree correlation, or <code>-1</code> if all pairs are stored.
+	 */
+	public int band(){
+		return band;
 	}
 	
 	private double recombinationCount(int i) throws NaturalSetException{
@@ -250,6 +282,7 @@ public class Statistics extends Environmental{
 		out.writer().writeStartElement("", "statistics");
 		out.writer().writeAttribute("genealogies", String.valueOf(args));
 		out.writer().writeAttribute("name", name);
+		if(band >= 0) out.writer().writeAttribute("band", String.valueOf(band));
 		out.writer().writeCharacters(XmlOutput.LINE_SEPARATOR);
 
 		haplotypeDomain.writeXml(out, "haplotype");
@@ -308,26 +341,33 @@ public class Statistics extends Environmental{
 	}
 	
 	private void updateLocalTreesCorrelation(Genealogy genealogy) throws NaturalSetException {
-		HashMap<NaturalSet, NaturalSetCollection>  localTreesBiPartitions = genealogy.localTreesBiPartitions();
+		HashMap<NaturalSet, NaturalSetMatrix>  localTreesBiPartitions = genealogy.localTreesBiPartitionMatrices();
 		ArrayList<NaturalSet> frames = new ArrayList<NaturalSet>(localTreesBiPartitions.keySet());
 		Collections.sort(frames);
+		boolean bs = env().stringProperty("DistanceMetric").equals("bs");
+		boolean continuous = snpDomain.isContinuous();
+		int min = snpDomain.min(), max = snpDomain.max();
 		
 		for(NaturalSet x : frames){
 			for(NaturalSet y : frames){
-				if(x.compareTo(y) >= 0){
-					NaturalSetCollection xbp = localTreesBiPartitions.get(x);
-					NaturalSetCollection ybp = localTreesBiPartitions.get(y);
+				if(x.compareTo(y) >= 0 && (band < 0 || x.min() - y.max() <= band)){
+					NaturalSetMatrix xbp = localTreesBiPartitions.get(x);
+					NaturalSetMatrix ybp = localTreesBiPartitions.get(y);
 					int value = xbp.intersectCount(ybp);
 					
-					if(env().stringProperty("DistanceMetric").equals("bs")){
+					if(bs){
 						value = xbp.size() + ybp.size() - haplotypeDomain().cardinality() - value;
 					}
 					
-					int xmin = x.min(), xmax = x.max(), ymin = y.min(), ymax = y.max();
+					int xmin = Math.max(x.min(), min), xmax = Math.min(x.max(), max), ymin = Math.max(y.min(), min), ymax = y.max();
 					for(int i=xmin; i<=xmax; i++){
-						for(int j=ymin; j<=ymax && j<=i; j++){
-							if(snpDomain.contains(i) && snpDomain.contains(j)){
-								treeCorrelationCount[snpDomain.toRelativeCoordinate(i)][snpDomain.toRelativeCoordinate(j)] += value;
+						if(continuous || snpDomain.contains(i)){
+							double[] row = treeCorrelationCount[snpDomain.relative(i)];
+							int offset = i - row.length + 1;
+							for(int j=Math.max(ymin, offset); j<=ymax && j<=i; j++){
+								if(continuous || snpDomain.contains(j)){
+									row[j - offset] += value;
+								}
 							}
 						}
 					}					
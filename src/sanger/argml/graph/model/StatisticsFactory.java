@@ -76,6 +76,7 @@ public class StatisticsFactory extends Environmental implements Iterable<Statist
 		
 		s = new Statistics(input.env(), parser.getAttributeValue("", "name"));
 		s.args = Integer.parseInt(parser.getAttributeValue("", "genealogies"));
+		if(parser.getAttributeValue("", "band") != null) s.band = Integer.parseInt(parser.getAttributeValue("", "band"));
 		int index = 0;
 		boolean stop = false;
 		boolean skip = false;
@@ -104,8 +105,7 @@ public class StatisticsFactory extends Environmental implements Iterable<Statist
 						}
 						
 					} else if (!skip && parser.getLocalName().equals("localtreecorrelation")) {
-						s.treeCorrelationCount = new double[s.snpDomain.closureCardinality()][];
-						for(int i=0; i<s.snpDomain.closureCardinality(); i++) { s.treeCorrelationCount[i] = new double[i+1]; }
+						s.treeCorrelationCount = Statistics.triangle(s.snpDomain.closureCardinality(), s.band);
 						
 					} else if (!skip && parser.getLocalName().equals("row")) {
 						String[] values = parser.getElementText().split("[\\s]+");
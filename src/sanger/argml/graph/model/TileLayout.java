@@ -0,0 +1,260 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.graph.model;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+import sanger.math.set.NaturalDomain;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * The partition of a target domain into fixed size tiles, and the fraction of every source interval covering each tile.
+ * <p>Source interval <code>k</code> is the target interval between the embeddings of snp <code>k</code> and snp <code>k+1</code>.
+ * Tile <code>t</code> covers the source intervals <code>from(t)</code> to <code>to(t)</code>, in relative source coordinates,
+ * and the fraction of each of them overlapping the tile is stored in one flat array, so a tiled density of a snp parameter 
+ * is a sparse weighted sum over primitive arrays.</p>
+ * <p>Building a layout is linear in the number of snps and tiles. Layouts are immutable and cached by {@link #layout(NaturalDomain, NaturalDomain, int[], double)}, 
+ * so painters and samples sharing their domains, embedding array and tile size share a single layout.
+ * The cache is weakly keyed on the embedding array, so the layouts of an embedding are released with it.</p>
+ * @author Lior Galanti
+ */
+public class TileLayout {
+	private static final WeakHashMap<int[], HashMap<Key, SoftReference<TileLayout>>> cache = new WeakHashMap<int[], HashMap<Key, SoftReference<TileLayout>>>();
+	
+	private int size;
+	private int tiles;
+	private int[] from;
+	private int[] to;
+	private int[] offset;
+	private double[] divisor;
+	private double[] weights;
+	
+	/**
+	 * Returns the layout of <code>tile</code> sized tiles over <code>target</code> for snps of <code>source</code> embedded at <code>embedding</code>.
+	 * Layouts are cached, a layout previously built for the same domains, embedding array and tile size is returned without being rebuilt.
+	 * The embedding is matched by identity, so a cache hit costs the same whatever the number of snps.
+	 * @param source The snp domain.
+	 * @param target The chromosome domain.
+	 * @param embedding The chromosome coordinate of every snp, indexed by relative snp coordinate. The array must not be modified after the call.
+	 * @param tile The tile size, in target coordinates.
+	 * @return The tile layout.
+	 * @throws NaturalSetException if the embedding does not cover the source domain.
+	 */
+	public static TileLayout layout(NaturalDomain source, NaturalDomain target, int[] embedding, double tile) throws NaturalSetException {
+		Key key = new Key(source, target, tile);
+		TileLayout layout = null;
+		synchronized(cache){
+			HashMap<Key, SoftReference<TileLayout>> layouts = cache.get(embedding);
+			SoftReference<TileLayout> reference = (layouts == null) ? null : layouts.get(key);
+			layout = (reference == null) ? null : reference.get();
+		}
+		if(layout == null){
+			layout = new TileLayout(source, target, embedding, tile);
+			synchronized(cache){
+				HashMap<Key, SoftReference<TileLayout>> layouts = cache.get(embedding);
+				if(layouts == null){
+					layouts = new HashMap<Key, SoftReference<TileLayout>>();
+					cache.put(embedding, layouts);
+				}
+				layouts.put(key, new SoftReference<TileLayout>(layout));
+			}
+		}
+		return layout;
+	}
+	
+	private TileLayout(NaturalDomain source, NaturalDomain target, int[] embedding, double tile) throws NaturalSetException {
+		if(embedding.length < source.closureCardinality()){
+			throw new NaturalSetException("Embedding does not cover the source domain.");
+		}
+		
+		int min = source.min();
+		int max = source.max();
+		
+		size = (int)Math.ceil(target.closureCardinality() / tile);
+		int capacity = size + 1;
+		from = new int[capacity];
+		to = new int[capacity];
+		offset = new int[capacity + 1];
+		divisor = new double[capacity];
+		weights = new double[Math.max(16, source.closureCardinality() + capacity)];
+		
+		int left = 0;
+		double mark = target.min();
+		
+		for(int i : source.members()){
+			while(embedding[i - min] > mark + tile){
+				add(embedding, left, i - min, mark, mark + tile);
+				mark += tile;
+				left = i - min - 1;
+			}
+		}
+		
+		// Complete the last, incomplete, tile
+		if(mark < target.max()){
+			add(embedding, left, max - min, mark, target.max());
+		}
+	}
+	
+	/**
+	 * Appends a tile covering the source intervals <code>[left, right)</code> and the target interval <code>[bpleft, bpright]</code>.
+	 */
+	private void add(int[] embedding, int left, int right, double bpleft, double bpright){
+		if(tiles == from.length){
+			int grown = 2 * tiles;
+			from = Arrays.copyOf(from, grown);
+			to = Arrays.copyOf(to, grown);
+			offset = Arrays.copyOf(offset, grown + 1);
+			divisor = Arrays.copyOf(divisor, grown);
+		}
+		int start = offset[tiles];
+		if(start + right - left > weights.length){
+			weights = Arrays.copyOf(weights, Math.max(2 * weights.length, start + right - left));
+		}
+		
+		from[tiles] = left;
+		to[tiles] = right - 1;
+		divisor[tiles] = right - left;
+		for(int k=left; k<right; k++){
+			int a = embedding[k];
+			int b = embedding[k + 1];
+			double covered = ((bpleft < b) && (bpright > a)) ? (Math.min(b, bpright) - Math.max(a, bpleft)) : 0.0;
+			weights[start + k - left] = covered / (b - a);
+		}
+		offset[tiles + 1] = start + right - left;
+		tiles++;
+	}
+	
+	/**
+	 * @return The number of entries in a tiled array, <code>ceil(target.closureCardinality() / tile)</code>.
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * @param t A tile.
+	 * @return The first source interval overlapping the tile, in relative source coordinates.
+	 */
+	public int from(int t){
+		return from[t];
+	}
+	
+	/**
+	 * @param t A tile.
+	 * @return The last source interval overlapping the tile, in relative source coordinates.
+	 */
+	public int to(int t){
+		return to[t];
+	}
+	
+	/**
+	 * @param t A tile.
+	 * @param k A source interval between <code>from(t)</code> and <code>to(t)</code>.
+	 * @return The fraction of source interval <code>k</code> overlapping the tile.
+	 */
+	public double weight(int t, int k){
+		return weights[offset[t] + k - from[t]];
+	}
+	
+	/**
+	 * The sum of a snp parameter over every tile, weighted by the fraction of the source interval overlapping the tile.
+	 * @param parameter A value per source interval, indexed by relative source coordinate.
+	 * @return The tiled density.
+	 */
+	public double[] density(double[] parameter){
+		double[] density = new double[size];
+		for(int t=0; t<tiles; t++){
+			double sum = 0.0;
+			for(int w=offset[t], k=from[t]; w<offset[t + 1]; w++, k++){
+				sum += weights[w] * parameter[k];
+			}
+			density[t] += sum;
+		}
+		return density;
+	}
+	
+	/**
+	 * @return The number of source intervals overlapping every tile, counting partially overlapping intervals by their overlapping fraction.
+	 */
+	public double[] sourceDensity(){
+		double[] density = new double[size];
+		for(int t=0; t<tiles; t++){
+			double sum = 0.0;
+			for(int w=offset[t]; w<offset[t + 1]; w++){
+				sum += weights[w];
+			}
+			density[t] += sum;
+		}
+		return density;
+	}
+	
+	/**
+	 * The unweighted average of a snp parameter over the source intervals overlapping every tile.
+	 * @param parameter A value per source interval, indexed by relative source coordinate.
+	 * @return The tiled average.
+	 */
+	public double[] average(double[] parameter){
+		double[] average = new double[size];
+		for(int t=0; t<tiles; t++){
+			double sum = 0.0;
+			for(int k=from[t]; k<=to[t]; k++){
+				sum += parameter[k] / divisor[t];
+			}
+			average[t] += sum;
+		}
+		return average;
+	}
+	
+	/**
+	 * The domains and tile size of a layout, the embedding array is matched by the identity keyed cache.
+	 */
+	private static class Key {
+		private NaturalDomain source;
+		private NaturalDomain target;
+		private double tile;
+		private int hash;
+		
+		private Key(NaturalDomain source, NaturalDomain target, double tile){
+			this.source = source;
+			this.target = target;
+			this.tile = tile;
+			long bits = Double.doubleToLongBits(tile);
+			this.hash = 31 * (31 * source.hashCode() + target.hashCode()) + (int)(bits ^ (bits >>> 32));
+		}
+		
+		public boolean equals(Object o){
+			boolean result = false;
+			if(o instanceof Key){
+				Key other = (Key)o;
+				result = hash == other.hash && tile == other.tile && 
+					source.compatible(other.source) && target.compatible(other.target);
+			}
+			return result;
+		}
+		
+		public int hashCode(){
+			return hash;
+		}
+	}
+}
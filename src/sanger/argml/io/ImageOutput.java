@@ -20,7 +20,7 @@
 
 package sanger.argml.io;
 
-import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.util.Iterator;
 
@@ -50,7 +50,7 @@ public class ImageOutput extends Environmental{
 		this.writer = (ImageWriter)writers.next();
 	}
 	
-	public void paint(BufferedImage image, ImageOutputStream stream) throws IOException {
+	public void paint(RenderedImage image, ImageOutputStream stream) throws IOException {
 	    writer.setOutput(stream);	
 	    writer.write(image);
 	    stream.flush();
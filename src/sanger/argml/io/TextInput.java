@@ -63,6 +63,10 @@ public class TextInput extends Environmental{
 		return reader;
 	}
 	
+	public File file(){
+		return file;
+	}
+	
 	public String toString(){
 		return file!=null?file.toString():"stdout"; 
 	}
@@ -0,0 +1,182 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.argml.tools;
+
+import java.util.Random;
+
+import sanger.argml.environment.Environment;
+import sanger.argml.environment.Environmental;
+import org.apache.solr.util.OpenBitSet;
+
+import sanger.math.set.BitKernel;
+import sanger.math.set.NaturalDomain;
+import sanger.math.set.NaturalSet;
+import sanger.math.set.NaturalSetCollection;
+import sanger.math.set.NaturalSetException;
+
+/**
+ * Micro benchmarks for the set kernels.
+ * Every measurement is preceded by a warm up round of the same size so the timed round runs compiled code.
+ * Results are written to the log as nanoseconds per operation.
+ * @author Lior Galanti
+ */
+public class Benchmark extends Environmental{
+	private static final int[] wordLengths = { 4, 16, 64, 256, 1024 };
+	private static final int[][] shapes = { {100, 1000}, {1000, 100}, {1000, 5000}, {5000, 1000}, {2000, 20000} };
+	
+	private int iterations;
+	private Random random;
+	private long sink;
+	
+	public Benchmark(Environment env, int iterations) {
+		super(env);
+		this.iterations = iterations;
+		this.random = new Random(1);
+		this.sink = 0;
+	}
+	
+	/**
+	 * Compare the {@link BitKernel#SCALAR} and {@link BitKernel#INTRINSIC} kernels 
+	 * across word lengths typical of haplotype (hundreds of bits) and snp (thousands of bits) domains.
+	 */
+	public void kernels(){
+		env().log().printInfo("selected kernel: " + BitKernel.instance());
+		for(int words : wordLengths){
+			long[] a = randomWords(words);
+			long[] b = randomWords(words);
+			long[] c = new long[words];
+			for(BitKernel kernel : new BitKernel[]{ BitKernel.SCALAR, BitKernel.INTRINSIC }){
+				for(int round=0; round<2; round++){
+					long cardinality = 0, intersection = 0, xor = 0, union = 0;
+					long start = System.nanoTime();
+					for(int i=0; i<iterations; i++){ sink += kernel.cardinality(a, 0, words); }
+					cardinality = System.nanoTime() - start;
+					
+					start = System.nanoTime();
+					for(int i=0; i<iterations; i++){ sink += kernel.intersectionCount(a, b, words); }
+					intersection = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					for(int i=0; i<iterations; i++){ sink += kernel.xorCount(a, b, words); }
+					xor = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					for(int i=0; i<iterations; i++){ 
+						System.arraycopy(a, 0, c, 0, words);
+						kernel.union(c, b, words); 
+						sink += c[i % words];
+					}
+					union = System.nanoTime() - start;
+					
+					if(round == 1){
+						StringBuilder sb = new StringBuilder();
+						sb.append("kernel: ");
+						sb.append(kernel);
+						sb.append(" words: ");
+						sb.append(words);
+						sb.append(" cardinality: ");
+						sb.append(perOperation(cardinality));
+						sb.append(" intersection: ");
+						sb.append(perOperation(intersection));
+						sb.append(" xor: ");
+						sb.append(perOperation(xor));
+						sb.append(" union: ");
+						sb.append(perOperation(union));
+						env().log().printInfo(sb.toString());
+					}
+				}
+			}
+		}
+		env().log().printBenchmark("kernel benchmark checksum " + sink);
+	}
+	
+	/**
+	 * Compare the blocked {@link NaturalSetCollection#transpose(NaturalSetCollection)} 
+	 * with a bit by bit transpose across haplotype by snp matrix shapes.
+	 * The bit by bit transpose is skipped for matrices of more than ten million bits.
+	 * @throws NaturalSetException
+	 */
+	public void transpose() throws NaturalSetException{
+		for(int[] shape : shapes){
+			NaturalSetCollection c = randomCollection(shape[0], shape[1]);
+			for(int round=0; round<2; round++){
+				long start = System.nanoTime();
+				NaturalSetCollection t = NaturalSetCollection.transpose(c);
+				long blocked = System.nanoTime() - start;
+				sink += t.size();
+				
+				long reference = -1;
+				if((long)shape[0] * shape[1] <= 10000000L){
+					start = System.nanoTime();
+					t = bitByBitTranspose(c);
+					reference = System.nanoTime() - start;
+					sink += t.size();
+				}
+				
+				if(round == 1){
+					StringBuilder sb = new StringBuilder();
+					sb.append("transpose: ");
+					sb.append(shape[0]);
+					sb.append('x');
+					sb.append(shape[1]);
+					sb.append(" blocked: ");
+					sb.append(blocked / 1000000);
+					sb.append("ms bit by bit: ");
+					sb.append(reference < 0 ? "skipped" : (reference / 1000000) + "ms");
+					env().log().printInfo(sb.toString());
+				}
+			}
+		}
+		env().log().printBenchmark("transpose benchmark checksum " + sink);
+	}
+	
+	private NaturalSetCollection randomCollection(int rows, int columns) throws NaturalSetException{
+		NaturalDomain domain = new NaturalDomain(columns).intern();
+		NaturalSetCollection c = new NaturalSetCollection(domain, rows);
+		for(int i=0; i<rows; i++){
+			long[] words = randomWords(OpenBitSet.bits2words(columns));
+			c.add(new NaturalSet(domain, new OpenBitSet(words, words.length)));
+		}
+		return c;
+	}
+	
+	private static NaturalSetCollection bitByBitTranspose(NaturalSetCollection c) throws NaturalSetException {
+		NaturalSetCollection t = new NaturalSetCollection(new NaturalDomain(c.size()).intern(), c.domain().closureCardinality());
+		for(int j=c.domain().min(); j<=c.domain().max(); j++){
+			OpenBitSet tline = new OpenBitSet(c.size());
+			for(int i=0; i<c.size(); i++){
+				if(c.get(i).contains(j)){tline.fastSet(i);}
+			}
+			t.add(new NaturalSet(t.domain(), tline));
+		}
+		return t;
+	}
+	
+	private long[] randomWords(int words){
+		long[] result = new long[words];
+		for(int i=0; i<words; i++){ result[i] = random.nextLong(); }
+		return result;
+	}
+	
+	private String perOperation(long nanoseconds){
+		return String.valueOf(nanoseconds / iterations) + "ns";
+	}
+}
@@ -21,6 +21,8 @@
 
 package sanger.margarita;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.LinkedList;
@@ -38,28 +40,32 @@ public class ArgBuilderForUnphasedData {
 	
     private int numsequences, numcases, numcontrols, nummarkers, nmm1; // Number of sequences and markers.
     private double[] markerlocations;
-    private byte[][] inputsequences; //
+    private GenotypeMatrix inputsequences; // The input sequences packed two bits to an allele.
     private short[][] allelecounts; // The number of currentsequences with alleles as 0, 1 and missing.
+    private int unresolved; // The number of markers still carried by more than one live edge.
     private double[][] distancematrix; // The distances between all pairs of SNPs.
     private double longestpossible; // The longest possible length of a shared segment that does not span the whole distance.
-    private LinkedList<int[]> possiblemutations; // The list of possible mutations.
+    private ArrayList<int[]> possiblemutations; // The list of possible mutations.
+    private Hashtable<Integer,Integer> mutatededges; // The edge that each edge with pending mutations has been mutated into.
     private Hashtable<Integer,int[]> currentsequences; // The sequences of the live edges in the ARG.
     private LinkedList<ArgStructure>[] args; // All the ARGs.
+    private long[] buildtimes; // The nanoseconds taken to construct each ARG.
     private LinkedList<ArgStructure> currentarg; // The ARG currently under construction.
     private int numcoalescences, numrecombinations, numgeneconversions, nummutations, time, nextparent; // Particular to the current arg.
     private Hashtable<Integer,int[]> startends; // The extent of each sequence.
     private Map.Entry<Integer,int[]>[] startendsarray; // This holds a permuted array of the startends.
     private LinkedList<Integer> coalescenceedges; // The edges that should be tested for coalescence.
+    private Hashtable<Integer,BitSet> incompatibleedges; // For each live edge, the edges it is known not to be able to coalesce with.
     private int[] edgepointers; // For each unphased position, point to the edge on which it occurs.
     private int[] conflicts; // For each unphased position, what does it conflict with?
     private int[] dependencies; // For each unphased position, what is it the same as?
     private static Random rand = new Random(); // Random number generator.
     
     // Parameters of the algorithm.
-    private static final double HEURISTICP = 0.9; // How frequently the heuristic is used.
+    static final double HEURISTICP = 0.9; // How frequently the heuristic is used.
     private static boolean VERBOSE = false; // Whether to print out the ARG as it is constructed.
     
-    /** Creates a new instance of ArgBuilderForUnphasedData */
+    /** Creates a new instance of ArgBuilderForUnphasedData, the inference summary is not written when output is null */
     public ArgBuilderForUnphasedData(Environment env, TextOutput output) {
     	this.output = output;
     	this.env = env;
@@ -78,6 +84,7 @@ public class ArgBuilderForUnphasedData {
      */
     public final void buildArgs(final int numargs, final InputParser ip){
         args = new LinkedList[numargs];
+        buildtimes = new long[numargs];
         // Initialise the data structures that come immediately from the input parser.
         numsequences = ip.getNumberOfSequences();
         numcases = ip.getNumberOfCases();
@@ -98,16 +105,20 @@ public class ArgBuilderForUnphasedData {
         startends = new Hashtable<Integer,int[]>(numsequences);
         currentsequences = new Hashtable<Integer,int[]>();
         coalescenceedges = new LinkedList<Integer>();
+        incompatibleedges = new Hashtable<Integer,BitSet>();
+        mutatededges = new Hashtable<Integer,Integer>();
         edgepointers = new int[ip.getNumberOfUnphasedCharacters()+2]; // These are numbered from 2.
         conflicts = new int[edgepointers.length];
         dependencies = new int[edgepointers.length];
         
         // Get some things to help buildilng the final data structures.
-        inputsequences = ip.getInputSequences();
+        inputsequences = ip.getGenotypes();
         
         // Populate the final data structures and build the ARGs.
-        output.writer().println("%ARGINFERENCE");
-        output.writer().println("SEQS SNPS MUTS COAS RECS GECS TRCS SECS HEURP");
+        if (output!=null){
+            output.writer().println("%ARGINFERENCE");
+            output.writer().println("SEQS SNPS MUTS COAS RECS GECS TRCS SECS HEURP");
+        }
         long starttime;
         for (int arg = numargs; --arg>=0;){
             //  Initialise the data structures that need to be reset every time.
@@ -119,19 +130,24 @@ public class ArgBuilderForUnphasedData {
             nextparent = numsequences;
             currentarg = new LinkedList<ArgStructure>();
             allelecounts = ip.cloneAlleleCounts();
-            possiblemutations = ip.clonePossibleMutations();
+            possiblemutations = new ArrayList<int[]>(ip.clonePossibleMutations());
+            unresolved = 0;
+            for (int marker = nummarkers; --marker>=0;) if (allelecounts[0][marker]+allelecounts[1][marker]+allelecounts[2][marker]>1) unresolved++;
             
             // Initialise and populate the data structures that are calculated from the sequences and have to be reset every time.
             currentsequences.clear();
             startends.clear();
             coalescenceedges.clear();
+            incompatibleedges.clear();
             int whichunphasedcharacter = 2; // These are numbered from 2.
             int[] sistersequence = null; // This is a helper data structure.
+            final byte[] inputsequence = new byte[nummarkers]; // The decoded input sequence.
             for (int seq = 0; seq<numsequences; seq++){ // Must do loop in this order to get brother and sister sequences correct.
                 final int[] currentsequence = new int[nummarkers];
                 final boolean hassister = (seq%2==1);
+                inputsequences.row(seq, inputsequence);
                 for (int marker = 0; marker<nummarkers; marker++){ // To get correct ordering.
-                    switch (inputsequences[seq][marker]){
+                    switch (inputsequence[marker]){
                         case 0 : {
                             break;
                         } case 1 : {
@@ -163,9 +179,10 @@ public class ArgBuilderForUnphasedData {
             // Construct one ARG.
             starttime = System.nanoTime();
             buildArg();
-            output.writer().println(numsequences + " " + nummarkers + " " + nummutations + " " + numcoalescences + " " +
+            buildtimes[arg] = System.nanoTime()-starttime;
+            if (output!=null) output.writer().println(numsequences + " " + nummarkers + " " + nummutations + " " + numcoalescences + " " +
                     numrecombinations + " " + numgeneconversions + " " + (numrecombinations+2*numgeneconversions) + " " +
-                    ((System.nanoTime()-starttime)/(double)1000000000) + " " + HEURISTICP);
+                    (buildtimes[arg]/(double)1000000000) + " " + HEURISTICP);
             args[arg] = currentarg;
             if (VERBOSE) output.writer().println();
         }
@@ -204,17 +221,22 @@ public class ArgBuilderForUnphasedData {
         Collections.shuffle(possiblemutations);
         final int[][] mutationsarray = possiblemutations.toArray(new int[possiblemutations.size()][]);
         possiblemutations.clear();
+        mutatededges.clear();
         int[] sequence;
         int[] startend;
         Integer edgekey;
         // Perform the mutations.
         for (int mut1 = mutationsarray.length; --mut1>=0;){
             nummutations++;
-            // Get the edge that will be mutated.
+            // Get the edge that will be mutated. If an earlier mutation was on the same edge, it is now on the mutated edge.
+            final Integer pendingedge = mutationsarray[mut1][0];
+            final Integer mutatededge = mutatededges.get(pendingedge);
+            if (mutatededge!=null) mutationsarray[mut1][0] = mutatededge;
             edgekey = new Integer(mutationsarray[mut1][0]);
             coalescenceedges.remove(edgekey);
             sequence = currentsequences.remove(edgekey);
             startend = startends.remove(edgekey);
+            incompatibleedges.remove(edgekey);
             
             // Perform the mutation.
             sequence[mutationsarray[mut1][1]] = mutationsarray[mut1][2];
@@ -226,10 +248,8 @@ public class ArgBuilderForUnphasedData {
             currentsequences.put(nextparent,sequence);
             startends.put(nextparent,startend);
             currentarg.add(new ArgStructure(time++,ArgStructure.Type.Mu,mutationsarray[mut1][0],-1,nextparent,-1,mutationsarray[mut1][1]));
-            // Update the other mutations that are also on that edge.
-            for (int mut2 = mut1; --mut2>=0;)
-                if (mutationsarray[mut2][0]==mutationsarray[mut1][0])
-                    mutationsarray[mut2][0] = nextparent;
+            // The other mutations that are also on that edge will find it here.
+            mutatededges.put(pendingedge,nextparent);
             // Update the allele counts.
             if (mutationsarray[mut1][2]==0){
                 allelecounts[0][mutationsarray[mut1][1]]++;
@@ -248,6 +268,7 @@ public class ArgBuilderForUnphasedData {
     private final Integer[] getACoalescence(){ // Returns two edges that may be coalesced.
         int[] sequence1, sequence2, startend1, startend2, overlap;
         Integer seq1edge, seq2edge;
+        BitSet incompatible1;
         final boolean[] startendschecked = new boolean[startendsarray.length];
         // Shuffle the current coalescence edges.
         Collections.shuffle(coalescenceedges);
@@ -257,6 +278,7 @@ public class ArgBuilderForUnphasedData {
             seq1edge = li.next();
             sequence1 = currentsequences.get(seq1edge);
             startend1 = startends.get(seq1edge);
+            incompatible1 = incompatibleedges.get(seq1edge);
             for (int seq2 = startendschecked.length; --seq2>=0;) {
                 if (startendschecked[seq2]==true) continue;
                 seq2edge = startendsarray[seq2].getKey();
@@ -264,9 +286,16 @@ public class ArgBuilderForUnphasedData {
                     startendschecked[seq2]=true;
                     continue;
                 }
-                if ((overlap = getOverlap(startend1,startendsarray[seq2].getValue()))!=null
-                        && possibleToCoalesce(sequence1,currentsequences.get(seq2edge),overlap)){
-                    return new Integer[] {seq1edge,seq2edge}; // If it is possible to coalesce, return it.
+                // Resolving unphased characters only adds constraints, so a pair of live edges that cannot coalesce never will.
+                if (incompatible1!=null && incompatible1.get(seq2edge)) continue;
+                if ((overlap = getOverlap(startend1,startendsarray[seq2].getValue()))!=null){
+                    if (possibleToCoalesce(sequence1,currentsequences.get(seq2edge),overlap))
+                        return new Integer[] {seq1edge,seq2edge}; // If it is possible to coalesce, return it.
+                    if (incompatible1==null) incompatibleedges.put(seq1edge,incompatible1 = new BitSet(nextparent));
+                    incompatible1.set(seq2edge);
+                    BitSet incompatible2 = incompatibleedges.get(seq2edge);
+                    if (incompatible2==null) incompatibleedges.put(seq2edge,incompatible2 = new BitSet(nextparent));
+                    incompatible2.set(seq1edge);
                 }
             }
             li.remove(); // This is no longer a coalescenceedge because it cannot coalesce with anything.
@@ -320,6 +349,8 @@ public class ArgBuilderForUnphasedData {
         // We will recycle *1 and discard *2, so swap these around for max performance.
         int[] startend1 = startends.remove(childedge1);
         int[] startend2 = startends.remove(childedge2);
+        incompatibleedges.remove(childedge1);
+        incompatibleedges.remove(childedge2);
         if (startend2[1]-startend2[0]>startend1[1]-startend1[0]){
             final Integer temp1 = childedge1; // seq1 is the longest, so swap these around to minimise the amount of work we do.
             childedge1 = childedge2;
@@ -377,6 +408,8 @@ public class ArgBuilderForUnphasedData {
                     updatePhasedPhased(sequence1[marker],marker,parentedge); // Do (4) and (5).
                 }
             }
+            // Every marker in the overlap loses one edge, so it is resolved once a single edge carries it.
+            if (allelecounts[0][marker]+allelecounts[1][marker]+allelecounts[2][marker]==1) unresolved--;
         }
         
         // Put the parent sequence and startend into the datastructures.
@@ -692,6 +725,7 @@ public class ArgBuilderForUnphasedData {
         // We don't need to remove recedge from coedges because coedges is empty when we have to perform a recombination.
         final int[] recedgesequence = currentsequences.remove(recedge); // And this will become the right parent.
         final int[] recedgestartend = startends.remove(recedge);
+        incompatibleedges.remove(recedge);
         
         // Form the left parent.
         final int[] leftparent = new int[nummarkers];
@@ -724,6 +758,7 @@ public class ArgBuilderForUnphasedData {
         // Get the sequence that we will put the gene conversion on.
         final int[] recedgesequence = currentsequences.remove(sharedsegment[0]); // The edges in the shared segment are already in a random order.
         final int[] recedgestartend = startends.remove(sharedsegment[0]);
+        incompatibleedges.remove(sharedsegment[0]);
         // We don't need to remove recedge from coedges because coedges is empty when we have to perform a recombination.
         
         // Create the sequence to the left of the first break point.
@@ -804,8 +839,7 @@ public class ArgBuilderForUnphasedData {
     
     private final boolean isFinished(){
         // To check whether we are finished after performing a coalescence.
-        for (int marker = nummarkers; --marker>=0;) if (allelecounts[0][marker]+allelecounts[1][marker]+allelecounts[2][marker]>1) return false;
-        return true;
+        return unresolved==0;
     }
     
     
@@ -820,6 +854,15 @@ public class ArgBuilderForUnphasedData {
         return args;
     }
     
+    /**
+     * Returns the time taken to construct each ARG.
+     *
+     * @return  The nanoseconds taken to construct each ARG.
+     */
+    public final long[] getBuildTimes(){
+        return buildtimes;
+    }
+    
     /**
      * Print ARGs/
      *
@@ -21,9 +21,17 @@
 
 package sanger.margarita;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Collections;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import JSci.maths.statistics.ChiSqrDistribution;
 
@@ -34,8 +42,11 @@ public class ArgMapper {
     private double casefreq, controlfreq;
     private double[] markerlocations;
     private ArgStructure[][] args;
-    private byte[][] inputsequences;
+    private GenotypeMatrix inputsequences;
     final private ChiSqrDistribution chidist = new ChiSqrDistribution(1);
+    private static final int LANES = Long.SIZE; // Permutations scored together.
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L; // SplitMix64 increment.
+    private static final double CONFIDENCE = 3.0; // Standard deviations of the bound used to call a marker null.
     
     /**
      * Creates a new instance of ArgMapper
@@ -45,12 +56,25 @@ public class ArgMapper {
      * other data from which the ARGs are to inferred.
      */
     public ArgMapper(final LinkedList<ArgStructure>[] args, final InputParser ip) {
+        this(ip);
         // Store the ARGs.
         numargs = args.length;
         this.args = new ArgStructure[numargs][];
         for (int whicharg = numargs; --whicharg>=0;)
             this.args[whicharg] = args[whicharg].toArray(new ArgStructure[args[whicharg].size()]);
-        
+    }
+    
+    public ArgMapper(final ArgReader reader, final InputParser ip) throws IOException {
+        this(ip);
+        // Read the ARGs one at a time, keeping only the compact array of each.
+        final ArrayList<ArgStructure[]> read = new ArrayList<ArgStructure[]>();
+        for (LinkedList<ArgStructure> arg = reader.next(); arg!=null; arg = reader.next())
+            read.add(arg.toArray(new ArgStructure[arg.size()]));
+        numargs = read.size();
+        args = read.toArray(new ArgStructure[numargs][]);
+    }
+    
+    private ArgMapper(final InputParser ip) {
         // Extract the useful information from the InputParser.
         numsequences = ip.getNumberOfSequences();
         numbipartitions = numsequences-3;
@@ -60,96 +84,220 @@ public class ArgMapper {
         controlfreq = (double)numcontrols/(double)numsequences;
         nummarkers = ip.getNumberOfMarkers();
         markerlocations = ip.getMarkerLocations();
-        inputsequences = ip.getInputSequences(); // These are used for the Chi-Square test.
+        inputsequences = ip.getGenotypes(); // These are used for the Chi-Square test.
     }
  
     
     /**
      * Maps disease loci. Only performs permutations until num cutoff are found
      * that have mapping score exceeding that for the true case control
-     * configuration. Set cutoff equal to numpermutations to peform all permutations.
+     * configuration, the sequential p-value of Besag and Clifford. Set cutoff equal 
+     * to numpermutations to peform all permutations. Permutations are also stopped 
+     * once a marker is clearly null, when the lower confidence bound of its p-value
+     * exceeds alpha, so the permutations are spent on the candidate peaks.
+     * Permutations are regenerated from the seed by index, every marker sees the same 
+     * permutations and none are stored.
+     * Markers are mapped in parallel and written in marker order.
      *
      * @param numpermutations   The maximum number of permtuations to perform.
      * @param cutoff            How many acceptances before stopping.
+     * @param alpha             Significance level above which a marker is called null, 0 to disable.
+     * @param seed              Seed of the permutations.
+     * @param out               Where the interpretation and mapping are written.
+     * @param threads           The number of markers mapped concurrently.
      */
-    public final void mapWithSmartPermutations(final int numpermutations, final int cutoff){
+    public final void mapWithSmartPermutations(final int numpermutations, final int cutoff, final double alpha, final long seed, final PrintWriter out, final int threads) throws InterruptedException, ExecutionException {
         
-        // Create permutations for individuals.
-        final LinkedList<Boolean> permlist = new LinkedList<Boolean>();
         final BitSet truecasecontrols = new BitSet(numsequences);
         for (int leaf = numcases; --leaf>=0;) truecasecontrols.set(leaf);
-        for (int leaf = numcases/2; --leaf>=0;) permlist.add(true);
-        for (int leaf = numcontrols/2; --leaf>=0;) permlist.add(false);
-        final BitSet[] permutations = new BitSet[numpermutations];
-        for (int perm = numpermutations, leaf = 0; --perm>=0; leaf = 0){
-            Collections.shuffle(permlist);
-            permutations[perm] = new BitSet(numsequences);
-            for (boolean cc : permlist){
-                if (cc) permutations[perm].set(leaf++); else leaf++;
-                if (cc) permutations[perm].set(leaf++); else leaf++;
+        
+        // Do the mapping. Markers are submitted a window ahead of the one being written, 
+        // so only the interpretations of the window are held in memory. The marginal trees
+        // are swept in marker order as the markers are submitted.
+        final String[] mapping = new String[nummarkers];
+        final MarginalTreeSweep[] sweeps = new MarginalTreeSweep[numargs];
+        for (int whicharg = numargs; --whicharg>=0;) sweeps[whicharg] = new MarginalTreeSweep(args[whicharg]);
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        final ArrayList<Future<String>> interpretations = new ArrayList<Future<String>>(nummarkers);
+        final int window = 4 * Math.max(1, threads);
+        try {
+            out.println("%INTERPRETATION");
+            out.println("MARKER POSITION ARG CUT_CHISQ_SCORE CUT_CHISQ_PVALUE CHROMOSOMES_UNDER_CUT FREQ_CASES FREQ_CONTROLS");
+            for (int marker = 0; marker<nummarkers; marker++){
+                while (interpretations.size()<nummarkers && interpretations.size()<marker+window){
+                    final int next = interpretations.size();
+                    final int[][][] marginaltrees = new int[numargs][][];
+                    for (int whicharg = numargs; --whicharg>=0;) marginaltrees[whicharg] = sweeps[whicharg].next();
+                    interpretations.add(pool.submit(new Callable<String>(){
+                        public String call(){
+                            return mapMarker(next, marginaltrees, truecasecontrols, seed, numpermutations, cutoff, alpha, mapping);
+                        }
+                    }));
+                }
+                out.print(interpretations.get(marker).get());
+                interpretations.set(marker, null);
             }
+        } finally {
+            pool.shutdown();
         }
         
-        // Do the mapping.
-        int[][][] marginaltrees;
-        double[] mappingscore = new double[nummarkers];
-        double[] argpvalue = new double[nummarkers];
-        double permscore;
+        out.println("%MAPPING");
+        out.println("MARKER POSITION ARG_MAP_SCORE PERM_P-VALUE CHI_P-VALUE");
+        // Output the mapping results.
+        for (int marker = 0; marker<nummarkers; marker++) out.println(mapping[marker]);
+        out.flush();
+    }
+    
+    /**
+     * Maps one marker.
+     *
+     * @return The interpretation of the marker in every ARG. The mapping result is stored in mapping[marker].
+     */
+    private final String mapMarker(final int marker, final int[][][] marginaltrees, final BitSet truecasecontrols, final long seed, final int numpermutations, final int cutoff, final double alpha, final String[] mapping){
+        final StringBuilder interpretations = new StringBuilder();
+        double mappingscore = 0.0;
+        double argpvalue = 0.0;
+        final double[] permscore = new double[LANES];
+        final double[] treescore = new double[LANES];
+        final int[] cases = new int[(numsequences+numbipartitions)*LANES];
+        final int[] sizes = new int[numsequences+numbipartitions];
+        final long[] permutations = new long[numsequences];
+        final int[] individuals = new int[(numcases+numcontrols)/2];
         int permcount;
         Object[] interpretation;
         BitSet chromosomesunder;
         
-        System.out.println("%INTERPRETATION");
-        System.out.println("MARKER POSITION ARG CUT_CHISQ_SCORE CUT_CHISQ_PVALUE CHROMOSOMES_UNDER_CUT FREQ_CASES FREQ_CONTROLS");
-        for (int marker = 0; marker<nummarkers; marker++){
-            mappingscore[marker] = 0.0;
-            marginaltrees = getMarginalTreesForMarker(marker);
-            for (int whicharg = 0; whicharg<numargs; whicharg++){
-                interpretation = treeMapWithInterpretation(marginaltrees[whicharg],truecasecontrols);
-                chromosomesunder = (BitSet)interpretation[1];
-                System.out.print(marker + " " + markerlocations[marker] + " " + whicharg + " " + (Double)interpretation[0] + " " + (1.0-chidist.cumulative((Double)interpretation[0])) + " ");
-                // This prints out the chromosomes under the best cut.
-                for (int seq = 0; seq<numsequences; seq++){
-                    if (chromosomesunder.get(seq)) System.out.print("1");
-                    else System.out.print("0");
-                }
-                System.out.println(" " + (Double)interpretation[2] + " " + (Double)interpretation[3]);
-                mappingscore[marker]+=(Double)interpretation[0];
+        for (int whicharg = 0; whicharg<numargs; whicharg++){
+            interpretation = treeMapWithInterpretation(marginaltrees[whicharg],truecasecontrols);
+            chromosomesunder = (BitSet)interpretation[1];
+            interpretations.append(marker + " " + markerlocations[marker] + " " + whicharg + " " + (Double)interpretation[0] + " " + (1.0-chidist.cumulative((Double)interpretation[0])) + " ");
+            // This prints out the chromosomes under the best cut.
+            for (int seq = 0; seq<numsequences; seq++){
+                if (chromosomesunder.get(seq)) interpretations.append('1');
+                else interpretations.append('0');
             }
-            permcount = 0;
-            for (int perm = 0;;){
-                permscore = 0.0;
-                for (int whicharg = numargs; --whicharg>=0;){
-                    if ((permscore+=treeMap(marginaltrees[whicharg],permutations[perm])) >= mappingscore[marker]){
-                        permcount++;
-                        break;
-                    }
-                }
+            interpretations.append(" " + (Double)interpretation[2] + " " + (Double)interpretation[3] + "\n");
+            mappingscore+=(Double)interpretation[0];
+        }
+        permcount = 0;
+        search : for (int block = 0, perm = 0;; block++){
+            // Score the 64 permutations of the block together. Scores are never negative so
+            // comparing the sum over all ARGs is the same as stopping once the partial sum is reached.
+            Arrays.fill(permscore, 0.0);
+            permute(seed, block, individuals, permutations);
+            for (int whicharg = numargs; --whicharg>=0;){
+                treeMap(marginaltrees[whicharg],permutations,cases,sizes,treescore);
+                for (int lane = LANES; --lane>=0;) permscore[lane]+=treescore[lane];
+            }
+            for (int lane = 0; lane<LANES; lane++){
+                if (permscore[lane] >= mappingscore) permcount++;
                 perm++;
                 if (permcount>=cutoff || perm==numpermutations) {
-                    mappingscore[marker]/=(double)numargs;
-                    argpvalue[marker] = (double)permcount/(double)perm;
-                    break;
+                    mappingscore/=(double)numargs;
+                    argpvalue = (double)permcount/(double)perm;
+                    break search;
                 }
             }
+            if (alpha>0.0 && lowerBound(permcount, perm) > alpha) {
+                mappingscore/=(double)numargs;
+                argpvalue = (double)permcount/(double)perm;
+                break;
+            }
         }
-        
-        System.out.println("%MAPPING");
-        System.out.println("MARKER POSITION ARG_MAP_SCORE PERM_P-VALUE CHI_P-VALUE");
-        // Output the mapping results.
-        for (int marker = 0; marker<nummarkers; marker++){
-            System.out.println(marker + " " + markerlocations[marker] + " " + mappingscore[marker] + " " + argpvalue[marker] + " " + chiSquare(marker,truecasecontrols));
+        mapping[marker] = marker + " " + markerlocations[marker] + " " + mappingscore + " " + argpvalue + " " + chiSquare(marker,truecasecontrols);
+        return interpretations.toString();
+    }
+    
+    /**
+     * Generates a block of 64 permutations of the case control status of the individuals.
+     * Permutation block*64+lane is a partial Fisher-Yates shuffle driven by a SplitMix64 
+     * stream seeded with the seed and the permutation index, so any permutation can be 
+     * regenerated without storing it. Both chromosomes of an individual share its status.
+     *
+     * @param permutations  Bit lane of permutations[leaf] is set when leaf is a case in the lane's permutation.
+     */
+    private final void permute(final long seed, final int block, final int[] individuals, final long[] permutations){
+        final int numindividuals = individuals.length;
+        final int numcaseindividuals = numcases/2;
+        Arrays.fill(permutations, 0L);
+        for (int lane = 0; lane<LANES; lane++){
+            long state = mix(seed + ((long)block*LANES+lane)*GOLDEN_GAMMA);
+            for (int ind = numindividuals; --ind>=0;) individuals[ind] = ind;
+            for (int ind = 0; ind<numcaseindividuals; ind++){
+                state += GOLDEN_GAMMA;
+                final int swap = ind + (int)(((mix(state)>>>32)*(numindividuals-ind))>>>32);
+                final int chosen = individuals[swap];
+                individuals[swap] = individuals[ind];
+                individuals[ind] = chosen;
+                permutations[2*chosen] |= 1L<<lane;
+                permutations[2*chosen+1] |= 1L<<lane;
+            }
         }
     }
     
-    private final int[][][] getMarginalTreesForMarker(final int marker){
-        final int[][][] marginaltrees = new int[numargs][3][numsequences-1];
-        for (int whicharg = numargs; --whicharg>=0;){
-            int parent = numsequences;
-            int node = 0;
-            final int[] argtreemap = new int[args[whicharg][args[whicharg].length-1].parent1+1];
-            for (int leaf = parent; --leaf>=0;) argtreemap[leaf] = leaf;
-            for (ArgStructure struct : args[whicharg]){
+    private static final long mix(long z){
+        z = (z ^ (z>>>30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z>>>27)) * 0x94D049BB133111EBL;
+        return z ^ (z>>>31);
+    }
+    
+    /**
+     * Wilson score lower confidence bound of a p-value estimated from permutations.
+     */
+    private static final double lowerBound(final int permcount, final int perm){
+        final double n = perm;
+        final double p = permcount/n;
+        final double z2 = CONFIDENCE*CONFIDENCE;
+        return (p + z2/(2*n) - CONFIDENCE*Math.sqrt(p*(1-p)/n + z2/(4*n*n))) / (1 + z2/n);
+    }
+    
+    /**
+     * Sweeps the marginal trees of one ARG from the leftmost marker to the rightmost.
+     * The tree only changes when the sweep crosses the location of a recombination, and
+     * then only the events from the earliest such recombination onwards are replayed,
+     * since every node is the parent of exactly one event and the events before it keep
+     * their lineages. Markers between two breakpoints share the same tree.
+     */
+    private final class MarginalTreeSweep {
+        private final ArgStructure[] arg;
+        private final int[] argtreemap;
+        private final int[] nodes; // The number of coalescences in the marginal tree before each event.
+        private final int[] breakpoint; // The earliest recombination event at each marker location.
+        private int[][] marginaltree;
+        private int marker = -1;
+        
+        MarginalTreeSweep(final ArgStructure[] arg){
+            this.arg = arg;
+            argtreemap = new int[arg[arg.length-1].parent1+1];
+            for (int leaf = numsequences; --leaf>=0;) argtreemap[leaf] = leaf;
+            nodes = new int[arg.length];
+            breakpoint = new int[nummarkers];
+            Arrays.fill(breakpoint, arg.length);
+            for (int event = arg.length; --event>=0;){
+                final ArgStructure struct = arg[event];
+                if (struct.t==ArgStructure.Type.Re && struct.location>=0 && struct.location<nummarkers) 
+                    breakpoint[struct.location] = event;
+            }
+        }
+        
+        /**
+         * @return The marginal tree of the next marker. The returned arrays are never modified afterwards.
+         */
+        final int[][] next(){
+            marker++;
+            if (marker==0) replay(0);
+            else if (breakpoint[marker-1]<arg.length) replay(breakpoint[marker-1]);
+            return marginaltree;
+        }
+        
+        private final void replay(final int from){
+            int node = nodes[from];
+            int parent = numsequences+node;
+            final int[][] tree = new int[3][numsequences-1];
+            if (marginaltree!=null) for (int row = 3; --row>=0;) System.arraycopy(marginaltree[row],0,tree[row],0,node);
+            for (int event = from; event<arg.length; event++){
+                final ArgStructure struct = arg[event];
+                nodes[event] = node;
                 switch (struct.t){
                     case Mu : {
                         if (argtreemap[struct.child1]!=-1) argtreemap[struct.parent1] = argtreemap[struct.child1];
@@ -172,9 +320,9 @@ public class ArgMapper {
                     } case Co : {
                         if (argtreemap[struct.child1]!=-1){
                             if (argtreemap[struct.child2]!=-1){
-                                marginaltrees[whicharg][0][node] = argtreemap[struct.child1];
-                                marginaltrees[whicharg][1][node] = argtreemap[struct.child2];
-                                marginaltrees[whicharg][2][node++] = parent;
+                                tree[0][node] = argtreemap[struct.child1];
+                                tree[1][node] = argtreemap[struct.child2];
+                                tree[2][node++] = parent;
                                 argtreemap[struct.parent1] = parent++;
                             } else {
                                 argtreemap[struct.parent1] = argtreemap[struct.child1];
@@ -187,48 +335,53 @@ public class ArgMapper {
                     }
                 }
             }
+            marginaltree = tree;
         }
-        return marginaltrees;
     }
     
-    private final double treeMap(final int[][] marginaltree, final BitSet casecontrols){
-        // Return the chi-tree value for the best bipartition.
-        final int[] cases = new int[numsequences+numbipartitions]; // This counts the number of cases below each edge.
-        final int[] controls = new int[cases.length]; // And this the number of controls.
-        // Populate the case/controls bipartition arrays with the number of cases and controls in each bipartition.
+    private final void treeMap(final int[][] marginaltree, final long[] casecontrols, final int[] cases, final int[] sizes, final double[] bestscore){
+        // Store the chi-tree value for the best bipartition of every permutation lane in bestscore.
+        // cases counts the number of cases below each edge, one lane for every permutation.
+        // The number of leaves below an edge is the same for all permutations.
         for (int leaf = numsequences; --leaf>=0;){
-            if (casecontrols.get(leaf)) cases[leaf]=1;
-            else controls[leaf]=1;
+            final long cc = casecontrols[leaf];
+            for (int lane = LANES, offset = leaf*LANES; --lane>=0;) cases[offset+lane] = (int)(cc>>>lane)&1;
+            sizes[leaf] = 1;
         }
+        Arrays.fill(bestscore, 0.0);
         // Now calculate the score for each of the bipartitions, remembering the best score.
         double score;
-        double bestscore = 0.0;
         double e0, e1, e2, e3; // Expected values.
         double t1, t2, t3, t4; // (O-E) values.
         int mutcount; // The number of mutants caused by a mutation bipartitioning the tree here.
         int notmutcount;
+        int parentcases, parentcontrols;
         for (int j = 0; j<numbipartitions; j++){
             final int parent = marginaltree[2][j];
-            cases[parent] = cases[marginaltree[0][j]] + cases[marginaltree[1][j]];
-            controls[parent] = controls[marginaltree[0][j]] + controls[marginaltree[1][j]];
-            mutcount = cases[parent] + controls[parent];
+            final int child1 = marginaltree[0][j]*LANES;
+            final int child2 = marginaltree[1][j]*LANES;
+            final int offset = parent*LANES;
+            mutcount = sizes[parent] = sizes[marginaltree[0][j]] + sizes[marginaltree[1][j]];
             notmutcount = numsequences-mutcount;
             e0 = notmutcount*controlfreq;   //marker=0, case=0
             e1 = notmutcount*casefreq;      //marker=0, case=1
             e2 = mutcount*controlfreq;      //marker=1, case=0
             e3 = mutcount*casefreq;         //marker=1, case=1
-            t1 = numcontrols-controls[parent]-e0;
-            t2 = numcases-cases[parent]-e1;
-            t3 = controls[parent]-e2;
-            t4 = cases[parent]-e3;
-            if ((score = t1*t1/e0 +
-                    t2*t2/e1 +
-                    t3*t3/e2 +
-                    t4*t4/e3) > bestscore) {
-                bestscore = score;
+            for (int lane = 0; lane<LANES; lane++){
+                parentcases = cases[offset+lane] = cases[child1+lane] + cases[child2+lane];
+                parentcontrols = mutcount-parentcases;
+                t1 = numcontrols-parentcontrols-e0;
+                t2 = numcases-parentcases-e1;
+                t3 = parentcontrols-e2;
+                t4 = parentcases-e3;
+                if ((score = t1*t1/e0 +
+                        t2*t2/e1 +
+                        t3*t3/e2 +
+                        t4*t4/e3) > bestscore[lane]) {
+                    bestscore[lane] = score;
+                }
             }
         }
-        return bestscore;
     }
     
     private final Object[] treeMapWithInterpretation(final int[][] marginaltree, final BitSet casecontrols){
@@ -287,14 +440,14 @@ public class ArgMapper {
         int gotcontrols = numcontrols;
         for (int seq = numsequences; --seq>=0;){ // Loop over the case sequences.
             if (casecontrols.get(seq)){
-                switch (inputsequences[seq][marker]){
+                switch (inputsequences.get(seq,marker)){
                     case 0 : {o1++; break;}
                     case 1 : {o2++; break;}
                     case 2 : {if (seq%2==0) o1++; else o2++; break;}
                     case 3 : gotcases--;
                 }
             } else {
-                switch (inputsequences[seq][marker]){
+                switch (inputsequences.get(seq,marker)){
                     case 0 : {o3++; break;}
                     case 1 : {o4++; break;}
                     case 2 : {if (seq%2==0) o3++; else o4++; break;}
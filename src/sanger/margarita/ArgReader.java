@@ -0,0 +1,82 @@
+/*
+ * ArgReader.java
+ *
+ * Copyright (c) 2008 Genome Research Ltd.
+ * Author: Lior Galanti
+ *
+ * THIS SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * This code is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation.
+ *
+ * Any redistribution or derivation in whole or in part including any substantial portion
+ * of this code must include this copyright and permission notice.
+ *
+ */
+
+package sanger.margarita;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import sanger.argml.io.TextInput;
+
+/**
+ * Reads the ARGs written by {@link ArgBuilderForUnphasedData#printArgs()} back into 
+ * {@link ArgStructure} lists, one ARG at a time, without building a genealogy.
+ */
+public class ArgReader {
+    
+    private final TextInput input;
+    private String line;
+    
+    /**
+     * Creates a new instance of ArgReader positioned on the first ARG.
+     *
+     * @param input The Margarita output.
+     */
+    public ArgReader(final TextInput input) throws IOException {
+        this.input = input;
+        do line = input.reader().readLine(); while (line!=null && !line.startsWith("ARG "));
+    }
+    
+    /**
+     * Reads the next ARG.
+     *
+     * @return The events of the next ARG in time order, or null when there are no more ARGs.
+     */
+    public final LinkedList<ArgStructure> next() throws IOException {
+        if (line==null) return null;
+        final LinkedList<ArgStructure> arg = new LinkedList<ArgStructure>();
+        for (line = input.reader().readLine(); line!=null && !line.startsWith("ARG "); line = input.reader().readLine()){
+            final String[] s = line.trim().split("\\s+");
+            if (s.length<4) continue;
+            final int time = Integer.parseInt(s[0]);
+            if (s[1].equals("co")){
+                arg.add(new ArgStructure(time, ArgStructure.Type.Co, Integer.parseInt(s[2]), Integer.parseInt(s[3]), Integer.parseInt(s[4]), -1, -1));
+            } else if (s[1].equals("mu") || s[1].equals("er")){
+                arg.add(new ArgStructure(time, ArgStructure.Type.Mu, Integer.parseInt(s[2]), -1, Integer.parseInt(s[3]), -1, Integer.parseInt(s[4])));
+            } else if (s[1].equals("re") || s[1].equals("st")){
+                arg.add(new ArgStructure(time, ArgStructure.Type.Re, Integer.parseInt(s[2]), -1, Integer.parseInt(s[3]), Integer.parseInt(s[4]), Integer.parseInt(s[5])));
+            }
+        }
+        return arg;
+    }
+    
+    /**
+     * Reads all remaining ARGs.
+     *
+     * @return The ARGs.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public final LinkedList<ArgStructure>[] readArgs() throws IOException {
+        final LinkedList<LinkedList<ArgStructure>> args = new LinkedList<LinkedList<ArgStructure>>();
+        for (LinkedList<ArgStructure> arg = next(); arg!=null; arg = next()) args.add(arg);
+        return args.toArray(new LinkedList[args.size()]);
+    }
+}
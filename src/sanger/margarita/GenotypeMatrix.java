@@ -0,0 +1,100 @@
+/*
+ * GenotypeMatrix.java
+ *
+ * Copyright (c) 2008 Genome Research Ltd.
+ * Author: Lior Galanti
+ *
+ * THIS SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * This code is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation.
+ *
+ * Any redistribution or derivation in whole or in part including any substantial portion
+ * of this code must include this copyright and permission notice.
+ *
+ */
+
+package sanger.margarita;
+
+/**
+ * The input sequences packed two bits to an allele, 32 alleles to a word.
+ * Every sequence starts on a word boundary so sequences can be written concurrently.
+ * 0 and 1 are the alleles, 2 means unphased and 3 means missing data.
+ */
+public final class GenotypeMatrix {
+    
+    private final int numsequences, nummarkers, words;
+    private final long[] bits;
+    
+    /** Creates a new instance of GenotypeMatrix with every allele 0 */
+    public GenotypeMatrix(final int numsequences, final int nummarkers) {
+        this.numsequences = numsequences;
+        this.nummarkers = nummarkers;
+        words = (nummarkers+31)>>>5;
+        bits = new long[numsequences*words];
+    }
+    
+    public final int getNumberOfSequences(){
+        return numsequences;
+    }
+    
+    public final int getNumberOfMarkers(){
+        return nummarkers;
+    }
+    
+    /**
+     * @return  the allele of sequence seq at marker.
+     */
+    public final byte get(final int seq, final int marker){
+        return (byte)((bits[seq*words+(marker>>>5)]>>>((marker&31)<<1))&3);
+    }
+    
+    /**
+     * Sets the allele of sequence seq at marker.
+     */
+    public final void set(final int seq, final int marker, final byte allele){
+        final int word = seq*words+(marker>>>5);
+        final int shift = (marker&31)<<1;
+        bits[word] = (bits[word]&~(3L<<shift)) | ((long)allele<<shift);
+    }
+    
+    /**
+     * Sets the 32 alleles of word of sequence seq at once.
+     */
+    final void setWord(final int seq, final int word, final long packed){
+        bits[seq*words+word] = packed;
+    }
+    
+    /**
+     * Copies a range of markers of every sequence.
+     *
+     * @param first     The first marker of the range.
+     * @param last      The last marker of the range.
+     * @return          A new matrix holding markers first to last.
+     */
+    public final GenotypeMatrix window(final int first, final int last){
+        final GenotypeMatrix window = new GenotypeMatrix(numsequences, last-first+1);
+        for (int seq = numsequences; --seq>=0;)
+            for (int marker = window.nummarkers; --marker>=0;) window.set(seq, marker, get(seq, first+marker));
+        return window;
+    }
+    
+    /**
+     * Decodes a sequence.
+     *
+     * @param sequence  Receives the alleles of sequence seq, at least nummarkers long.
+     * @return          sequence.
+     */
+    public final byte[] row(final int seq, final byte[] sequence){
+        for (int word = seq*words, marker = 0; marker<nummarkers; word++){
+            long packed = bits[word];
+            for (final int end = Math.min(marker+32, nummarkers); marker<end; marker++, packed>>>=2) sequence[marker] = (byte)(packed&3);
+        }
+        return sequence;
+    }
+}
@@ -24,112 +24,161 @@ package sanger.margarita;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Hashtable;
+import java.io.PrintWriter;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Imputer {
     
     int numargs, numsequences, numcases, numcontrols, nummarkers;
     double[] markerlocations;
-    byte[][] inputsequences;
+    GenotypeMatrix inputsequences;
     byte[][][] leafsequences;
     LinkedList<ArgStructure>[] args;
+    final AtomicInteger conflicts = new AtomicInteger(); // Coalesced markers where the ARGs join different alleles.
     
-    /** Creates a new instance of Imputer */
-    public Imputer(final LinkedList<ArgStructure>[] args, final InputParser ip) {
-        this.args = args;
-        numargs = args.length;
+    /** Creates a new instance of Imputer that streams ARGs through {@link #imputeArgs} */
+    public Imputer(final InputParser ip) {
         numsequences = ip.getNumberOfSequences();
         numcases = ip.getNumberOfCases();
         numcontrols = ip.getNumberOfControls();
         nummarkers = ip.getNumberOfMarkers();
         markerlocations = ip.getMarkerLocations();
-        inputsequences = ip.getInputSequences();
+        inputsequences = ip.getGenotypes();
+    }
+    
+    /** Creates a new instance of Imputer */
+    public Imputer(final LinkedList<ArgStructure>[] args, final InputParser ip) {
+        this(ip);
+        this.args = args;
+        numargs = args.length;
         leafsequences = calculateImputations();
     }
     
     private final byte[][][] calculateImputations(){    
-        Hashtable<Integer,byte[]> currentsequences = new Hashtable<Integer,byte[]>();
         final byte[][][] leafsequences = new byte[numargs][][];
-        for (int whicharg = 0; whicharg<numargs; whicharg++){
-            // Set the currentsequences to be the leaf sequences.
-            currentsequences.clear();
-            for (int seq = numsequences; --seq>=0;){
-                final byte[] sequence = new byte[nummarkers];
-                System.arraycopy(inputsequences[seq],0,sequence,0,nummarkers);
-                currentsequences.put(seq,sequence);
-            }
-            // Make upward pass of the ARG.
-            final ArgStructure[] arg = args[whicharg].toArray(new ArgStructure[args[whicharg].size()]);
-            for (ArgStructure struct : arg){
-                switch(struct.t){
-                    case Mu : {
-                        final byte[] sequence = currentsequences.remove(struct.child1);
-                        switch (sequence[struct.location]){
-                            case 0 : {
-                                sequence[struct.location] = 1;
-                                break;
-                            } case 1 : {
-                                sequence[struct.location] = 0;
-                                break;
-                            }
-                        }
-                        currentsequences.put(struct.parent1,sequence);
-                        break;
-                    } case Co : {
-                        final byte[] sequence1 = currentsequences.remove(struct.child1); // Recycle this one.
-                        final byte[] sequence2 = currentsequences.remove(struct.child2);
-                        for (int marker = nummarkers; --marker>=0;){
-                            if (sequence1[marker]>1) sequence1[marker] = sequence2[marker];
-                            else if (sequence1[marker]!=sequence2[marker] && sequence2[marker]<=1) System.out.println("ARG is not correct ERROR 1.");
-                        }
-                        currentsequences.put(struct.parent1,sequence1);
-                        break;
-                    } case Re : {
-                        final byte[] sequence = currentsequences.remove(struct.child1);
-                        final byte[] rightsequence = new byte[nummarkers];
-                        System.arraycopy(sequence,struct.location+1,rightsequence,struct.location+1,nummarkers-struct.location-1);
-                        for (int marker = 0; marker<=struct.location; marker++) rightsequence[marker] = 4; // 4 means undefined.
-                        for (int marker = struct.location+1; marker<nummarkers; marker++) sequence[marker] = 4;
-                        currentsequences.put(struct.parent1,sequence);
-                        currentsequences.put(struct.parent2,rightsequence);
-                    }
+        for (int whicharg = 0; whicharg<numargs; whicharg++) leafsequences[whicharg] = impute(args[whicharg]);
+        return leafsequences;
+    }
+    
+    /**
+     * Imputes the leaf sequences of one ARG. Sequences are copy on write {@link Segment}s,
+     * so coalescences and recombinations share the unchanged markers instead of copying them.
+     *
+     * @return  The imputed leaf sequences.
+     */
+    private final byte[][] impute(final LinkedList<ArgStructure> args){
+        // Set the currentsequences to be the leaf sequences. Sequences are indexed by node.
+        final ArgStructure[] arg = args.toArray(new ArgStructure[args.size()]);
+        int numnodes = numsequences;
+        for (ArgStructure struct : arg) numnodes = Math.max(numnodes, Math.max(struct.parent1, struct.parent2)+1);
+        final Segment[] currentsequences = new Segment[numnodes];
+        final byte[] inputsequence = new byte[nummarkers];
+        final int[] conflicts = new int[1];
+        for (int seq = numsequences; --seq>=0;) currentsequences[seq] = Segment.of(inputsequences.row(seq,inputsequence));
+        // Make upward pass of the ARG.
+        for (ArgStructure struct : arg){
+            switch(struct.t){
+                case Mu : {
+                    currentsequences[struct.parent1] = currentsequences[struct.child1].mutate(nummarkers,struct.location,false);
+                    currentsequences[struct.child1] = null;
+                    break;
+                } case Co : {
+                    currentsequences[struct.parent1] = Segment.coalesce(currentsequences[struct.child1],currentsequences[struct.child2],nummarkers,conflicts);
+                    currentsequences[struct.child1] = null;
+                    currentsequences[struct.child2] = null;
+                    break;
+                } case Re : {
+                    final Segment sequence = currentsequences[struct.child1];
+                    currentsequences[struct.child1] = null;
+                    currentsequences[struct.parent1] = Segment.splice(sequence,Segment.UNDEFINED,nummarkers,struct.location);
+                    currentsequences[struct.parent2] = Segment.splice(Segment.UNDEFINED,sequence,nummarkers,struct.location);
                 }
             }
-            // Make downward pass of the arg.
-            for (int str = arg.length; --str>=0;){
-                switch(arg[str].t){
-                    case Mu : {
-                        final byte[] sequence = currentsequences.remove(arg[str].parent1);
-                        if (sequence[arg[str].location]==0) sequence[arg[str].location] = 1;
-                        else sequence[arg[str].location] = 0;
-                        currentsequences.put(arg[str].child1,sequence);
-                        break;
-                    } case Co : {
-                        final byte[] sequence1 = currentsequences.remove(arg[str].parent1);
-                        final byte[] sequence2 = new byte[nummarkers];
-                        System.arraycopy(sequence1,0,sequence2,0,nummarkers);
-                        currentsequences.put(arg[str].child1,sequence1);
-                        currentsequences.put(arg[str].child2,sequence2);
-                        break;
-                    } case Re : {
-                        final byte[] sequence1 = currentsequences.remove(arg[str].parent1);
-                        final byte[] sequence2 = currentsequences.remove(arg[str].parent2);
-                        for (int marker = arg[str].location+1; marker<nummarkers; marker++)
-                            sequence1[marker] = sequence2[marker];
-                        currentsequences.put(arg[str].child1,sequence1);
-                    }
+        }
+        this.conflicts.addAndGet(conflicts[0]);
+        // Make downward pass of the arg.
+        for (int str = arg.length; --str>=0;){
+            switch(arg[str].t){
+                case Mu : {
+                    currentsequences[arg[str].child1] = currentsequences[arg[str].parent1].mutate(nummarkers,arg[str].location,true);
+                    currentsequences[arg[str].parent1] = null;
+                    break;
+                } case Co : {
+                    currentsequences[arg[str].child1] = currentsequences[arg[str].parent1];
+                    currentsequences[arg[str].child2] = currentsequences[arg[str].parent1];
+                    currentsequences[arg[str].parent1] = null;
+                    break;
+                } case Re : {
+                    currentsequences[arg[str].child1] = Segment.splice(currentsequences[arg[str].parent1],currentsequences[arg[str].parent2],nummarkers,arg[str].location);
+                    currentsequences[arg[str].parent1] = null;
+                    currentsequences[arg[str].parent2] = null;
                 }
             }
-            // Currentsequences contains the leaf sequences. Store these leaf sequences.
-            leafsequences[whicharg] = new byte[numsequences][nummarkers];
-            for (int seq = numsequences; --seq>=0;){
-                System.arraycopy(currentsequences.get(seq),0,leafsequences[whicharg][seq],0,nummarkers);
-            }
         }
+        // Currentsequences contains the leaf sequences.
+        final byte[][] leafsequences = new byte[numsequences][nummarkers];
+        for (int seq = numsequences; --seq>=0;) currentsequences[seq].toArray(leafsequences[seq]);
         return leafsequences;
     }
     
+    /**
+     * Imputes the ARGs read from reader on worker threads, one ARG per worker at a time.
+     * The imputation of every ARG is written in ARG order as soon as it is done and then 
+     * only its genotype vote is kept, so memory is bounded by the ARGs in flight.
+     *
+     * @param reader        The ARGs.
+     * @param out           Where the imputations are written.
+     * @param consensus     Where the consensus imputation is written.
+     * @param threads       The number of ARGs imputed concurrently.
+     * @return              The number of ARGs imputed.
+     */
+    public final int imputeArgs(final ArgReader reader, final PrintWriter out, final PrintWriter consensus, final int threads) throws IOException, InterruptedException, ExecutionException {
+        final char[][][] genotypevote = new char[3][numsequences/2][nummarkers];
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        final LinkedList<Future<byte[][]>> pending = new LinkedList<Future<byte[][]>>();
+        final int window = 2 * Math.max(1, threads);
+        int imputed = 0;
+        try {
+            for (LinkedList<ArgStructure> arg = reader.next(); arg!=null || !pending.isEmpty(); arg = (arg==null) ? null : reader.next()){
+                if (arg!=null){
+                    final LinkedList<ArgStructure> next = arg;
+                    pending.add(pool.submit(new Callable<byte[][]>(){
+                        public byte[][] call(){
+                            return impute(next);
+                        }
+                    }));
+                }
+                if (arg==null || pending.size()>=window){
+                    final byte[][] leafsequences = pending.removeFirst().get();
+                    writeImputation(out, leafsequences);
+                    vote(genotypevote, leafsequences);
+                    imputed++;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        out.flush();
+        writeConsensus(consensus, genotypevote);
+        consensus.flush();
+        return imputed;
+    }
+    
+    /**
+     * Returns the number of coalescences, summed over markers, that joined different alleles.
+     * A correct ARG never does, so anything but 0 means the ARGs do not match the haplotypes.
+     *
+     * @return  The number of conflicting coalesced markers.
+     */
+    public final int getNumberOfConflicts(){
+        return conflicts.get();
+    }
     
     /**
      * Returns the leaf sequences as imputed by the ARGs.
@@ -146,62 +195,76 @@ public class Imputer {
      * @param the file to which the imputations are output.
      */
     public final void outputImputations(final String outputfilename){
-        final int numargs = args.length;
         try {
-            BufferedWriter out = new BufferedWriter(new FileWriter(outputfilename));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outputfilename)));
+            final char[][][] genotypevote = new char[3][numsequences/2][nummarkers];
             for (int whicharg = 0; whicharg<numargs; whicharg++){
-                // Output the leafsequences.
-                out.write("%IMPUTATION\n");
-                out.write(numcases + " " + numcontrols + " " + nummarkers + "\n");
-                for (double location : markerlocations) out.write(location + "\n");
-                for (int seq = 0; seq<numsequences; seq++){
-                    for (int mar = 0; mar<nummarkers; mar++){
-                        if (leafsequences[whicharg][seq][mar]==0) out.write("0");
-                        else if (leafsequences[whicharg][seq][mar]==1) out.write("1");
-                        else if (leafsequences[whicharg][seq][mar]==2) out.write("U"); // Very unusual to get this...
-                        else if (leafsequences[whicharg][seq][mar]==3) out.write("M"); // ...or this.
-                        else System.err.println("Error.");
-                    }
-                    out.write("\n");
-                }
+                writeImputation(out, leafsequences[whicharg]);
+                vote(genotypevote, leafsequences[whicharg]);
             }
             out.close();
+            if (out.checkError()) throw new IOException("Failed writing " + outputfilename);
             // Output the consensus imputation.
-            final byte[][][] genotypevote = new byte[3][numsequences/2][nummarkers];
-            for (int arg = 0; arg<numargs; arg++){
-                for (int seq = 0; seq<numsequences; seq+=2){
-                    for (int mar = 0; mar<nummarkers; mar++){
-                        if (leafsequences[arg][seq][mar]==2) genotypevote[1][seq/2][mar]++; // Het. Very unusual.
-                        else if (leafsequences[arg][seq][mar]+leafsequences[arg][seq+1][mar]==2) genotypevote[2][seq/2][mar]++; // Hom 1.
-                        else if (leafsequences[arg][seq][mar]+leafsequences[arg][seq+1][mar]==1) genotypevote[1][seq/2][mar]++; // Het.
-                        else if (leafsequences[arg][seq][mar]+leafsequences[arg][seq+1][mar]==0) genotypevote[0][seq/2][mar]++; // Hom 0.
-                    }
-                }
+            out = new PrintWriter(new BufferedWriter(new FileWriter(outputfilename + ".consensusimputation")));
+            writeConsensus(out, genotypevote);
+            out.close();
+            if (out.checkError()) throw new IOException("Failed writing " + outputfilename + ".consensusimputation");
+        } catch (IOException e){System.err.println("IO Error " + e);}
+    }
+    
+    private final void writeImputation(final PrintWriter out, final byte[][] leafsequences){
+        // Output the leafsequences.
+        final char[] line = new char[nummarkers];
+        out.write("%IMPUTATION\n");
+        out.write(numcases + " " + numcontrols + " " + nummarkers + "\n");
+        for (double location : markerlocations) out.write(location + "\n");
+        for (int seq = 0; seq<numsequences; seq++){
+            int length = 0;
+            for (int mar = 0; mar<nummarkers; mar++){
+                if (leafsequences[seq][mar]==0) line[length++] = '0';
+                else if (leafsequences[seq][mar]==1) line[length++] = '1';
+                else if (leafsequences[seq][mar]==2) line[length++] = 'U'; // Very unusual to get this...
+                else if (leafsequences[seq][mar]==3) line[length++] = 'M'; // ...or this.
+                else System.err.println("Error.");
             }
-            final char[][] consensus = new char[numsequences][nummarkers];
-            for (int ind = 0; ind<numsequences/2; ind++){
-                for (int mar = 0; mar<nummarkers; mar++){
-                    if (genotypevote[2][ind][mar]>=genotypevote[1][ind][mar] && genotypevote[2][ind][mar]>=genotypevote[0][ind][mar]){
-                        consensus[ind*2][mar] = '1';
-                        consensus[ind*2+1][mar] = '1';
-                    } else if (genotypevote[1][ind][mar]>=genotypevote[2][ind][mar] && genotypevote[1][ind][mar]>=genotypevote[0][ind][mar]){
-                        consensus[ind*2][mar] = 'U';
-                        consensus[ind*2+1][mar] = 'U';
-                    } else if (genotypevote[0][ind][mar]>=genotypevote[2][ind][mar] && genotypevote[0][ind][mar]>=genotypevote[1][ind][mar]){
-                        consensus[ind*2][mar] = '0';
-                        consensus[ind*2+1][mar] = '0';
-                    } else System.err.println("Error.");
-                }
+            out.write(line,0,length);
+            out.write("\n");
+        }
+    }
+    
+    // Votes are counted in chars, which keeps the tally at two bytes per genotype and marker for up to 65535 ARGs.
+    private final void vote(final char[][][] genotypevote, final byte[][] leafsequences){
+        for (int seq = 0; seq<numsequences-1; seq+=2){
+            for (int mar = 0; mar<nummarkers; mar++){
+                if (leafsequences[seq][mar]==2) genotypevote[1][seq/2][mar]++; // Het. Very unusual.
+                else if (leafsequences[seq][mar]+leafsequences[seq+1][mar]==2) genotypevote[2][seq/2][mar]++; // Hom 1.
+                else if (leafsequences[seq][mar]+leafsequences[seq+1][mar]==1) genotypevote[1][seq/2][mar]++; // Het.
+                else if (leafsequences[seq][mar]+leafsequences[seq+1][mar]==0) genotypevote[0][seq/2][mar]++; // Hom 0.
             }
-            out = new BufferedWriter(new FileWriter(outputfilename + ".consensusimputation"));
-            out.write(numcases + " " + numcontrols + " " + nummarkers + "\n");
-            for (double location : markerlocations ) out.write(location + "\n");
-            for (int seq = 0; seq<numsequences; seq++){
-                for (int mar = 0; mar<nummarkers; mar++)
-                    out.write(consensus[seq][mar]);
-                out.write("\n");
+        }
+    }
+    
+    private final void writeConsensus(final PrintWriter out, final char[][][] genotypevote){
+        final char[][] consensus = new char[2][nummarkers];
+        out.write(numcases + " " + numcontrols + " " + nummarkers + "\n");
+        for (double location : markerlocations ) out.write(location + "\n");
+        for (int ind = 0; ind<numsequences/2; ind++){
+            for (int mar = 0; mar<nummarkers; mar++){
+                if (genotypevote[2][ind][mar]>=genotypevote[1][ind][mar] && genotypevote[2][ind][mar]>=genotypevote[0][ind][mar]){
+                    consensus[0][mar] = '1';
+                    consensus[1][mar] = '1';
+                } else if (genotypevote[1][ind][mar]>=genotypevote[2][ind][mar] && genotypevote[1][ind][mar]>=genotypevote[0][ind][mar]){
+                    consensus[0][mar] = 'U';
+                    consensus[1][mar] = 'U';
+                } else if (genotypevote[0][ind][mar]>=genotypevote[2][ind][mar] && genotypevote[0][ind][mar]>=genotypevote[1][ind][mar]){
+                    consensus[0][mar] = '0';
+                    consensus[1][mar] = '0';
+                } else System.err.println("Error.");
             }
-            out.close();
-        } catch (IOException e){System.err.println("IO Error " + e);}
+            out.write(consensus[0]);
+            out.write("\n");
+            out.write(consensus[1]);
+            out.write("\n");
+        }
     }
-}
\ No newline at end of file
+}
@@ -21,8 +21,21 @@
 
 package sanger.margarita;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import sanger.argml.environment.Environment;
 import sanger.argml.io.TextInput;
@@ -32,19 +45,48 @@ public class InputParser {
     // Global variables.
     private int numcases, numcontrols, numsequences, nummarkers, numunphasedcharacters; // Properties of the data.
     private double[] markerlocations; // Locations of the markers.
-    private byte[][] inputsequences; // The input sequences with alleles as 0 and 1, unphased as 2 and missing data 3.
+    private GenotypeMatrix inputsequences; // The input sequences with alleles as 0 and 1, unphased as 2 and missing data 3.
     private short[][] allelecounts; // Number of 0, 1 and missing alleles.
     private LinkedList<int[]> possiblemutations; // Mutations that can be made immediately.
+    private static final long MAPPED_BLOCK = 1L<<28; // The most sequence bytes decoded by one task.
     
     // ************************************************ INITIALISATION METHODS ************************************************
     
     /** Creates a new instance of InputParser */
     public InputParser() {}
     
+    /**
+     * Restricts the parsed data to a range of markers, so that ARGs can be
+     * inferred over a window of a long input. Markers are renumbered from 0.
+     *
+     * @param  first    The first marker of the window.
+     * @param  last     The last marker of the window.
+     * @return          A new InputParser holding markers first to last.
+     */
+    public final InputParser window(final int first, final int last){
+        final InputParser window = new InputParser();
+        window.numcases = numcases;
+        window.numcontrols = numcontrols;
+        window.numsequences = numsequences;
+        window.nummarkers = last-first+1;
+        window.markerlocations = new double[window.nummarkers];
+        System.arraycopy(markerlocations,first,window.markerlocations,0,window.nummarkers);
+        window.inputsequences = inputsequences.window(first,last);
+        window.allelecounts = new short[3][window.nummarkers];
+        for (int allele = 3; --allele>=0;) System.arraycopy(allelecounts[allele],first,window.allelecounts[allele],0,window.nummarkers);
+        // Every unphased or missing character left after parsing is counted as allele 2.
+        for (int marker = window.nummarkers; --marker>=0;) window.numunphasedcharacters+=window.allelecounts[2][marker];
+        window.possiblemutations = new LinkedList<int[]>();
+        for (int[] mut : possiblemutations)
+            if (mut[1]>=first && mut[1]<=last) window.possiblemutations.add(new int[]{mut[0],mut[1]-first,mut[2]});
+        return window;
+    }
+    
     /**
      * Reads in a file that is in Margarita format.
      * The data structures are initialised that will be acted upon
-     * by ArgBuilder.
+     * by ArgBuilder. A file is memory mapped and its sequences are decoded 
+     * in parallel, a stream is decoded as it is read.
      *
      * @param  filename The file that contains the marker
      *  locations and sequences in Margarita format.
@@ -52,7 +94,9 @@ public class InputParser {
     public final void parseFile(final Environment env, final TextInput input){
         try {            
             // Read in and parse the first line of the input.
-            final String[] s = input.reader().readLine().split(" ");
+            String line = input.reader().readLine();
+            long offset = line.length()+1; // Where the sequences start in the file.
+            final String[] s = line.split(" ");
             // Check the first line is OK.
             if (s.length!=3) env.log().printError("First line of file is not correct. Have you given the number of cases, controls, and markers?");
             // Initialise the data structures that we can populate now and when reading in the marker locations.
@@ -63,7 +107,11 @@ public class InputParser {
             markerlocations = new double[nummarkers];
             // Read in the marker locations.
             try {
-                for (int marker = 0; marker<nummarkers; marker++) markerlocations[marker] = Double.parseDouble(input.reader().readLine());
+                for (int marker = 0; marker<nummarkers; marker++) {
+                    line = input.reader().readLine();
+                    offset+=line.length()+1;
+                    markerlocations[marker] = Double.parseDouble(line);
+                }
             } catch (Exception e) {
             	env.log().printError("Your positions of markers are not correct. Are there enough of them?\n" + e);
             }
@@ -74,45 +122,20 @@ public class InputParser {
                 }
             }
             // Initialise the data structures that we populate when reading in the sequences.
-            inputsequences = new byte[numsequences][nummarkers];
+            inputsequences = new GenotypeMatrix(numsequences, nummarkers);
             allelecounts = new short[3][nummarkers];
+            final int[][] singletons = new int[2][nummarkers]; // The last sequence with a 0 and a 1 at each marker.
             // Read in the sequences.
-            try {
-                final char[] buffer = new char[nummarkers]; // A buffer for the sequences to be read into.
-                for (int seq = 0; seq<numsequences; seq++){
-                	input.reader().read(buffer,0,nummarkers); // Read in the next line, this is faster than in.readLine();
-                	input.reader().read(); // And skip the newline character.
-                    for (int marker = nummarkers; --marker>=0;){
-                        switch(buffer[marker]){
-                            case '0' : {
-                                allelecounts[0][marker]++;
-                                break;
-                            } case '1' : {
-                                allelecounts[1][marker]++;
-                                inputsequences[seq][marker] = 1;
-                                break;
-                            } case '2' : {
-                            } case 'U' : {
-                                if (seq%2==1 && inputsequences[seq-1][marker]<2)
-                                	env.log().printError("You are not writing unphased sequences in the correct way. Reformat input file.");
-                                allelecounts[2][marker]++;
-                                inputsequences[seq][marker] = 2; // 2 means unphased.
-                                numunphasedcharacters++;
-                                break;
-                            } case '3' : {
-                            } case 'M' : {
-                                allelecounts[2][marker]++;
-                                inputsequences[seq][marker] = 3; // 3 means missing.
-                                numunphasedcharacters++;
-                                break;
-                            } default : {
-                            	env.log().printError("Unrecognised character " + buffer[marker] + " in sequence " + seq + ", marker " + marker + ". Correct this.");
-                            }
-                        }
-                    }
+            final List<SequenceDecoder> decoded = (input.file()!=null && mappable(input.file(), offset)) ? 
+                mapSequences(env, input.file(), offset) : readSequences(input);
+            for (int allele = 2; --allele>=0;) Arrays.fill(singletons[allele], -1);
+            for (SequenceDecoder decoder : decoded){
+                for (String error : decoder.errors) env.log().printError(error);
+                for (int marker = nummarkers; --marker>=0;){
+                    for (int allele = 3; --allele>=0;) allelecounts[allele][marker]+=decoder.allelecounts[allele][marker];
+                    for (int allele = 2; --allele>=0;) singletons[allele][marker] = Math.max(singletons[allele][marker],decoder.singletons[allele][marker]);
                 }
-            } catch (Exception e) {
-            	env.log().printError("Your sequences are not correct. Are there enough of them? Do they have the correct number of markers?\n" + e);
+                numunphasedcharacters+=decoder.numunphasedcharacters;
             }
             // Now check whether all positions are phase resolvable. If there is a position in a sequence that is unphased, when all the others
             // are missing or are unphased, then this will cause a crash. Need to randomly set one unphased genotype to 0/1.
@@ -120,9 +143,11 @@ public class InputParser {
                 if (allelecounts[0][mar]==0 && allelecounts[1][mar]==0 && allelecounts[2][mar]>0){
                     boolean ok = false;
                     for (int seq = 0; seq<numsequences && !ok; seq+=2){
-                        if (inputsequences[seq][mar]==2){
-                            inputsequences[seq][mar] = 0;
-                            inputsequences[seq+1][mar] = 1;
+                        if (inputsequences.get(seq,mar)==2){
+                            inputsequences.set(seq,mar,(byte)0);
+                            inputsequences.set(seq+1,mar,(byte)1);
+                            singletons[0][mar] = seq;
+                            singletons[1][mar] = seq+1;
                             allelecounts[2][mar]-=2;
                             allelecounts[0][mar]++;
                             allelecounts[1][mar]++;
@@ -131,9 +156,10 @@ public class InputParser {
                     }
                     if (!ok){
                         // Then all the data is missing at this position.
-                        if (inputsequences[0][mar]!=3 && inputsequences[1][mar]!=3) env.log().printError("Bad column of missing data in input file.");
-                        inputsequences[0][mar] = 0;
-                        inputsequences[1][mar] = 0;
+                        if (inputsequences.get(0,mar)!=3 && inputsequences.get(1,mar)!=3) env.log().printError("Bad column of missing data in input file.");
+                        inputsequences.set(0,mar,(byte)0);
+                        inputsequences.set(1,mar,(byte)0);
+                        singletons[0][mar] = 1;
                         allelecounts[2][mar]-=2;
                         allelecounts[0][mar]+=2;
                     }
@@ -142,26 +168,147 @@ public class InputParser {
             // Initialise the data structures that we populate once the file has been read.
             possiblemutations = new LinkedList<int[]>();
             for (int marker = nummarkers; --marker>=0;){
-                // Check whether we can mutate this marker.
+                // Check whether we can mutate this marker. The singletons were found while decoding.
                 if (allelecounts[2][marker]==0){
                     if (allelecounts[1][marker]==1) { // Then we can mutate this.
-                        for (int seq = numsequences; --seq>=0;){ // Find the sequence with the singleton.
-                            if (inputsequences[seq][marker]==1) {
-                                possiblemutations.add(new int[]{seq,marker,0});
-                                break;
-                            }
-                        }
+                        possiblemutations.add(new int[]{singletons[1][marker],marker,0});
                     } else if (allelecounts[0][marker]==1) { // Then we can mutate this.
-                        for (int seq = numsequences; --seq>=0;){ // Find the sequence with the singleton.
-                            if (inputsequences[seq][marker]==0) {
-                                possiblemutations.add(new int[]{seq,marker,1});
+                        possiblemutations.add(new int[]{singletons[0][marker],marker,1});
+                    }
+                }
+            }
+        } catch (IOException e) {env.log().printError("Error while reading file.\n" + e);
+        } catch (InterruptedException e) {env.log().printError("Error while reading file.\n" + e);
+        } catch (ExecutionException e) {env.log().printError("Error while reading file.\n" + e.getCause());}
+    }
+    
+    /**
+     * Decodes sequences into the genotype matrix, counting alleles and remembering
+     * where the singletons are in the same pass. Every decoder keeps its own counts.
+     */
+    private final class SequenceDecoder {
+        final int[][] allelecounts = new int[3][nummarkers];
+        final int[][] singletons = new int[2][nummarkers];
+        final LinkedList<String> errors = new LinkedList<String>();
+        int numunphasedcharacters;
+        
+        SequenceDecoder(){
+            for (int allele = 2; --allele>=0;) Arrays.fill(singletons[allele], -1);
+        }
+        
+        final void decode(final int seq, final byte[] buffer){
+            long packed = 0;
+            for (int marker = nummarkers; --marker>=0;){
+                final int shift = (marker&31)<<1;
+                switch(buffer[marker]){
+                    case '0' : {
+                        allelecounts[0][marker]++;
+                        singletons[0][marker] = seq;
+                        break;
+                    } case '1' : {
+                        allelecounts[1][marker]++;
+                        singletons[1][marker] = seq;
+                        packed|=1L<<shift;
+                        break;
+                    } case '2' : {
+                    } case 'U' : {
+                        if (seq%2==1 && inputsequences.get(seq-1,marker)<2)
+                            errors.add("You are not writing unphased sequences in the correct way. Reformat input file.");
+                        allelecounts[2][marker]++;
+                        packed|=2L<<shift; // 2 means unphased.
+                        numunphasedcharacters++;
+                        break;
+                    } case '3' : {
+                    } case 'M' : {
+                        allelecounts[2][marker]++;
+                        packed|=3L<<shift; // 3 means missing.
+                        numunphasedcharacters++;
+                        break;
+                    } default : {
+                        errors.add("Unrecognised character " + (char)buffer[marker] + " in sequence " + seq + ", marker " + marker + ". Correct this.");
+                    }
+                }
+                if (shift==0){
+                    inputsequences.setWord(seq, marker>>>5, packed);
+                    packed = 0;
+                }
+            }
+        }
+    }
+    
+    private static final boolean mappable(final File file, final long offset) throws IOException {
+        // The sequences can be mapped if the lines before them end with a single newline character.
+        if (offset<1 || offset>file.length()) return false;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset-1);
+            return raf.read()=='\n';
+        } finally {
+            raf.close();
+        }
+    }
+    
+    private final List<SequenceDecoder> readSequences(final TextInput input){
+        final SequenceDecoder decoder = new SequenceDecoder();
+        try {
+            final char[] buffer = new char[nummarkers]; // A buffer for the sequences to be read into.
+            final byte[] sequence = new byte[nummarkers];
+            for (int seq = 0; seq<numsequences; seq++){
+                for (int read = 0, n; read<nummarkers; read+=n) { // Read in the next line, this is faster than in.readLine();
+                    if ((n = input.reader().read(buffer,read,nummarkers-read))<0) throw new IOException("Sequence " + seq + " is too short");
+                }
+            	input.reader().read(); // And skip the newline character.
+                for (int marker = nummarkers; --marker>=0;) sequence[marker] = (byte)buffer[marker];
+                decoder.decode(seq, sequence);
+            }
+        } catch (Exception e) {
+        	decoder.errors.add("Your sequences are not correct. Are there enough of them? Do they have the correct number of markers?\n" + e);
+        }
+        return Collections.singletonList(decoder);
+    }
+    
+    private final List<SequenceDecoder> mapSequences(final Environment env, final File file, final long offset) throws IOException, InterruptedException, ExecutionException {
+        // Every sequence is a line of nummarkers characters. Sequences are decoded in blocks of 
+        // whole individuals, so the sister of a sequence is always decoded before it.
+        final long stride = nummarkers+1;
+        final int threads = env.threads();
+        final int blocks = (int)Math.max(threads, (numsequences*stride)/MAPPED_BLOCK+1);
+        final int blocksize = Math.max(2, ((numsequences+blocks-1)/blocks+1)&~1);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final LinkedList<Future<SequenceDecoder>> pending = new LinkedList<Future<SequenceDecoder>>();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            for (int first = 0; first<numsequences; first+=blocksize){
+                final int from = first;
+                final int to = Math.min(first+blocksize, numsequences);
+                final long start = offset+from*stride;
+                final MappedByteBuffer mapped = (start<length) ? channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, offset+to*stride)-start) : null;
+                pending.add(pool.submit(new Callable<SequenceDecoder>(){
+                    public SequenceDecoder call(){
+                        final SequenceDecoder decoder = new SequenceDecoder();
+                        final byte[] sequence = new byte[nummarkers];
+                        for (int seq = from; seq<to; seq++){
+                            if (mapped==null || mapped.remaining()<nummarkers){
+                                decoder.errors.add("Your sequences are not correct. Are there enough of them? Do they have the correct number of markers?\nSequence " + seq + " is too short");
                                 break;
                             }
+                            mapped.get(sequence);
+                            if (mapped.hasRemaining()) mapped.get(); // And skip the newline character.
+                            decoder.decode(seq, sequence);
                         }
+                        return decoder;
                     }
-                }
+                }));
             }
-        } catch (IOException e) {env.log().printError("Error while reading file.\n" + e);}
+            final List<SequenceDecoder> decoded = new ArrayList<SequenceDecoder>(pending.size());
+            for (Future<SequenceDecoder> future : pending) decoded.add(future.get());
+            return decoded;
+        } finally {
+            pool.shutdown();
+            raf.close();
+        }
     }
     
     // ************************************************ INTERFACE ************************************************
@@ -223,12 +370,25 @@ public class InputParser {
     /**
      * What are the input sequences?
      *
+     * @return  the input sequences packed two bits to an allele.
+     * 0 and 1 are the alleles, 2 means unphased and 3 means missing data.
+     */
+    public final GenotypeMatrix getGenotypes(){
+        return inputsequences;
+    }
+    
+    /**
+     * What are the input sequences? The sequences are decoded from the packed 
+     * genotypes on every call, use {@link #getGenotypes()} to avoid the copy.
+     *
      * @return  the input sequences, where the first dimension is the sequence index,
      * and the second dimension is the marker index.
      * 0 and 1 are the alleles, 2 means unphased and 3 means missing data.
      */
     public final byte[][] getInputSequences(){
-        return inputsequences;
+        final byte[][] sequences = new byte[numsequences][nummarkers];
+        for (int seq = numsequences; --seq>=0;) inputsequences.row(seq, sequences[seq]);
+        return sequences;
     }
     
     /**
@@ -0,0 +1,191 @@
+/*
+ * Segment.java
+ *
+ * Copyright (c) 2008 Genome Research Ltd.
+ * Author: Lior Galanti
+ *
+ * THIS SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * This code is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation.
+ *
+ * Any redistribution or derivation in whole or in part including any substantial portion
+ * of this code must include this copyright and permission notice.
+ *
+ */
+
+package sanger.margarita;
+
+/**
+ * An immutable sequence of alleles, stored as a balanced tree of chunks of markers.
+ * Changing a sequence copies only the path to the changed markers and shares the rest,
+ * so copying a sequence is free and splicing two sequences at a breakpoint costs a
+ * logarithmic number of nodes instead of a pass over every marker.
+ * Alleles are coded as in the Imputer, 0 and 1 are defined, 2 is unphased, 3 is missing
+ * and 4 is undefined.
+ */
+final class Segment {
+    
+    static final int CHUNK = 64; // Markers in a leaf.
+    static final byte UNDEFINED_ALLELE = 4;
+    static final Segment UNDEFINED = new Segment(null, null, null, false, true); // Every allele undefined, of any length.
+    
+    private final Segment left, right;
+    private final byte[] alleles; // The alleles of a leaf.
+    private final boolean defined; // Every allele is 0 or 1.
+    private final boolean plain; // No allele is unphased or missing.
+    
+    private Segment(final Segment left, final Segment right, final byte[] alleles, final boolean defined, final boolean plain) {
+        this.left = left;
+        this.right = right;
+        this.alleles = alleles;
+        this.defined = defined;
+        this.plain = plain;
+    }
+    
+    private static final Segment leaf(final byte[] alleles){
+        boolean defined = true, plain = true, undefined = true;
+        for (byte allele : alleles){
+            if (allele>1) defined = false;
+            if (allele==2 || allele==3) plain = false;
+            if (allele!=UNDEFINED_ALLELE) undefined = false;
+        }
+        return undefined ? UNDEFINED : new Segment(null, null, alleles, defined, plain);
+    }
+    
+    private static final Segment node(final Segment left, final Segment right){
+        if (left==UNDEFINED && right==UNDEFINED) return UNDEFINED;
+        return new Segment(left, right, null, left.defined && right.defined, left.plain && right.plain);
+    }
+    
+    private static final int middle(final int lo, final int hi){
+        return lo + ((hi-lo+CHUNK-1)/CHUNK+1)/2*CHUNK;
+    }
+    
+    private final Segment left(){
+        return this==UNDEFINED ? UNDEFINED : left;
+    }
+    
+    private final Segment right(){
+        return this==UNDEFINED ? UNDEFINED : right;
+    }
+    
+    private final byte allele(final int offset){
+        return this==UNDEFINED ? UNDEFINED_ALLELE : alleles[offset];
+    }
+    
+    /**
+     * @return A sequence with the alleles of sequence.
+     */
+    static final Segment of(final byte[] sequence){
+        return of(sequence, 0, sequence.length);
+    }
+    
+    private static final Segment of(final byte[] sequence, final int lo, final int hi){
+        if (hi-lo<=CHUNK){
+            final byte[] alleles = new byte[hi-lo];
+            System.arraycopy(sequence,lo,alleles,0,hi-lo);
+            return leaf(alleles);
+        }
+        final int mid = middle(lo, hi);
+        return node(of(sequence, lo, mid), of(sequence, mid, hi));
+    }
+    
+    /**
+     * Copies the alleles into sequence.
+     */
+    final void toArray(final byte[] sequence){
+        toArray(sequence, 0, sequence.length);
+    }
+    
+    private final void toArray(final byte[] sequence, final int lo, final int hi){
+        if (this==UNDEFINED) for (int marker = lo; marker<hi; marker++) sequence[marker] = UNDEFINED_ALLELE;
+        else if (hi-lo<=CHUNK) System.arraycopy(alleles,0,sequence,lo,hi-lo);
+        else {
+            final int mid = middle(lo, hi);
+            left.toArray(sequence, lo, mid);
+            right.toArray(sequence, mid, hi);
+        }
+    }
+    
+    /**
+     * Mutates one marker. Going up the ARG only defined alleles are flipped, 
+     * going down everything but 0 becomes 0.
+     *
+     * @return The mutated sequence.
+     */
+    final Segment mutate(final int nummarkers, final int marker, final boolean down){
+        return mutate(0, nummarkers, marker, down);
+    }
+    
+    private final Segment mutate(final int lo, final int hi, final int marker, final boolean down){
+        if (hi-lo<=CHUNK){
+            final byte[] mutated = new byte[hi-lo];
+            for (int offset = hi-lo; --offset>=0;) mutated[offset] = allele(offset);
+            final int offset = marker-lo;
+            if (down) mutated[offset] = (byte)(mutated[offset]==0 ? 1 : 0);
+            else if (mutated[offset]<=1) mutated[offset] = (byte)(1-mutated[offset]);
+            return leaf(mutated);
+        }
+        final int mid = middle(lo, hi);
+        if (marker<mid) return node(left().mutate(lo, mid, marker, down), right());
+        else return node(left(), right().mutate(mid, hi, marker, down));
+    }
+    
+    /**
+     * @return The alleles of first up to and including location followed by the alleles of second.
+     */
+    static final Segment splice(final Segment first, final Segment second, final int nummarkers, final int location){
+        return splice(first, second, 0, nummarkers, location);
+    }
+    
+    private static final Segment splice(final Segment first, final Segment second, final int lo, final int hi, final int location){
+        if (hi-1<=location || first==second) return first;
+        if (lo>location) return second;
+        if (hi-lo<=CHUNK){
+            final byte[] spliced = new byte[hi-lo];
+            for (int offset = hi-lo; --offset>=0;) spliced[offset] = (lo+offset<=location) ? first.allele(offset) : second.allele(offset);
+            return leaf(spliced);
+        }
+        final int mid = middle(lo, hi);
+        return node(splice(first.left(), second.left(), lo, mid, location), splice(first.right(), second.right(), mid, hi, location));
+    }
+    
+    /**
+     * Coalesces two sequences, taking the alleles of first where they are defined and those of second elsewhere.
+     * Markers where both sequences carry different alleles are counted in conflicts[0]. Subtrees that are
+     * shared or fully defined in first are taken as they are and are not compared.
+     *
+     * @return The coalesced sequence.
+     */
+    static final Segment coalesce(final Segment first, final Segment second, final int nummarkers, final int[] conflicts){
+        return coalesce(first, second, 0, nummarkers, conflicts);
+    }
+    
+    private static final Segment coalesce(final Segment first, final Segment second, final int lo, final int hi, final int[] conflicts){
+        if (first.defined || first==second) return first;
+        if (first==UNDEFINED) return second;
+        if (second==UNDEFINED && first.plain) return first;
+        if (hi-lo<=CHUNK){
+            final byte[] coalesced = new byte[hi-lo];
+            for (int offset = hi-lo; --offset>=0;){
+                final byte allele = first.allele(offset);
+                if (allele>1) coalesced[offset] = second.allele(offset);
+                else {
+                    coalesced[offset] = allele;
+                    if (allele!=second.allele(offset) && second.allele(offset)<=1) conflicts[0]++;
+                }
+            }
+            return leaf(coalesced);
+        }
+        final int mid = middle(lo, hi);
+        final Segment left = coalesce(first.left, second.left(), lo, mid, conflicts);
+        final Segment right = coalesce(first.right, second.right(), mid, hi, conflicts);
+        return (left==first.left && right==first.right) ? first : node(left, right);
+    }
+}
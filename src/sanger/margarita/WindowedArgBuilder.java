@@ -0,0 +1,264 @@
+/*
+ * WindowedArgBuilder.java
+ *
+ * Copyright (c) 2008 Genome Research Ltd.
+ * Author: Lior Galanti
+ *
+ * THIS SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * This code is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation.
+ *
+ * Any redistribution or derivation in whole or in part including any substantial portion
+ * of this code must include this copyright and permission notice.
+ *
+ */
+
+package sanger.margarita;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sanger.argml.environment.Environment;
+import sanger.argml.io.TextOutput;
+
+/**
+ * Infers ARGs over overlapping windows of markers, building the windows in parallel,
+ * and stitches the windows of every sample into one ARG over all the markers.
+ * Every sequence is split by recombinations at the middle of each overlap and each
+ * window contributes the events that act on its own part of the sequences, so the
+ * marginal tree at a marker is the one inferred by the window that owns it.
+ * The splits are written as st events, they separate the marginal trees but are not
+ * counted as recombinations, by the header or by the statistics read from the ARGs.
+ */
+public class WindowedArgBuilder {
+    
+    private Environment env;
+    private TextOutput output;
+    
+    private int numsequences, nummarkers; // Number of sequences and markers.
+    private int[][] windows; // The first and last marker of every window.
+    private int[][] cores; // The first and last marker every window contributes to the stitched ARGs.
+    private File spool; // Where the stitched ARGs are written until they are printed.
+    private int nummutations, numcoalescences, numrecombinations, time, nextparent; // Particular to the current arg.
+    
+    /** Creates a new instance of WindowedArgBuilder */
+    public WindowedArgBuilder(Environment env, TextOutput output) {
+        this.env = env;
+        this.output = output;
+    }
+    
+    /**
+     * Constructs ARGs window by window and stitches them together.
+     *
+     * @param  numargs  The number of ARGs to construct.
+     * @param  ip       The InputParser containing the sequences.
+     * @param  window   The number of markers in a window.
+     * @param  overlap  The number of markers shared by adjacent windows.
+     * @param  threads  The number of windows built concurrently.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public final void buildArgs(final int numargs, final InputParser ip, final int window, final int overlap, final int threads) throws IOException, InterruptedException, ExecutionException {
+        if (window<2 || overlap<0 || overlap>=window) throw new IllegalArgumentException("A window needs at least 2 markers and more markers than its overlap.");
+        numsequences = ip.getNumberOfSequences();
+        nummarkers = ip.getNumberOfMarkers();
+        
+        // Lay the windows out, the last window is moved left so that it is as long as the others.
+        final ArrayList<int[]> layout = new ArrayList<int[]>();
+        for (int first = 0; ; first+=window-overlap){
+            if (first+window>=nummarkers){
+                layout.add(new int[]{Math.max(0,nummarkers-window),nummarkers-1});
+                break;
+            }
+            layout.add(new int[]{first,first+window-1});
+        }
+        windows = layout.toArray(new int[layout.size()][]);
+        // Adjacent windows hand over in the middle of their overlap.
+        cores = new int[windows.length][2];
+        for (int win = 1; win<windows.length; win++){
+            cores[win-1][1] = (windows[win][0]+windows[win-1][1])/2;
+            cores[win][0] = cores[win-1][1]+1;
+        }
+        cores[windows.length-1][1] = nummarkers-1;
+        
+        // Every window is inferred from its own markers.
+        final InputParser[] parsers = new InputParser[windows.length];
+        for (int win = 0; win<windows.length; win++) parsers[win] = ip.window(windows[win][0],windows[win][1]);
+        
+        // Build the windows of one ARG after another, each ARG is stitched and spooled as soon as all its windows are built.
+        spool = File.createTempFile("margarita", ".args");
+        spool.deleteOnExit();
+        final PrintWriter spooled = new PrintWriter(new BufferedWriter(new FileWriter(spool)));
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        final LinkedList<Future<ArgBuilderForUnphasedData>> pending = new LinkedList<Future<ArgBuilderForUnphasedData>>();
+        final int inflight = 2 * Math.max(1, threads);
+        try {
+            output.writer().println("%ARGINFERENCE");
+            output.writer().println("SEQS SNPS MUTS COAS RECS GECS TRCS SECS HEURP");
+            final LinkedList<ArgStructure>[] pieces = new LinkedList[windows.length];
+            long buildtime = 0;
+            int arg = 0, win = 0;
+            for (int task = 0; task<numargs*windows.length || !pending.isEmpty(); task++){
+                if (task<numargs*windows.length){
+                    final InputParser parser = parsers[task%windows.length];
+                    pending.add(pool.submit(new Callable<ArgBuilderForUnphasedData>(){
+                        public ArgBuilderForUnphasedData call(){
+                            final ArgBuilderForUnphasedData ab = new ArgBuilderForUnphasedData(env, null);
+                            ab.buildArgs(1, parser);
+                            return ab;
+                        }
+                    }));
+                }
+                if (task>=numargs*windows.length || pending.size()>=inflight){
+                    final ArgBuilderForUnphasedData ab = pending.removeFirst().get();
+                    pieces[win] = ab.getArgs()[0];
+                    buildtime+=ab.getBuildTimes()[0];
+                    if (++win==windows.length){
+                        // Stitch the windows of the ARG together.
+                        final LinkedList<ArgStructure> stitched = stitch(pieces);
+                        // Gene conversions can not be told apart from crossovers once the windows are stitched.
+                        output.writer().println(numsequences + " " + nummarkers + " " + nummutations + " " + numcoalescences + " " +
+                                numrecombinations + " NA " + numrecombinations + " " + (buildtime/(double)1000000000) + " " + 
+                                ArgBuilderForUnphasedData.HEURISTICP);
+                        printArg(spooled, arg++, stitched);
+                        Arrays.fill(pieces, null);
+                        buildtime = 0;
+                        win = 0;
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            spooled.close();
+        }
+        if (spooled.checkError()) throw new IOException("Could not spool the stitched ARGs to " + spool);
+    }
+    
+    private final LinkedList<ArgStructure> stitch(final LinkedList<ArgStructure>[] windowargs){
+        final LinkedList<ArgStructure> arg = new LinkedList<ArgStructure>();
+        nummutations = 0;
+        numcoalescences = 0;
+        numrecombinations = 0;
+        time = 0;
+        nextparent = numsequences;
+        // Split every sequence at the ends of the cores, pieces[win][seq] carries the core of window win.
+        final int[][] pieces = new int[windows.length][numsequences];
+        for (int seq = 0; seq<numsequences; seq++){
+            int piece = seq;
+            for (int win = 0; win<windows.length-1; win++){
+                arg.add(new ArgStructure(time++,ArgStructure.Type.Re,piece,-1,nextparent,nextparent+1,cores[win][1]));
+                pieces[win][seq] = nextparent;
+                piece = nextparent+1;
+                nextparent+=2;
+            }
+            pieces[windows.length-1][seq] = piece;
+        }
+        // Replay every window on its pieces.
+        for (int win = 0; win<windows.length; win++) project(arg, windowargs[win], win, pieces[win]);
+        return arg;
+    }
+    
+    private final void project(final LinkedList<ArgStructure> arg, final LinkedList<ArgStructure> windowarg, final int win, final int[] pieces){
+        // Each window node that carries part of the core maps to {stitched node, first marker, last marker} of that part.
+        // Events that leave all of the core on one side are dropped and the node passed on.
+        final Hashtable<Integer,int[]> nodes = new Hashtable<Integer,int[]>();
+        final int offset = windows[win][0];
+        for (int seq = numsequences; --seq>=0;) nodes.put(seq,new int[]{pieces[seq],cores[win][0],cores[win][1]});
+        for (ArgStructure struct : windowarg){
+            switch (struct.t){
+                case Mu : {
+                    final int[] child = nodes.remove(struct.child1);
+                    if (child==null) break;
+                    final int location = offset+struct.location;
+                    if (location>=child[1] && location<=child[2]){
+                        arg.add(new ArgStructure(time++,ArgStructure.Type.Mu,child[0],-1,nextparent,-1,location));
+                        nummutations++;
+                        child[0] = nextparent++;
+                    }
+                    nodes.put(struct.parent1,child);
+                    break;
+                } case Co : {
+                    final int[] child1 = nodes.remove(struct.child1);
+                    final int[] child2 = nodes.remove(struct.child2);
+                    if (child1==null){
+                        if (child2!=null) nodes.put(struct.parent1,child2);
+                    } else if (child2==null){
+                        nodes.put(struct.parent1,child1);
+                    } else {
+                        arg.add(new ArgStructure(time++,ArgStructure.Type.Co,child1[0],child2[0],nextparent,-1,-1));
+                        numcoalescences++;
+                        nodes.put(struct.parent1,new int[]{nextparent++,Math.min(child1[1],child2[1]),Math.max(child1[2],child2[2])});
+                    }
+                    break;
+                } case Re : {
+                    final int[] child = nodes.remove(struct.child1);
+                    if (child==null) break;
+                    final int location = offset+struct.location;
+                    if (location<child[1]) nodes.put(struct.parent2,child); // All of it is to the right of the breakpoint.
+                    else if (location>=child[2]) nodes.put(struct.parent1,child); // All of it is to the left of the breakpoint.
+                    else {
+                        arg.add(new ArgStructure(time++,ArgStructure.Type.Re,child[0],-1,nextparent,nextparent+1,location));
+                        numrecombinations++;
+                        nodes.put(struct.parent1,new int[]{nextparent,child[1],location});
+                        nodes.put(struct.parent2,new int[]{nextparent+1,location+1,child[2]});
+                        nextparent+=2;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the windows.
+     *
+     * @return  The first and last marker of every window.
+     */
+    public final int[][] getWindows(){
+        return windows;
+    }
+    
+    /**
+     * Prints the stitched ARGs in the same format as {@link ArgBuilderForUnphasedData#printArgs()},
+     * except that the splits of the sequences at the ends of the cores are written as st events.
+     * The ARGs are copied from where {@link #buildArgs} spooled them, which is then deleted.
+     */
+    public final void printArgs() throws IOException {
+        output.writer().println("%ARGS");
+        output.writer().println("TIME OPERATION CHILD1 {CHILD2} PARENT1 {PARENT2} {LOCATION}");
+        final BufferedReader spooled = new BufferedReader(new FileReader(spool));
+        try {
+            for (String line = spooled.readLine(); line!=null; line = spooled.readLine()) output.writer().println(line);
+        } finally {
+            spooled.close();
+            spool.delete();
+        }
+    }
+    
+    private final void printArg(final PrintWriter out, final int arg, final LinkedList<ArgStructure> stitched){
+        out.println("ARG " + arg);
+        int stitches = numsequences*(windows.length-1); // The splits lead every stitched ARG.
+        for (ArgStructure struct : stitched){
+            if (stitches-->0) out.println(struct.time + " st " + struct.child1 + " " + struct.parent1 + " " + struct.parent2 + " " + struct.location);
+            else out.println(struct);
+        }
+    }
+}
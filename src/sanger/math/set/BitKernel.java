@@ -0,0 +1,181 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.math.set;
+
+import org.apache.solr.util.BitUtil;
+
+/**
+ * Word level kernels for binary operations on <code>long</code> arrays of set bits.
+ * Two implementations are provided: the {@link #SCALAR} kernel delegates to the carry save adder 
+ * population counts of {@link BitUtil} and the {@link #INTRINSIC} kernel uses {@link Long#bitCount(long)} 
+ * on straight loops, which the JIT compiles to the native population count and vector instructions when the platform supports them.
+ * The kernel returned by {@link #instance()} is selected once at startup from the <code>foliage.bitkernel</code> 
+ * system property (<code>intrinsic</code> or <code>scalar</code>), defaulting to <code>intrinsic</code>.
+ * @author Lior Galanti
+ */
+public abstract class BitKernel {
+	/**
+	 * Kernel based on the {@link BitUtil} population counts.
+	 */
+	public static final BitKernel SCALAR = new ScalarBitKernel();
+	
+	/**
+	 * Kernel based on {@link Long#bitCount(long)}.
+	 */
+	public static final BitKernel INTRINSIC = new IntrinsicBitKernel();
+	
+	private static final BitKernel instance = select(System.getProperty("foliage.bitkernel", "intrinsic"));
+	
+	/**
+	 * @param name The kernel name.
+	 * @return The kernel named <code>name</code>, or the {@link #SCALAR} kernel if the name is not known.
+	 */
+	public static BitKernel select(String name){
+		return INTRINSIC.name().equals(name) ? INTRINSIC : SCALAR;
+	}
+	
+	/**
+	 * @return The kernel selected at startup.
+	 */
+	public static BitKernel instance(){
+		return instance;
+	}
+	
+	/**
+	 * @return The kernel name.
+	 */
+	public abstract String name();
+	
+	/**
+	 * @return The number of set bits in <code>a[offset, offset + words)</code>.
+	 */
+	public abstract long cardinality(long[] a, int offset, int words);
+	
+	/**
+	 * @return The number of set bits in <code>a &amp; b</code> over the first <code>words</code> words.
+	 */
+	public abstract long intersectionCount(long[] a, long[] b, int words);
+
+	/**
+	 * @return The number of set bits in <code>a | b</code> over the first <code>words</code> words.
+	 */
+	public abstract long unionCount(long[] a, long[] b, int words);
+
+	/**
+	 * @return The number of set bits in <code>a &amp; ~b</code> over the first <code>words</code> words.
+	 */
+	public abstract long andNotCount(long[] a, long[] b, int words);
+
+	/**
+	 * @return The number of set bits in <code>a ^ b</code> over the first <code>words</code> words.
+	 */
+	public abstract long xorCount(long[] a, long[] b, int words);
+	
+	/**
+	 * <code>target &amp;= source</code> over the first <code>words</code> words.
+	 */
+	public void intersect(long[] target, long[] source, int words){
+		for(int i=0; i<words; i++){ target[i] &= source[i]; }
+	}
+	
+	/**
+	 * <code>target |= source</code> over the first <code>words</code> words.
+	 */
+	public void union(long[] target, long[] source, int words){
+		for(int i=0; i<words; i++){ target[i] |= source[i]; }
+	}
+	
+	/**
+	 * <code>target ^= source</code> over the first <code>words</code> words.
+	 */
+	public void xor(long[] target, long[] source, int words){
+		for(int i=0; i<words; i++){ target[i] ^= source[i]; }
+	}
+	
+	/**
+	 * <code>target &amp;= ~source</code> over the first <code>words</code> words.
+	 */
+	public void andNot(long[] target, long[] source, int words){
+		for(int i=0; i<words; i++){ target[i] &= ~source[i]; }
+	}
+	
+	public String toString(){
+		return name();
+	}
+	
+	private static class ScalarBitKernel extends BitKernel {
+		public String name(){ return "scalar"; }
+		
+		public long cardinality(long[] a, int offset, int words){
+			return BitUtil.pop_array(a, offset, words);
+		}
+		
+		public long intersectionCount(long[] a, long[] b, int words){
+			return BitUtil.pop_intersect(a, b, 0, words);
+		}
+		
+		public long unionCount(long[] a, long[] b, int words){
+			return BitUtil.pop_union(a, b, 0, words);
+		}
+		
+		public long andNotCount(long[] a, long[] b, int words){
+			return BitUtil.pop_andnot(a, b, 0, words);
+		}
+		
+		public long xorCount(long[] a, long[] b, int words){
+			return BitUtil.pop_xor(a, b, 0, words);
+		}
+	}
+	
+	private static class IntrinsicBitKernel extends BitKernel {
+		public String name(){ return "intrinsic"; }
+		
+		public long cardinality(long[] a, int offset, int words){
+			long count = 0;
+			for(int i=offset, end=offset + words; i<end; i++){ count += Long.bitCount(a[i]); }
+			return count;
+		}
+		
+		public long intersectionCount(long[] a, long[] b, int words){
+			long count = 0;
+			for(int i=0; i<words; i++){ count += Long.bitCount(a[i] & b[i]); }
+			return count;
+		}
+		
+		public long unionCount(long[] a, long[] b, int words){
+			long count = 0;
+			for(int i=0; i<words; i++){ count += Long.bitCount(a[i] | b[i]); }
+			return count;
+		}
+		
+		public long andNotCount(long[] a, long[] b, int words){
+			long count = 0;
+			for(int i=0; i<words; i++){ count += Long.bitCount(a[i] & ~b[i]); }
+			return count;
+		}
+		
+		public long xorCount(long[] a, long[] b, int words){
+			long count = 0;
+			for(int i=0; i<words; i++){ count += Long.bitCount(a[i] ^ b[i]); }
+			return count;
+		}
+	}
+}
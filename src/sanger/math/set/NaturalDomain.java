@@ -20,8 +20,11 @@
 
 package sanger.math.set;
 
+import java.lang.ref.WeakReference;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,8 +48,10 @@ import sanger.argml.io.XmlOutput;
  */
 public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 	private static final Pattern codec = Pattern.compile("^\\[((([0-9]+),([0-9]+))|([01]+))\\]:(\\[[0-9]+,[0-9]+\\])$");
+	private static final Map<NaturalDomain, WeakReference<NaturalDomain>> registry = new WeakHashMap<NaturalDomain, WeakReference<NaturalDomain>>();
 
 	private NaturalSpace space;
+	private boolean interned;
 	
 	private Integer _min;
 	private Integer _max;
@@ -54,6 +59,8 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 	private OpenBitSet _one;
 	private Integer _cardinality;
 	private Integer _last;
+	private Integer _hash;
+	private int[] _members;
 	
 	private void clearCache(){
 		_min = null;
@@ -62,6 +69,8 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 		_one = null;
 		_cardinality = null;
 		_last = null;
+		_hash = null;
+		_members = null;
 	}
 	
 	/**
@@ -121,12 +130,12 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 	/**
 	 * Constructs a sub domain from the provided {@link NaturalSet}.  
 	 * @param naturalSet
-	 * @return a new <code>NaturalDomain</code> object.
+	 * @return the interned <code>NaturalDomain</code> containing the elements of <code>naturalSet</code>.
 	 * @throws NaturalSetException if the <code>NaturalSet</code> does not belong to the domain.
 	 */
 	public NaturalDomain createSubDomain(NaturalSet naturalSet) throws NaturalSetException{
 		NaturalDomain result;
-		if(equals(naturalSet.domain)){
+		if(compatible(naturalSet.domain)){
 			OpenBitSet sub = new OpenBitSet(space.cardinality());
 			BitSetIterator iterate = new BitSetIterator(naturalSet.map());
 			
@@ -136,7 +145,7 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 				sub.fastSet(space.toRelativeCoordinate(toAbsoluteCoordinate(dp)));
 				dp = iterate.next();
 			}
-			result = new NaturalDomain(space, sub);
+			result = new NaturalDomain(space, sub).intern();
 		} else {
 			throw new NaturalSetException("Cannot derive a sub-domain from a set of a diffrent domain");
 		}
@@ -347,10 +356,14 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 	 * @return True ifd both <code>NaturalDomain</code> objects are equal.
 	 */
 	public boolean equals(Object o) {
+		if (this == o) return true;
 		boolean result = false;
 		if (o instanceof NaturalDomain) {
 			NaturalDomain other = (NaturalDomain) o;
-			if(space.equals(other.space)){
+			if(interned && other.interned){
+				result = false;
+				
+			} else if(space.equals(other.space)){
 				if(isContinuous() && other.isContinuous()){
 					result = (min == other.min && max == other.max);
 					
@@ -363,6 +376,70 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 		} 
 		return result;
 	}
+	
+	public int hashCode() {
+		if(_hash == null){
+			int hash = space.hashCode();
+			if(isContinuous()){
+				hash = 31 * (31 * hash + min) + max;
+			} else {
+				long[] bits = map.getBits();
+				int words = map.getNumWords();
+				while(words > 0 && bits[words - 1] == 0) words--;
+				for(int i=0; i<words; i++){
+					hash = 31 * hash + (int)(bits[i] ^ (bits[i] >>> 32));
+				}
+			}
+			_hash = hash;
+		}
+		return _hash;
+	}
+	
+	/**
+	 * Tests if sets defined over <code>other</code> can be combined with sets defined over this domain.
+	 * This is equivalent to {@link #equals(Object)} but returns immediately when both domains are interned.
+	 * @param other
+	 * @return True if both domains are equal.
+	 */
+	public boolean compatible(NaturalDomain other){
+		return this == other || (!(interned && other.interned) && equals(other));
+	}
+	
+	/**
+	 * Returns the canonical <code>NaturalDomain</code> structurally equal to this one.
+	 * Domains read or derived from the same source are then the same object, 
+	 * so the compatibility test preceding every binary set operation reduces to a reference comparison.
+	 * The canonical domain's cached values are computed before it is published so it can be shared between threads.
+	 * An interned domain must not be modified with {@link #intersect(NaturalDomain)}, {@link #union(NaturalDomain)} or {@link #xor(NaturalDomain)}, 
+	 * use {@link #clone()} to obtain a private copy.
+	 * @return The canonical instance, which may be <code><strong>this</strong></code>.
+	 */
+	public NaturalDomain intern(){
+		NaturalDomain canonical = this;
+		if(!interned){
+			synchronized(registry){
+				WeakReference<NaturalDomain> reference = registry.get(this);
+				NaturalDomain existing = (reference == null) ? null : reference.get();
+				if(existing != null){
+					canonical = existing;
+				} else {
+					space = space.intern();
+					if(!isEmpty()){ min(); max(); last(); }
+					map(); one(); cardinality(); hashCode();
+					interned = true;
+					registry.put(this, new WeakReference<NaturalDomain>(this));
+				}
+			}
+		}
+		return canonical;
+	}
+	
+	/**
+	 * @return True if this object is the canonical instance returned by {@link #intern()}.
+	 */
+	public boolean isInterned(){
+		return interned;
+	}
 		
 	/**
 	 * @return the <code>NaturalSpace</code> over which this domain is defined.
@@ -524,6 +601,45 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 		return value;
 	}
 	
+	/**
+	 * Translates the position to the relative coordinate system without testing that it is contained in the domain.
+	 * @param position a position in the absolute coordinate system.
+	 * @return the relative position.
+	 */
+	public int relative(int position){
+		return position - min();
+	}
+	
+	/**
+	 * Translates the position to the absolute coordinate system without testing that it is contained in the domain.
+	 * @param position a position in the relative coordinate system.
+	 * @return the absolute position.
+	 */
+	public int absolute(int position){
+		return position + min();
+	}
+	
+	/**
+	 * The elements of the domain in ascending order, in the absolute coordinate system.
+	 * Iterating over the array avoids the boxing and containment tests of the domain's {@link #iterator()}.
+	 * The array is cached and must not be modified.
+	 * @return The elements of the domain.
+	 */
+	public int[] members(){
+		if(_members == null){
+			int[] members = new int[cardinality()];
+			if(isContinuous()){
+				for(int i=0; i<members.length; i++){ members[i] = min + i; }
+			} else {
+				BitSetIterator iterate = new BitSetIterator(map);
+				int base = space.min();
+				for(int i=0, p=iterate.next(); p > -1; i++, p=iterate.next()){ members[i] = base + p; }
+			}
+			_members = members;
+		}
+		return _members;
+	}
+	
 	public OpenBitSet one(){
 		if(_one == null){
 			try {
@@ -549,7 +665,7 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 	 */
 	public NaturalSet project(final NaturalSet source) throws NaturalSetException{
 		NaturalSet project = null;
-		if(space.equals(source.domain.space)){
+		if(space == source.domain.space || space.equals(source.domain.space)){
 			if(!source.isEmpty()){				
 				OpenBitSet projection = new OpenBitSet(closureCardinality());
 				BitSetIterator iterate = new BitSetIterator(source.map());
@@ -665,9 +781,9 @@ public class NaturalDomain extends AbstractSet implements Iterable<Integer>{
 				case XMLStreamConstants.END_ELEMENT:
 					if (parser.getLocalName().equals("domain")) {
 						if(map == null){
-							domain = new NaturalDomain(new NaturalSpace(smin, smax), dmin, dmax); 
+							domain = new NaturalDomain(new NaturalSpace(smin, smax).intern(), dmin, dmax).intern(); 
 						} else {
-							domain = new NaturalDomain(new NaturalSpace(smin, smax),map); 							
+							domain = new NaturalDomain(new NaturalSpace(smin, smax).intern(), map).intern(); 							
 						}
 					}
 				break;
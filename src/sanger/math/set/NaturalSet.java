@@ -288,7 +288,7 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 		boolean result = false;
 		if (o instanceof NaturalSet) {
 			NaturalSet other = (NaturalSet) o;
-			if(this.domain.equals(other.domain)){
+			if(this.domain.compatible(other.domain)){
 				if(isContinuous() && other.isContinuous()){
 					result = (min == other.min && max == other.max);
 				} else {
@@ -322,7 +322,20 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 	 * @throws NaturalSetException if the two sets are not defined over the same domain.
 	 */
 	public int intersectionCount(final NaturalSet other) throws NaturalSetException{
-		return NaturalSet.intersect(this, other).cardinality();
+		int result = 0;
+		if(domain.compatible(other.domain)){
+			if(!isEmpty() && !other.isEmpty()){
+				if(isContinuous() && other.isContinuous()){
+					result = Math.max(0, Math.min(max, other.max) - Math.max(min, other.min) + 1);
+				} else {
+					OpenBitSet a = map(), b = other.map();
+					result = (int)BitKernel.instance().intersectionCount(a.getBits(), b.getBits(), Math.min(a.getNumWords(), b.getNumWords()));
+				}
+			}
+		} else {
+			throw new NaturalSetException("Cannot intersect sets of different domains");
+		}
+		return result;
 	}
 			
 	/**
@@ -333,7 +346,7 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 	 * @throws NaturalSetException if the two sets are not defined over the same domain.
 	 */
 	public int unionCount(final NaturalSet other) throws NaturalSetException{
-		return NaturalSet.union(this, other).cardinality();
+		return cardinality() + other.cardinality() - intersectionCount(other);
 	}
 			
 	/**
@@ -343,7 +356,7 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 	 * @throws NaturalSetException if the two sets are not defined over the same domain.
 	 */
 	public NaturalSet intersect(final NaturalSet other) throws NaturalSetException{
-		if(domain.equals(other.domain)){
+		if(domain.compatible(other.domain)){
 			if(isEmpty() || other.isEmpty()) {
 				clear();
 			} else {
@@ -371,7 +384,7 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 	 * @throws NaturalSetException if the two sets are not defined over the same domain.
 	 */
 	public NaturalSet union(final NaturalSet other) throws NaturalSetException {
-		if(domain.equals(other.domain)){
+		if(domain.compatible(other.domain)){
 			if(!other.isEmpty()){
 				if(!isEmpty()){
 					this.vectorize();
@@ -394,7 +407,7 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 	 * @throws NaturalSetException if the two sets are not defined over the same domain.
 	 */
 	public NaturalSet xor(final NaturalSet other) throws NaturalSetException {
-		if(domain.equals(other.domain)){
+		if(domain.compatible(other.domain)){
 			this.vectorize();
 			map.xor(other.map());
 			this.normalize();
@@ -412,7 +425,7 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 	 * @throws NaturalSetException if the two sets are not defined over the same domain.
 	 */
 	public NaturalSet and(final NaturalSet other) throws NaturalSetException {
-		if(domain.equals(other.domain)){
+		if(domain.compatible(other.domain)){
 			this.vectorize();
 			map.and(other.map());
 			this.normalize();
@@ -430,7 +443,7 @@ public class NaturalSet extends AbstractSet implements Comparable<NaturalSet> {
 	 * @throws NaturalSetException if the two sets are not defined over the same domain.
 	 */
 	public NaturalSet or(final NaturalSet other) throws NaturalSetException {
-		if(domain.equals(other.domain)){
+		if(domain.compatible(other.domain)){
 			this.vectorize();
 			map.or(other.map());
 			this.normalize();
@@ -95,7 +95,7 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 	 * @throws NaturalSetException if <code>this.domain().equals(e.domain())</code> does not evaluate to <code>true</code>.
 	 */
 	public void add(NaturalSet e) throws NaturalSetException{
-		if(domain.equals(e.domain)){
+		if(domain.compatible(e.domain)){
 			elements.add(e);
 		} else {
 			throw new NaturalSetException("Entry domain is incompatible with natural set set's domain.");
@@ -118,7 +118,7 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 	 */
 	public int intersectCount(final NaturalSetCollection other) throws NaturalSetException{
 		int intersect = 0;
-		if(this.domain.equals(other.domain)){
+		if(this.domain.compatible(other.domain)){
 			ArrayList<NaturalSet> first = elements, second = other.elements;
 			int firstPosition = 0, secondPosition = 0;
 			int firstEnd = 	first.size() - 1, secondEnd = second.size() - 1;
@@ -178,7 +178,7 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 	 */
 	public static NaturalSetCollection intersect(NaturalSetCollection a, NaturalSetCollection b) throws NaturalSetException{
 		NaturalSetCollection intersect = null;
-		if(b.domain.equals(a.domain)){			
+		if(b.domain.compatible(a.domain)){			
 			intersect = new NaturalSetCollection(b.domain);
 			ArrayList<NaturalSet> first = b.elements, second = a.elements;
 			int firstPosition = 0, secondPosition = 0;
@@ -230,7 +230,7 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 	 * @throws NaturalSetException if <code>this.domain().equals(other.domain())</code> does not evaluate to <code>true</code> or the two sets are of different cardinality.
 	 */
 	public NaturalSetCollection lineByLineXor(NaturalSetCollection other) throws NaturalSetException {
-		if(size() == other.size() && domain.equals(other.domain)){
+		if(size() == other.size() && domain.compatible(other.domain)){
 			for (int i=0; i < size(); i++) {
 				elements.get(i).xor(other.elements.get(i)); 
 			}
@@ -248,7 +248,7 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 	 * @throws NaturalSetException if <code>this.domain().equals(other.domain())</code> does not evaluate to <code>true</code>.
 	 */
 	public NaturalSetCollection xor(NaturalSet other) throws NaturalSetException{
-		if(domain.equals(other.domain)){
+		if(domain.compatible(other.domain)){
 			for (int i=0; i < size(); i++) {
 				elements.get(i).xor(other); 
 			}
@@ -280,6 +280,8 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 	
 	/**
 	 * Construct the transposed collection.
+	 * The collection is transposed as a binary matrix in blocks of 64 by 64 bits, 
+	 * working directly on the words of the underlying {@link OpenBitSet} objects.
 	 * @param c The collection to transpose.
 	 * @return A new <code>NaturalSetCollection</code> object.
 	 * @throws NaturalSetException If <code>c</code> is empty.
@@ -287,13 +289,44 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 	public static NaturalSetCollection transpose(NaturalSetCollection c) throws NaturalSetException {
 		NaturalSetCollection t = null;
 		if(c.size() > 0){
-			t = new NaturalSetCollection(new NaturalDomain(c.size()), c.domain.closureCardinality());
-			for(int j=c.domain.min(); j<=c.domain.max(); j++){
-				OpenBitSet tline = new OpenBitSet(c.size());
-				for(int i=0; i<c.size(); i++){
-					if(c.elements.get(i).contains(j)){tline.fastSet(i);}
+			int rows = c.size();
+			int columns = c.domain.closureCardinality();
+			int rowWords = OpenBitSet.bits2words(rows);
+			int columnWords = OpenBitSet.bits2words(columns);
+
+			long[][] source = new long[rows][];
+			int[] length = new int[rows];
+			for(int i=0; i<rows; i++){
+				OpenBitSet map = c.elements.get(i).map();
+				source[i] = map.getBits();
+				length[i] = map.getNumWords();
+			}
+			
+			long[][] target = new long[columns][rowWords];
+			long[] block = new long[64];
+			for(int rb=0; rb<rowWords; rb++){
+				int rowBase = rb << 6;
+				int rowCount = Math.min(64, rows - rowBase);
+				for(int cb=0; cb<columnWords; cb++){
+					int columnBase = cb << 6;
+					int columnCount = Math.min(64, columns - columnBase);
+					long any = 0;
+					for(int k=0; k<64; k++){
+						block[k] = (k < rowCount && cb < length[rowBase + k]) ? source[rowBase + k][cb] : 0;
+						any |= block[k];
+					}
+					if(any != 0){
+						transpose(block);
+						for(int k=0; k<columnCount; k++){
+							target[columnBase + k][rb] = block[k];
+						}
+					}
 				}
-				t.add(new NaturalSet(t.domain, tline));
+			}
+			
+			t = new NaturalSetCollection(new NaturalDomain(rows).intern(), columns);
+			for(int j=0; j<columns; j++){
+				t.elements.add(new NaturalSet(t.domain, new OpenBitSet(target[j], rowWords)));
 			}
 		} else {
 			throw new NaturalSetException("Can not transpose empty collection.");
@@ -301,6 +334,23 @@ public class NaturalSetCollection implements Iterable<NaturalSet> {
 		return t;
 	}	
 	
+	/**
+	 * Transposes a 64 by 64 bit matrix in place, 
+	 * where bit <code>j</code> of <code>a[i]</code> is the element in row <code>i</code> and column <code>j</code>.
+	 * The matrix is transposed by recursively swapping the off diagonal quadrants of every sub block. 
+	 * @param a An array of 64 words.
+	 */
+	static void transpose(long[] a){
+		long m = 0x00000000FFFFFFFFL;
+		for(int j=32; j!=0; j>>=1, m^=(m << j)){
+			for(int k=0; k<64; k=((k | j) + 1) & ~j){
+				long x = ((a[k] >>> j) ^ a[k | j]) & m;
+				a[k] ^= x << j;
+				a[k | j] ^= x;
+			}
+		}
+	}
+	
 	public Iterator<NaturalSet> iterator(){
 		return new NaturalSetIterator(this);
 	}
@@ -0,0 +1,316 @@
+/* 
+ * Foliage. An Ancestral Recombination Graph Manipulation Library.
+ * 
+ * Copyright (c) 2008 Genome Research Ltd.
+ * 
+ * Author: Lior Galanti <lior.galanti@gmail.com>
+ * 
+ * This file is part of Foliage.
+ * Foliage is free software; you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package sanger.math.set;
+
+import org.apache.solr.util.OpenBitSet;
+
+/**
+ * A dense binary matrix whose rows are sets over a common {@link NaturalDomain}.
+ * Rows are stored back to back in a single <code>long</code> array,
+ * every row taking <code>words()</code> words in the domain's relative coordinate system,
+ * so the matrix can be sorted, compared and counted without allocating a {@link NaturalSet} per row.
+ * A {@link NaturalSetCollection} view of the matrix is available through {@link #toCollection()}.
+ * @author Lior Galanti
+ */
+public class NaturalSetMatrix {
+	private NaturalDomain domain;
+	private int words;
+	private long[] bits;
+	private int rows;
+
+	/**
+	 * Constructs an empty matrix with an initial capacity for <code>capacity</code> rows.
+	 * @param domain The <code>NaturalDomain</code> all rows are defined on.
+	 * @param capacity Initial capacity of the matrix.
+	 */
+	public NaturalSetMatrix(NaturalDomain domain, int capacity){
+		this.domain = domain;
+		this.words = Math.max(1, OpenBitSet.bits2words(domain.closureCardinality()));
+		this.bits = new long[Math.max(1, capacity) * words];
+		this.rows = 0;
+	}
+
+	/**
+	 * @return The {@link NaturalDomain} over which the rows are defined.
+	 */
+	public NaturalDomain domain(){
+		return domain;
+	}
+
+	/**
+	 * @return The number of rows in the matrix.
+	 */
+	public int size(){
+		return rows;
+	}
+
+	/**
+	 * @return The number of words used by every row.
+	 */
+	public int words(){
+		return words;
+	}
+
+	/**
+	 * The backing array. Row <code>i</code> occupies words <code>[i * words(), (i + 1) * words())</code>.
+	 * @return The words of the matrix.
+	 */
+	public long[] bits(){
+		return bits;
+	}
+
+	private void ensureCapacity(int capacity){
+		if(capacity * words > bits.length){
+			long[] grown = new long[Math.max(capacity, 2 * rows) * words];
+			System.arraycopy(bits, 0, grown, 0, rows * words);
+			bits = grown;
+		}
+	}
+
+	/**
+	 * Appends an empty row.
+	 * @return The index of the new row.
+	 */
+	public int addRow(){
+		ensureCapacity(rows + 1);
+		int offset = rows * words;
+		for(int w=0; w<words; w++){ bits[offset + w] = 0; }
+		return rows++;
+	}
+
+	/**
+	 * Appends a copy of row <code>row</code> of <code>source</code>.
+	 * @param source A matrix defined on the same domain.
+	 * @param row The row in <code>source</code> to copy.
+	 * @return The index of the new row.
+	 * @throws NaturalSetException if <code>this.domain().compatible(source.domain())</code> does not evaluate to <code>true</code>.
+	 */
+	public int addRow(NaturalSetMatrix source, int row) throws NaturalSetException{
+		if(domain.compatible(source.domain)){
+			ensureCapacity(rows + 1);
+			System.arraycopy(source.bits, row * words, bits, rows * words, words);
+		} else {
+			throw new NaturalSetException("Row domain is incompatible with the matrix domain.");
+		}
+		return rows++;
+	}
+
+	/**
+	 * Appends the elements of a {@link NaturalSet} as a new row.
+	 * @param e
+	 * @return The index of the new row.
+	 * @throws NaturalSetException if <code>this.domain().compatible(e.domain())</code> does not evaluate to <code>true</code>.
+	 */
+	public int add(NaturalSet e) throws NaturalSetException{
+		if(domain.compatible(e.domain)){
+			ensureCapacity(rows + 1);
+			OpenBitSet map = e.map();
+			int offset = rows * words;
+			int length = Math.min(words, map.getNumWords());
+			for(int w=0; w<words; w++){ bits[offset + w] = w < length ? map.getBits()[w] : 0; }
+		} else {
+			throw new NaturalSetException("Entry domain is incompatible with the matrix domain.");
+		}
+		return rows++;
+	}
+
+	/**
+	 * Adds an element to a row.
+	 * @param row
+	 * @param position The element in the domain's relative coordinate system.
+	 */
+	public void set(int row, int position){
+		bits[row * words + (position >> 6)] |= 1L << position;
+	}
+
+	/**
+	 * Tests if a row contains an element.
+	 * @param row
+	 * @param position The element in the domain's relative coordinate system.
+	 * @return True if the row contains <code>position</code>.
+	 */
+	public boolean get(int row, int position){
+		return (bits[row * words + (position >> 6)] & (1L << position)) != 0;
+	}
+
+	/**
+	 * Union row <code>row</code> with row <code>other</code>.
+	 * @param row The row to modify.
+	 * @param other The row to union with.
+	 */
+	public void union(int row, int other){
+		int target = row * words, source = other * words;
+		for(int w=0; w<words; w++){ bits[target + w] |= bits[source + w]; }
+	}
+
+	/**
+	 * Replaces a row with its complement in the domain.
+	 * @param row
+	 */
+	public void inverse(int row){
+		long[] one = domain.one().getBits();
+		int length = Math.min(words, domain.one().getNumWords());
+		int offset = row * words;
+		for(int w=0; w<length; w++){ bits[offset + w] ^= one[w]; }
+	}
+
+	/**
+	 * @param row
+	 * @return The number of elements in the row.
+	 */
+	public int cardinality(int row){
+		return (int)BitKernel.instance().cardinality(bits, row * words, words);
+	}
+
+	/**
+	 * Compares two rows with the order relation of {@link NaturalSet#compareTo(NaturalSet)}:
+	 * the row containing the smallest element of the symmetric difference comes first.
+	 */
+	private static int compare(long[] a, int aoffset, long[] b, int boffset, int words){
+		int result = 0;
+		for(int w=0; w<words && result==0; w++){
+			long x = a[aoffset + w], y = b[boffset + w];
+			if(x != y){
+				long lowest = (x ^ y) & -(x ^ y);
+				result = (x & lowest) != 0 ? -1 : 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compares two rows of the matrix.
+	 * @param i
+	 * @param j
+	 * @return A negative number, zero or a positive number as row <code>i</code> precedes, equals or follows row <code>j</code>.
+	 */
+	public int compare(int i, int j){
+		return compare(bits, i * words, bits, j * words, words);
+	}
+
+	/**
+	 * Sort the rows according to the {@link NaturalSet#compareTo(NaturalSet)} order relation.
+	 */
+	public void sort(){
+		if(rows > 1){
+			int[] order = new int[rows];
+			int[] buffer = new int[rows];
+			for(int i=0; i<rows; i++){ order[i] = i; }
+			mergeSort(order, buffer, 0, rows);
+			long[] sorted = new long[bits.length];
+			for(int i=0; i<rows; i++){
+				System.arraycopy(bits, order[i] * words, sorted, i * words, words);
+			}
+			bits = sorted;
+		}
+	}
+
+	private void mergeSort(int[] order, int[] buffer, int from, int to){
+		if(to - from > 1){
+			int middle = (from + to) >>> 1;
+			mergeSort(order, buffer, from, middle);
+			mergeSort(order, buffer, middle, to);
+			if(compare(order[middle - 1], order[middle]) > 0){
+				System.arraycopy(order, from, buffer, from, to - from);
+				int i = from, j = middle, k = from;
+				while(i < middle && j < to){
+					order[k++] = compare(buffer[j], buffer[i]) < 0 ? buffer[j++] : buffer[i++];
+				}
+				while(i < middle){ order[k++] = buffer[i++]; }
+				while(j < to){ order[k++] = buffer[j++]; }
+			}
+		}
+	}
+
+	/**
+	 * Trims the capacity of the matrix to be the current size.
+	 */
+	public void trimToSize(){
+		if(rows * words < bits.length){
+			long[] trimmed = new long[Math.max(1, rows) * words];
+			System.arraycopy(bits, 0, trimmed, 0, rows * words);
+			bits = trimmed;
+		}
+	}
+
+	/**
+	 * Computes the number of rows shared by the two matrices.
+	 * Both matrices must be {@link #sort() sorted}. This does not modify either of the matrices.
+	 * @param other <code>NaturalSetMatrix</code> to intersect with.
+	 * @return The number of rows contained in both matrices.
+	 * @throws NaturalSetException if <code>this.domain().compatible(other.domain())</code> does not evaluate to <code>true</code>.
+	 */
+	public int intersectCount(final NaturalSetMatrix other) throws NaturalSetException{
+		int intersect = 0;
+		if(domain.compatible(other.domain)){
+			int i = 0, j = 0;
+			while(i < rows && j < other.rows){
+				int order = compare(bits, i * words, other.bits, j * other.words, words);
+				if(order == 0){
+					intersect++;
+					i++;
+					j++;
+				} else if (order > 0) {
+					j++;
+				} else {
+					i++;
+				}
+			}
+		} else {
+			throw new NaturalSetException("NaturalSetMatrices have to be defined over the same Domain to intersect");
+		}
+		return intersect;
+	}
+
+	/**
+	 * @param row
+	 * @return A new {@link NaturalSet} with the elements of the row.
+	 */
+	public NaturalSet get(int row){
+		long[] copy = new long[words];
+		System.arraycopy(bits, row * words, copy, 0, words);
+		return new NaturalSet(domain, new OpenBitSet(copy, words));
+	}
+
+	/**
+	 * @return A new {@link NaturalSetCollection} with a {@link NaturalSet} for every row, in row order.
+	 */
+	public NaturalSetCollection toCollection(){
+		NaturalSetCollection collection = new NaturalSetCollection(domain, rows);
+		for(int i=0; i<rows; i++){
+			try { collection.add(get(i)); }
+			catch (NaturalSetException e) { e.printStackTrace(); }
+		}
+		return collection;
+	}
+
+	public String toString() {
+		StringBuilder display = new StringBuilder();
+		display.append("NaturalSetMatrix {");
+		display.append("\n\tNaturalSet domain: ");
+		display.append(domain );
+		display.append("\n\tsize: ");
+		display.append(size() );
+		display.append("\n}");
+
+		return display.toString();
+	}
+}
@@ -20,6 +20,9 @@
 
 package sanger.math.set;
 
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,12 +42,14 @@ import sanger.argml.io.XmlOutput;
  */
 public class NaturalSpace {
 	private static final Pattern codec = Pattern.compile("^\\[([0-9]+),([0-9]+)\\]$");
+	private static final Map<NaturalSpace, WeakReference<NaturalSpace>> registry = new WeakHashMap<NaturalSpace, WeakReference<NaturalSpace>>();
 
 	private int min;
 	private int max;
 	private int cardinality;
 	private OpenBitSet one;
 	private int last;
+	private boolean interned;
 	
 	/**
 	 * Constructs a <code>NaturalSpace</code> spanning from <code>min</code> to <code>max</code>.
@@ -110,10 +115,41 @@ public class NaturalSpace {
 		return min;
 	}
 
+	/**
+	 * Returns the canonical <code>NaturalSpace</code> equal to this one.
+	 * Spaces are immutable so the canonical instance can be shared freely, 
+	 * and two interned spaces are equal if and only if they are the same object.
+	 * @return The canonical instance, which may be <code><strong>this</strong></code>.
+	 */
+	public NaturalSpace intern(){
+		NaturalSpace canonical = this;
+		if(!interned){
+			synchronized(registry){
+				WeakReference<NaturalSpace> reference = registry.get(this);
+				NaturalSpace existing = (reference == null) ? null : reference.get();
+				if(existing != null){
+					canonical = existing;
+				} else {
+					interned = true;
+					registry.put(this, new WeakReference<NaturalSpace>(this));
+				}
+			}
+		}
+		return canonical;
+	}
+	
+	/**
+	 * @return True if this object is the canonical instance returned by {@link #intern()}.
+	 */
+	public boolean isInterned(){
+		return interned;
+	}
+	
 	/** 
 	 * @return True if the two spaces contain the same set of natural numbers.
 	 */
 	public boolean equals(Object o) {
+		if (this == o) return true;
 		boolean result = false;
 		if (o instanceof NaturalSpace) {
 			NaturalSpace other = (NaturalSpace) o;
@@ -124,6 +160,10 @@ public class NaturalSpace {
 		return result;
 	}
 	
+	public int hashCode() {
+		return 31 * min + max;
+	}
+	
 	/**
 	 * @return The largest element in the relative coordinates.
 	 */